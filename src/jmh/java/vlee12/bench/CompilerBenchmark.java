@@ -0,0 +1,82 @@
+package vlee12.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import vlee12.compiler.Compiler;
+import vlee12.compiler.Options;
+import vlee12.parser.Fun;
+import vlee12.parser.Parser;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiler throughput on generated programs, per phase and end to end.
+ * Divide the input size by the score for bytes per second; run with -prof gc for allocation rates.
+ *
+ *     ./gradlew jmh -PjmhArgs="CompilerBenchmark -p size=1KB,1MB -prof gc"
+ *
+ * Past 1MB most shapes need more constants than one class can hold, packed globals or not (each index past sipush
+ * range is a constant of its own), so bigger sizes are only for the shapes that stay small per byte:
+ *
+ *     ./gradlew jmh -PjmhArgs="CompilerBenchmark -p size=16MB,100MB -p shape=DEEP_NESTING,LONG_BLOCKS"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+// The parser recurses per statement and the big inputs need room for source, AST and class at once
+@Fork(value = 1, jvmArgsAppend = { "-Xss64m", "-Xmx4g" })
+public class CompilerBenchmark {
+
+    @Param({ "1KB", "64KB", "1MB" })
+    public String size;
+
+    @Param({ "MIXED", "MANY_FUNS", "DEEP_NESTING", "LONG_BLOCKS", "MANY_GLOBALS", "HUGE_CONSTANTS" })
+    public ProgramGenerator.Shape shape;
+
+    private String source;
+    private List<Fun> funs;
+
+    @Setup
+    public void setUp() {
+        source = ProgramGenerator.generate(shape, ProgramGenerator.parseSize(size));
+        funs = parse();
+    }
+
+    @Benchmark
+    public List<Fun> parse() {
+        return Parser.parse(new BufferedReader(new StringReader(source)));
+    }
+
+    @Benchmark
+    public byte[] codegen() {
+        return Compiler.compile(funs, "Bench");
+    }
+
+    @Benchmark
+    public byte[] endToEnd() {
+        return Compiler.compile(parse(), "Bench");
+    }
+
+    // endToEnd with codegen running alongside the parser, see Options.pipeline
+    @Benchmark
+    public byte[] pipelined() {
+        Options options = new Options();
+        options.pipeline = true;
+        return Compiler.compile(new BufferedReader(new StringReader(source)), "Bench", options, ByteBuffer::allocate).array();
+    }
+}
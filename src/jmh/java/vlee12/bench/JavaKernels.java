@@ -0,0 +1,135 @@
+package vlee12.bench;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+/**
+ * What a careful person would write by hand for each fun in kernels.fun, keeping fun's semantics:
+ * unsigned comparisons, wrapping arithmetic, and globals as static fields.
+ */
+public final class JavaKernels {
+
+    private static int i, v, s, j, k;
+
+    private JavaKernels() {}
+
+    public static int factorial(int n) {
+        i = 0;
+        v = 1;
+        while (Integer.compareUnsigned(i, n) < 0) {
+            i = i + 1;
+            v = v * i;
+        }
+        return v;
+    }
+
+    public static int fib(int n) {
+        if (Integer.compareUnsigned(n, 2) < 0)
+            return n;
+        return fib(n - 1) + fib(n - 2);
+    }
+
+    public static int nested(int n) {
+        s = 0;
+        i = 0;
+        while (Integer.compareUnsigned(i, n) < 0) {
+            j = 0;
+            while (Integer.compareUnsigned(j, n) < 0) {
+                s = s + i * j;
+                j = j + 1;
+            }
+            i = i + 1;
+        }
+        return s;
+    }
+
+    public static int pnested(int n) {
+        return IntStream.range(0, n).parallel().map(i -> {
+            int row = 0;
+            for (int j = 0; Integer.compareUnsigned(j, n) < 0; j++)
+                row += i * j;
+            return row;
+        }).sum();
+    }
+
+    private static int spin(int n) {
+        int x = n;
+        for (int k = 0; Integer.compareUnsigned(k, n) < 0; k++)
+            x = x * 1664525 + 1013904223;
+        return x;
+    }
+
+    public static int spin4(int n) {
+        return spin(n) + spin(n + 1) + spin(n + 2) + spin(n + 3);
+    }
+
+    public static int fanout(int n) {
+        CompletableFuture<Integer> a = CompletableFuture.supplyAsync(() -> spin(n));
+        CompletableFuture<Integer> b = CompletableFuture.supplyAsync(() -> spin(n + 1));
+        CompletableFuture<Integer> c = CompletableFuture.supplyAsync(() -> spin(n + 2));
+        CompletableFuture<Integer> d = CompletableFuture.supplyAsync(() -> spin(n + 3));
+        return a.join() + b.join() + c.join() + d.join();
+    }
+
+    private static int pick(int k) {
+        switch (k) {
+            case 0: return 3;
+            case 1: return 10;
+            case 2: return 17;
+            case 3: return 24;
+            case 4: return 31;
+            case 5: return 38;
+            case 6: return 45;
+            case 7: return 52;
+            case 8: return 59;
+            case 9: return 66;
+            case 10: return 73;
+            case 11: return 80;
+            case 12: return 87;
+            case 13: return 94;
+            case 14: return 101;
+            case 15: return 108;
+            default: return 0;
+        }
+    }
+
+    public static int dispatch(int n) {
+        s = 0;
+        k = 0;
+        i = 0;
+        while (Integer.compareUnsigned(i, n) < 0) {
+            s = s + pick(k);
+            k = k + 1;
+            if (k == 16)
+                k = 0;
+            i = i + 1;
+        }
+        return s;
+    }
+
+    private static int f4(int a, int b, int c, int d) {
+        return a + b + c + d;
+    }
+
+    private static int f3(int a, int b, int c) {
+        return f4(a, b, c, c + 1) + a;
+    }
+
+    private static int f2(int a, int b) {
+        return f3(a, b, b + 1) + b;
+    }
+
+    private static int f1(int a) {
+        return f2(a, a + 1);
+    }
+
+    public static int chain(int n) {
+        i = 0;
+        s = 0;
+        while (Integer.compareUnsigned(i, n) < 0) {
+            s = s + f1(i);
+            i = i + 1;
+        }
+        return s;
+    }
+}
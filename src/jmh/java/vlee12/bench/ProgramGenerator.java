@@ -0,0 +1,182 @@
+package vlee12.bench;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic .fun programs of a requested size for benchmarking.
+ * Output is deterministic for a given shape, size and seed, always parses, and always has a main.
+ * The t*.fun tests are all tiny, so this is what lets us see how the compiler scales.
+ */
+public final class ProgramGenerator {
+
+    public enum Shape {
+        // A bit of everything below
+        MIXED,
+        // Thousands of small funs calling each other
+        MANY_FUNS,
+        // if/while nested dozens of levels deep
+        DEEP_NESTING,
+        // Funs with very long straight-line blocks
+        LONG_BLOCKS,
+        // Every statement touches a fresh global
+        MANY_GLOBALS,
+        // Every statement uses a fresh constant too big for sipush
+        HUGE_CONSTANTS
+    }
+
+    // Keep individual methods well inside the JVM's limits, size comes from having more funs
+    private static final int MAX_BLOCK_LENGTH = 1500;
+    private static final int MAX_NESTING_DEPTH = 40;
+
+    private final Shape shape;
+    private final int blockLength;
+    private final int nestingDepth;
+    private final Random random;
+    private final StringBuilder out;
+    private int funCount = 0;
+    private int globalCount = 0;
+    private int constantCount = 0;
+
+    private ProgramGenerator(Shape shape, int targetBytes, long seed) {
+        this.shape = shape;
+        this.random = new Random(seed);
+        this.out = new StringBuilder(targetBytes + 4096);
+
+        // Small targets get small funs, so they come out near the requested size rather than a whole block over
+        this.blockLength = Math.max(4, Math.min(MAX_BLOCK_LENGTH, targetBytes / 40));
+        this.nestingDepth = Math.max(2, Math.min(MAX_NESTING_DEPTH, targetBytes / 800));
+    }
+
+    public static String generate(Shape shape, int targetBytes) {
+        return generate(shape, targetBytes, 429);
+    }
+
+    public static String generate(Shape shape, int targetBytes, long seed) {
+        return new ProgramGenerator(shape, targetBytes, seed).program(targetBytes);
+    }
+
+    /**
+     * Parses sizes like "1KB", "16MB" or plain byte counts
+     */
+    public static int parseSize(String size) {
+        String s = size.trim().toUpperCase();
+        if (s.endsWith("KB"))
+            return Integer.parseInt(s.substring(0, s.length() - 2)) * 1024;
+        if (s.endsWith("MB"))
+            return Integer.parseInt(s.substring(0, s.length() - 2)) * 1024 * 1024;
+        return Integer.parseInt(s);
+    }
+
+    private String program(int targetBytes) {
+        while (out.length() < targetBytes) {
+            Shape next = shape == Shape.MIXED ? Shape.values()[1 + random.nextInt(Shape.values().length - 1)] : shape;
+            fun(next);
+        }
+
+        out.append("fun main() {\n");
+        for (int i = Math.max(0, funCount - 8); i < funCount; i++)
+            out.append("    print f").append(i).append("(").append(i).append(", 7)\n");
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private void fun(Shape kind) {
+        int self = funCount++;
+        out.append("fun f").append(self).append("(a, b) {\n");
+        switch (kind) {
+            case MANY_FUNS: {
+                int n = 3 + random.nextInt(4);
+                for (int i = 0; i < n; i++)
+                    assignment(1);
+                break;
+            }
+            case DEEP_NESTING: {
+                nest(1, nestingDepth);
+                break;
+            }
+            case LONG_BLOCKS:
+            case MANY_GLOBALS:
+            case HUGE_CONSTANTS: {
+                for (int i = 0; i < blockLength; i++)
+                    simpleStatement(kind, 1);
+                break;
+            }
+            default: throw new IllegalStateException(kind.toString());
+        }
+
+        // Chain to an earlier fun so there are calls to compile
+        if (self > 0)
+            out.append("    a = f").append(random.nextInt(self)).append("(a + 1, b)\n");
+        out.append("    return a + b\n");
+        out.append("}\n\n");
+    }
+
+    private void nest(int depth, int maxDepth) {
+        if (depth > maxDepth) {
+            assignment(depth);
+            return;
+        }
+        indent(depth);
+        if (random.nextBoolean()) {
+            out.append("if (a < ").append(operand()).append(") {\n");
+            nest(depth + 1, maxDepth);
+            indent(depth);
+            out.append("} else {\n");
+            assignment(depth + 1);
+            indent(depth);
+            out.append("}\n");
+        } else {
+            out.append("while (b > ").append(random.nextInt(100)).append(") {\n");
+            assignment(depth + 1);
+            indent(depth + 1);
+            out.append("b = b * 0\n");
+            nest(depth + 1, maxDepth);
+            indent(depth);
+            out.append("}\n");
+        }
+    }
+
+    private void simpleStatement(Shape kind, int depth) {
+        switch (kind) {
+            case MANY_GLOBALS: {
+                indent(depth);
+                out.append("g").append(globalCount++).append(" = a + ").append(operand()).append("\n");
+                break;
+            }
+            case HUGE_CONSTANTS: {
+                indent(depth);
+                // Distinct and well past sipush range, so each one lands in the constant pool
+                out.append("a = a * ").append(100000 + constantCount++ * 7919L % 4000000000L).append("\n");
+                break;
+            }
+            default: {
+                if (random.nextInt(8) == 0) {
+                    indent(depth);
+                    out.append("print a + b\n");
+                } else {
+                    assignment(depth);
+                }
+            }
+        }
+    }
+
+    private void assignment(int depth) {
+        indent(depth);
+        out.append(random.nextBoolean() ? "a" : "b").append(" = ").append(operand())
+                .append(random.nextBoolean() ? " + " : " * ").append(operand()).append("\n");
+    }
+
+    private String operand() {
+        switch (random.nextInt(4)) {
+            case 0: return "a";
+            case 1: return "b";
+            case 2: return Integer.toString(random.nextInt(1000));
+            default: return "(a + " + random.nextInt(10) + ")";
+        }
+    }
+
+    private void indent(int depth) {
+        for (int i = 0; i < depth; i++)
+            out.append("    ");
+    }
+}
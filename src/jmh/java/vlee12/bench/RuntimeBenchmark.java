@@ -0,0 +1,147 @@
+package vlee12.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import vlee12.compiler.Compiler;
+import vlee12.compiler.Options;
+import vlee12.compiler.ProfileData;
+import vlee12.parser.Parser;
+import vlee12.parser.Program;
+import vlee12.runtime.FunRuntime;
+import vlee12.runtime.Profile;
+import vlee12.runtime.ProgramLoader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How fast compiled fun code runs: each kernel in kernels.fun, compiled in each mode, against hand-written Java.
+ * This is the yardstick for codegen changes, so new optimization modes should be added to {@link #options}.
+ *
+ *     ./gradlew jmh -PjmhArgs="RuntimeBenchmark -p kernel=fib"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuntimeBenchmark {
+
+    @Param({ "factorial", "fib", "nested", "pnested", "spin4", "fanout", "dispatch", "chain" })
+    public String kernel;
+
+    // "java" is the hand-written baseline in JavaKernels, everything else is a way of compiling kernels.fun
+    @Param({ "java", "default", "selfContained", "memoize", "profile", "pgo" })
+    public String mode;
+
+    private MethodHandle handle;
+    private int argument;
+    private PrintStream realOut;
+
+    static Options options(String mode) {
+        Options options = new Options();
+        switch (mode) {
+            case "default": break;
+            case "selfContained": options.selfContained = true; break;
+            case "memoize": options.memoize = true; break;
+            case "profile": options.profile = true; break;
+            case "pgo": break; // The profile comes from a training run, see train
+            default: throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        return options;
+    }
+
+    static Program kernels() throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                RuntimeBenchmark.class.getResourceAsStream("kernels.fun"), StandardCharsets.UTF_8))) {
+            return Parser.parseProgram(in);
+        }
+    }
+
+    /**
+     * Does what --profile followed by --use-profile does on the command line: runs the kernel once with counters in
+     */
+    static ProfileData train(String kernel, int argument) throws ReflectiveOperationException, IOException {
+        Options options = new Options();
+        options.profile = true;
+        Class<?> owner = new ProgramLoader().define("Kernels", Compiler.compile(kernels(), "Kernels", options));
+
+        List<Profile> profiles = new ArrayList<>();
+        FunRuntime.collectProfiles(profiles);
+        try {
+            owner.getMethod(kernel, int.class).invoke(null, argument);
+        } finally {
+            FunRuntime.collectProfiles(null);
+        }
+
+        return ProfileData.of(profiles);
+    }
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException, IOException {
+        switch (kernel) {
+            case "factorial": argument = 1000; break;
+            case "fib": argument = 25; break;
+            case "nested": argument = 300; break;
+            case "pnested": argument = 300; break; // nested spread over every core by a parallel loop
+            case "spin4": argument = 1000000; break;
+            case "fanout": argument = 1000000; break; // spin4 with the four calls started by async
+            case "dispatch": argument = 100000; break; // a 16 way if chain on every iteration
+            case "chain": argument = 10000; break;
+            default: throw new IllegalArgumentException("Unknown kernel " + kernel);
+        }
+
+        Class<?> owner;
+        if ("java".equals(mode)) {
+            owner = JavaKernels.class;
+        } else {
+            Options options = options(mode);
+            if ("pgo".equals(mode))
+                options.pgo = train(kernel, argument);
+            byte[] bytes = Compiler.compile(kernels(), "Kernels", options);
+            owner = new ProgramLoader().define("Kernels", bytes);
+        }
+        handle = MethodHandles.publicLookup().findStatic(owner, kernel, MethodType.methodType(int.class, int.class));
+
+        // Nothing should print, but if a kernel does, don't measure the console
+        realOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(realOut);
+    }
+
+    @Benchmark
+    public int run() throws Throwable {
+        return (int) handle.invokeExact(argument);
+    }
+}
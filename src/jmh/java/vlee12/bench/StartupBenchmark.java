@@ -0,0 +1,119 @@
+package vlee12.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Launch to exit, for compiling a small program and for running it, with the JVM against GraalVM native executables
+ * (see NativeImage). Each launch is a fresh process, so this is all startup. Needs the jar and the native compiler
+ * built first, and native-image on hand for the program's executable:
+ *
+ *     ./gradlew jar nativeImage jmh -PjmhArgs="StartupBenchmark"
+ *
+ * -Dfun2jvm.jar and -Dfun2jvm.native point at them if they're somewhere else.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBenchmark {
+
+    private static final String PROGRAM =
+            "fun triangle(n) {\n" +
+            "    i = 0\n" +
+            "    t = 0\n" +
+            "    while (i < n) {\n" +
+            "        i = i + 1\n" +
+            "        t = t + i\n" +
+            "    }\n" +
+            "    return t\n" +
+            "}\n" +
+            "\n" +
+            "fun main() {\n" +
+            "    print triangle(1000)\n" +
+            "}\n";
+
+    // "compile" is fun2jvm compiling PROGRAM, "run" is the program it compiled running
+    @Param({ "compile", "run" })
+    public String task;
+
+    @Param({ "jvm", "native" })
+    public String launcher;
+
+    private File dir;
+    private List<String> command;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("fun2jvm-startup").toFile();
+        Files.write(dir.toPath().resolve("startup.fun"), PROGRAM.getBytes(StandardCharsets.UTF_8));
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String jar = Paths.get(System.getProperty("fun2jvm.jar", "build/libs/fun2jvm.jar")).toAbsolutePath().toString();
+        Path compiler = Paths.get(System.getProperty("fun2jvm.native", "build/native/fun2jvm")).toAbsolutePath();
+        if (launcher.equals("native") && !Files.isExecutable(compiler))
+            throw new IllegalStateException(compiler + " isn't there, build it with ./gradlew nativeImage");
+
+        List<String> fun2jvm = launcher.equals("jvm") ? Arrays.asList(java, "-jar", jar) : Arrays.asList(compiler.toString());
+        if (task.equals("compile")) {
+            command = with(fun2jvm, "startup.fun");
+        } else if (launcher.equals("jvm")) {
+            launch(with(fun2jvm, "--jar=startup.jar", "startup.fun"));
+            command = Arrays.asList(java, "-jar", "startup.jar");
+        } else {
+            launch(with(fun2jvm, "--native=startup", "startup.fun"));
+            command = Arrays.asList(new File(dir, "startup").getPath());
+        }
+    }
+
+    @Benchmark
+    public int launch() throws IOException {
+        return launch(command);
+    }
+
+    private int launch(List<String> command) throws IOException {
+        Process process = new ProcessBuilder(command)
+                .directory(dir)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(dir, "out.txt")))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            int status = process.waitFor();
+            if (status != 0)
+                throw new IOException(String.join(" ", command) + " exited with " + status);
+            return status;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static List<String> with(List<String> command, String... args) {
+        List<String> ret = new ArrayList<>(command);
+        ret.addAll(Arrays.asList(args));
+        return ret;
+    }
+}
@@ -0,0 +1,75 @@
+package vlee12;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Makes an AppCDS archive for a launch by running it once with -XX:ArchiveClassesAtExit (JDK 13 and up).
+ * Later launches with -XX:SharedArchiveFile map every class the training run loaded, already parsed and verified,
+ * instead of loading them from the jar again. For programs that only run for a few milliseconds that's most of the time.
+ *
+ * The archive is only used when the classpath matches the one it was made with and the jars haven't changed since,
+ * so paths are made absolute and the exact launch command gets printed.
+ */
+final class CdsArchive {
+
+    private final Path archive;
+    private final List<String> launch; // everything after "java"
+
+    CdsArchive(Path archive, List<String> launch) {
+        this.archive = archive.toAbsolutePath();
+        this.launch = launch;
+    }
+
+    static boolean supported() {
+        String version = System.getProperty("java.specification.version");
+        return !version.startsWith("1.") && Integer.parseInt(version) >= 13;
+    }
+
+    /**
+     * Runs the launch once, dumping the archive when it exits. The program's own output is thrown away.
+     */
+    void train() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-XX:ArchiveClassesAtExit=" + archive);
+        command.addAll(launch);
+
+        Process training = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try (InputStream out = training.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            while (out.read(buffer) != -1) {
+                // drain, or a chatty program blocks on a full pipe
+            }
+        }
+
+        try {
+            int status = training.waitFor();
+            if (status != 0)
+                throw new IOException("Training run exited with " + status + ": " + String.join(" ", command));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during the training run");
+        }
+    }
+
+    Path file() {
+        return archive;
+    }
+
+    String launchCommand() {
+        StringBuilder ret = new StringBuilder("java -XX:SharedArchiveFile=").append(quote(archive.toString()));
+        for (String arg : launch)
+            ret.append(' ').append(quote(arg));
+        return ret.toString();
+    }
+
+    private static String quote(String arg) {
+        return arg.matches("[\\w./:=+,@%-]+") ? arg : "'" + arg.replace("'", "'\\''") + "'";
+    }
+}
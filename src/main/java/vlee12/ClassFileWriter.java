@@ -0,0 +1,74 @@
+package vlee12;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Gives the compiler somewhere to write a .class file once it knows how big it is (see Compiler.compile), then gets
+ * it onto disk without another copy. Big classes are compiled straight into a mapping of the file, so they never sit
+ * on the heap in one piece. Small ones, where setting up a mapping costs more than it saves, go into a direct buffer
+ * that the channel writes out as it is. The file isn't touched until the class is done, so a program that doesn't
+ * compile leaves the last good .class alone.
+ */
+final class ClassFileWriter implements AutoCloseable {
+
+    // Smallest class worth mapping the file for
+    private static final int MAP_THRESHOLD = 1 << 20;
+
+    private final Path file;
+    private FileChannel channel = null;
+    private ByteBuffer mapped = null; // the mapping handed out, if it was one
+
+    ClassFileWriter(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * A buffer for a class of exactly size bytes, for Compiler.compile
+     */
+    ByteBuffer allocate(int size) {
+        if (size < MAP_THRESHOLD)
+            return ByteBuffer.allocateDirect(size);
+        try {
+            mapped = open().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return mapped;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Makes sure what the compiler wrote into a buffer from allocate ends up in the file
+     */
+    void write(ByteBuffer classFile) throws IOException {
+        if (classFile == mapped)
+            return; // already is, the page cache writes it back
+        ByteBuffer data = classFile.duplicate();
+        Buffer limits = data; // Buffer's flip, ByteBuffer only has its own from Java 9
+        limits.flip();
+        FileChannel out = open();
+        while (data.hasRemaining())
+            out.write(data);
+    }
+
+    private FileChannel open() throws IOException {
+        if (channel == null)
+            channel = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, READ, WRITE);
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+}
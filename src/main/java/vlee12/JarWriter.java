@@ -0,0 +1,121 @@
+package vlee12;
+
+import vlee12.runtime.FunRuntime;
+import vlee12.runtime.Linker;
+import vlee12.runtime.Profile;
+import vlee12.runtime.Tasks;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes compiled classes straight into an executable jar, front to back in a single pass: the manifest first,
+ * then each class as soon as it's compiled. Nothing is held back or written twice.
+ */
+final class JarWriter implements AutoCloseable {
+
+    // Everything generated code can call into, copied out of wherever fun2jvm itself was loaded from
+    private static final Class<?>[] RUNTIME = { FunRuntime.class, Linker.class, Profile.class, Tasks.class };
+
+    private final JarOutputStream out;
+    private final Set<String> written = new HashSet<>();
+    private long size = 0;
+
+    /**
+     * @param mainClass what "java -jar" runs, null for a jar of libraries only
+     */
+    JarWriter(Path file, String mainClass) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(new Attributes.Name("Created-By"), "fun2jvm");
+        if (mainClass != null)
+            attributes.put(Attributes.Name.MAIN_CLASS, mainClass.replace('/', '.'));
+        out = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(file)), manifest);
+    }
+
+    void add(String className, byte[] bytes) throws IOException {
+        entry(className.replace('.', '/') + ".class", bytes);
+    }
+
+    void addRuntime() throws IOException {
+        for (Class<?> c : RUNTIME) {
+            addClass(c);
+            for (Class<?> nested : c.getDeclaredClasses())
+                addClass(nested);
+        }
+    }
+
+    /**
+     * Tells native-image (see NativeImage) to keep classes' methods reachable by reflection, for a jar called name
+     */
+    void addReflectionConfig(String name, List<String> classes) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (String c : classes)
+            entries.add(String.format("  { \"name\": \"%s\", \"allDeclaredMethods\": true, \"allPublicMethods\": true }", c.replace('/', '.')));
+        String json = "[\n" + String.join(",\n", entries) + "\n]\n";
+        entry("META-INF/native-image/" + name + "/reflect-config.json", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void addClass(Class<?> c) throws IOException {
+        String path = c.getName().replace('.', '/') + ".class";
+        try (InputStream in = c.getClassLoader().getResourceAsStream(path)) {
+            if (in == null)
+                throw new IOException("Can't find " + path + " to bundle");
+            entry(path, readAll(in));
+        }
+    }
+
+    // Bytes of class data written so far
+    long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void entry(String path, byte[] bytes) throws IOException {
+        if (!written.add(path))
+            throw new IOException("Two classes named " + path);
+
+        // Stored rather than deflated, so loading a class is a plain read
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        JarEntry entry = new JarEntry(path);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        entry.setCrc(crc.getValue());
+
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+        size += bytes.length;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) != -1)
+            ret.write(buf, 0, read);
+        return ret.toByteArray();
+    }
+}
@@ -1,44 +1,457 @@
 package vlee12;
 
 import vlee12.compiler.CompileException;
+import vlee12.compiler.CompileStats;
 import vlee12.compiler.Compiler;
-import vlee12.parser.Fun;
+import vlee12.compiler.Options;
+import vlee12.compiler.Phase;
+import vlee12.compiler.ProfileData;
+import vlee12.interpreter.ExecutionPolicy;
+import vlee12.interpreter.Interpreter;
+import vlee12.parser.AstDumper;
 import vlee12.parser.Parser;
+import vlee12.parser.Program;
 
-import java.io.DataOutputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class Main {
 
     public static void main(String... args) {
-        if (args.length == 0)
+        new Main().run(args);
+    }
+
+    // Calls and loop iterations --precompute allows, a second or so of interpreting
+    private static final long DEFAULT_PRECOMPUTE_STEPS = 10_000_000;
+
+    // Most entries --memoize allows per table, each table is allocated in full when the class loads
+    private static final int MAX_MEMO_CAPACITY = 1 << 20;
+
+    // Copies of a loop body --unroll makes
+    private static final int DEFAULT_UNROLL = 4;
+
+    // Stack --trampoline gives main, plenty for millions of calls deep
+    private static final int DEFAULT_MAIN_STACK_MB = 1024;
+
+    // Most stack --trampoline allows, 64GB is already more than any machine running this has
+    private static final int MAX_MAIN_STACK_MB = 65536;
+
+    private final Options options = new Options();
+
+    // Set when the program should be run in-process instead of written out as a class
+    private ExecutionPolicy runPolicy = null;
+
+    // Set when the program should be rerun every time it's saved (see Watcher)
+    private boolean watch = false;
+
+    // Set when everything should go into one jar instead of loose classes
+    private Path jar = null;
+
+    // Set when the result should get a training run that dumps a CDS archive (see CdsArchive)
+    private boolean cds = false;
+    private Path cdsArchive = null;
+
+    // Set when the result should be built into a native executable (see NativeImage)
+    private boolean nativeImage = false;
+    private Path nativeExecutable = null;
+
+    // Where --dump-ast and --dump-bytecode go, files get closed and stdout flushed at the end
+    private Writer astDump = null;
+    private Writer stdout = null;
+    private final List<Writer> dumpFiles = new ArrayList<>();
+
+    private void run(String[] args) {
+        List<String> inputs = new ArrayList<>();
+        List<String> flags = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                if (!parseFlag(arg))
+                    return;
+                if (!arg.equals("--cds") && !arg.startsWith("--cds="))
+                    flags.add(arg);
+            } else {
+                inputs.add(arg);
+            }
+        }
+
+        if (inputs.isEmpty()) {
             System.err.println("Need input file!");
-        else if (validateArgs(args)) {
-            try {
-                Path p = Paths.get(args[0]);
-                List<Fun> funs = Parser.parse(Files.newBufferedReader(p));
-                funs.forEach(System.out::println);
+            return;
+        }
+        for (String input : inputs)
+            if (!validateArgs(input))
+                return;
+        if (watch && (runPolicy != null || jar != null || cds)) {
+            System.err.println("--watch runs the program itself, it can't be combined with --run, --jar or --cds");
+            return;
+        }
+        if (nativeImage && (runPolicy != null || watch || cds)) {
+            System.err.println("--native builds an executable, it can't be combined with --run, --watch or --cds");
+            return;
+        }
+        if (NativeImage.inImage()) {
+            // Nothing compiled after the executable was built can be loaded into it
+            if (watch || cds || (runPolicy != null && runPolicy != ExecutionPolicy.AUTO && runPolicy != ExecutionPolicy.INTERPRET)) {
+                System.err.println("The native fun2jvm can only --run=interpret, use fun2jvm.jar for the rest");
+                return;
+            }
+            if (runPolicy != null)
+                runPolicy = ExecutionPolicy.INTERPRET;
+        }
+        if ((runPolicy != null || watch) && inputs.size() > 1) {
+            System.err.println("Can only run one program at a time");
+            return;
+        }
+        if (cds && !CdsArchive.supported()) {
+            System.err.println("--cds needs JDK 13 or newer for -XX:ArchiveClassesAtExit");
+            return;
+        }
+
+        try {
+            if (watch) {
+                new Watcher(Paths.get(inputs.get(0)), options).watch();
+            } else if (cds) {
+                archive(inputs, flags);
+            } else if (nativeImage) {
+                buildNative(inputs);
+            } else if (runPolicy != null) {
+                runProgram(Paths.get(inputs.get(0)));
+            } else if (jar != null) {
+                writeJar(inputs);
+            } else {
+                for (String input : inputs)
+                    writeClass(Paths.get(input));
+            }
+        } catch (IOException | UncheckedIOException | CompileException | ReflectiveOperationException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeDumps();
+            if (options.stats != null)
+                options.stats.report(System.err);
+        }
+    }
+
+    /**
+     * Builds what --cds should archive, trains it and prints how to launch with the archive.
+     * With --run that's fun2jvm itself running the program (the compiler, interpreter and runtime classes),
+     * otherwise the program's jar, which defaults to being named after the first input.
+     */
+    private void archive(List<String> inputs, List<String> flags) throws IOException {
+        List<String> launch = new ArrayList<>();
+        String name = className(Paths.get(inputs.get(0)));
+        if (runPolicy != null) {
+            // The run happens in a fresh JVM instead, with the same flags
+            launch.add("-cp");
+            List<String> classPath = new ArrayList<>();
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                if (Files.isDirectory(Paths.get(entry)))
+                    throw new IOException("CDS only archives classes from jars, run fun2jvm from its jar instead of " + entry);
+                classPath.add(Paths.get(entry).toAbsolutePath().toString());
+            }
+            launch.add(String.join(File.pathSeparator, classPath));
+            launch.add(Main.class.getName());
+            launch.addAll(flags);
+            launch.add(Paths.get(inputs.get(0)).toAbsolutePath().toString());
+        } else {
+            if (jar == null)
+                jar = Paths.get(name + ".jar");
+            writeJar(inputs);
+            launch.add("-jar");
+            launch.add(jar.toAbsolutePath().toString());
+            name = jar.getFileName().toString().replaceFirst("\\.jar$", "");
+        }
+
+        CdsArchive archive = new CdsArchive(cdsArchive == null ? Paths.get(name + ".jsa") : cdsArchive, launch);
+        try (Phase phase = Phase.start(options.stats, "cds training", name)) {
+            archive.train();
+            phase.bytes(Files.size(archive.file()));
+        }
+        System.out.println(archive.launchCommand());
+    }
 
-                String name = p.getFileName().toString();
-                String realName = name.substring(0, name.indexOf(".fun"));
+    /**
+     * Builds the program's jar, which defaults to being named after the first input, into a native executable next
+     * to it with the same name, or wherever --native says.
+     */
+    private void buildNative(List<String> inputs) throws IOException {
+        String name = className(Paths.get(inputs.get(0)));
+        if (jar == null)
+            jar = Paths.get(name + ".jar");
+        writeJar(inputs);
 
-                byte[] byteCode = Compiler.compile(funs, realName);
-                try (DataOutputStream out = new DataOutputStream(new FileOutputStream(realName + ".class"))) {
-                    out.write(byteCode);
+        NativeImage image = new NativeImage(jar, nativeExecutable == null ? Paths.get(name) : nativeExecutable);
+        try (Phase phase = Phase.start(options.stats, "native image", name)) {
+            image.build();
+            phase.bytes(Files.size(image.executable()));
+        }
+        System.out.println(image.executable());
+    }
+
+    private Program parse(Path p) throws IOException {
+        Program program = Parser.parseProgram(Files.newBufferedReader(p), options.stats);
+        if (astDump != null) {
+            try (Phase phase = Phase.start(options.stats, "dump ast", className(p))) {
+                AstDumper dumper = new AstDumper(astDump);
+                dumper.dump(program);
+                phase.visited(dumper.nodes());
+            }
+        }
+        return program;
+    }
+
+    // Dumps go to stdout unless given a file
+    private Writer openDump(String file) throws IOException {
+        if (file != null) {
+            Writer ret = Files.newBufferedWriter(Paths.get(file));
+            dumpFiles.add(ret);
+            return ret;
+        }
+        if (stdout == null)
+            stdout = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        return stdout;
+    }
+
+    private void closeDumps() {
+        try {
+            for (Writer w : dumpFiles)
+                w.close();
+            if (stdout != null)
+                stdout.flush();
+        } catch (IOException ex) {
+            System.err.println("Couldn't finish writing a dump: " + ex);
+        }
+    }
+
+    private static String className(Path p) {
+        String name = p.getFileName().toString();
+        return name.substring(0, name.indexOf(".fun"));
+    }
+
+    private void runProgram(Path p) throws IOException, ReflectiveOperationException {
+        // Imported libraries are looked for where compiled classes get written, the working directory
+        URL cwd = Paths.get("").toAbsolutePath().toUri().toURL();
+        ClassLoader libraries = new URLClassLoader(new URL[] { cwd }, Main.class.getClassLoader());
+        Interpreter.run(parse(p), className(p), runPolicy, options, libraries);
+    }
+
+    private void writeClass(Path p) throws IOException {
+        String realName = className(p);
+
+        try (ClassFileWriter out = new ClassFileWriter(Paths.get(realName + ".class"))) {
+            ByteBuffer byteCode;
+            if (options.pipeline && astDump == null) {
+                // Compiles funs as they're parsed, the whole syntax tree never exists for --dump-ast to print
+                try (BufferedReader source = Files.newBufferedReader(p)) {
+                    byteCode = Compiler.compile(source, realName, options, out::allocate);
+                }
+            } else {
+                byteCode = Compiler.compile(parse(p), realName, options, out::allocate);
+            }
+            try (Phase phase = Phase.start(options.stats, "write", null)) {
+                out.write(byteCode);
+                phase.bytes(byteCode.position());
+            }
+        }
+    }
+
+    /**
+     * Compiles every input, and any library they import that sits next to them, into one executable jar.
+     * The first input with a main fun is what the jar runs.
+     */
+    private void writeJar(List<String> inputs) throws IOException {
+        Map<String, Program> programs = new LinkedHashMap<>();
+        Set<String> imported = new HashSet<>();
+        Deque<Path> todo = new ArrayDeque<>();
+        for (String input : inputs)
+            todo.add(Paths.get(input));
+
+        // Everything gets parsed up front, since whether a file is a library depends on who imports it
+        while (!todo.isEmpty()) {
+            Path p = todo.poll();
+            String name = className(p);
+            if (programs.containsKey(name))
+                continue;
+
+            Program program = parse(p);
+            programs.put(name, program);
+            for (String lib : program.imports) {
+                imported.add(lib);
+                Path libFile = p.resolveSibling(lib + ".fun");
+                if (Files.exists(libFile))
+                    todo.add(libFile);
+                else
+                    System.err.printf("%s isn't next to %s, it'll have to be on the classpath when the jar runs%n", libFile, p);
+            }
+        }
+
+        String mainClass = null;
+        for (Map.Entry<String, Program> e : programs.entrySet()) {
+            if (e.getValue().funs.stream().anyMatch(f -> "main".equals(f.name))) {
+                mainClass = e.getKey();
+                break;
+            }
+        }
+
+        boolean needsRuntime = !options.selfContained || !imported.isEmpty();
+        try (JarWriter out = new JarWriter(jar, mainClass)) {
+            for (Map.Entry<String, Program> e : programs.entrySet()) {
+                Options programOptions = options;
+                if (imported.contains(e.getKey())) {
+                    programOptions = options.copy();
+                    programOptions.library = true;
+                }
+
+                // Each class goes into the jar as soon as it's compiled
+                byte[] byteCode = Compiler.compile(e.getValue(), e.getKey(), programOptions);
+                try (Phase phase = Phase.start(options.stats, "write", e.getKey())) {
+                    out.add(e.getKey(), byteCode);
+                    phase.bytes(byteCode.length);
+                }
+            }
+
+            if (nativeImage) {
+                // Imports are found by name when first called (see Linker), which native-image has to be told about
+                List<String> classes = new ArrayList<>(programs.keySet());
+                if (needsRuntime)
+                    classes.add("java.util.concurrent.Executors"); // see Tasks.executor
+                out.addReflectionConfig(programs.keySet().iterator().next(), classes);
+            }
+
+            if (needsRuntime) {
+                try (Phase phase = Phase.start(options.stats, "write", "runtime")) {
+                    long before = out.size();
+                    out.addRuntime();
+                    phase.bytes(out.size() - before);
                 }
-            } catch (IOException | CompileException ex) {
-                ex.printStackTrace();
             }
         }
     }
 
-    private static boolean validateArgs(String[] args) {
-        if (!args[0].contains(".fun")) {
+    private boolean parseFlag(String arg) {
+        int eq = arg.indexOf('=');
+        String flag = eq == -1 ? arg : arg.substring(0, eq);
+        String value = eq == -1 ? null : arg.substring(eq + 1);
+
+        try {
+            switch (flag) {
+                case "--memoize": {
+                    options.memoize = true;
+                    if (value != null)
+                        options.memoCapacity = Integer.parseInt(value);
+                    if (options.memoCapacity < 1 || options.memoCapacity > MAX_MEMO_CAPACITY)
+                        throw new IllegalArgumentException();
+                    return true;
+                }
+                case "--report": options.report = System.err; return true;
+                case "--pack-globals-above": {
+                    if (value == null)
+                        throw new IllegalArgumentException();
+                    options.packGlobalsAbove = Integer.parseInt(value);
+                    if (options.packGlobalsAbove < 0)
+                        throw new IllegalArgumentException();
+                    return true;
+                }
+                case "--unroll": {
+                    options.unroll = value == null ? DEFAULT_UNROLL : Integer.parseInt(value);
+                    if (options.unroll < 0)
+                        throw new IllegalArgumentException();
+                    return true;
+                }
+                case "--trampoline": {
+                    options.trampoline = true;
+                    options.mainStackMegabytes = value == null ? DEFAULT_MAIN_STACK_MB : Integer.parseInt(value);
+                    if (options.mainStackMegabytes < 0 || options.mainStackMegabytes > MAX_MAIN_STACK_MB)
+                        throw new IllegalArgumentException();
+                    return true;
+                }
+                case "--precompute": {
+                    options.precomputeSteps = value == null ? DEFAULT_PRECOMPUTE_STEPS : Long.parseLong(value);
+                    if (options.precomputeSteps < 0)
+                        throw new IllegalArgumentException();
+                    return true;
+                }
+                case "--debug": {
+                    if (value == null || !Arrays.asList("none", "lines", "vars").contains(value))
+                        throw new IllegalArgumentException();
+                    options.lineNumbers = !value.equals("none");
+                    options.localNames = value.equals("vars");
+                    return true;
+                }
+                case "--native": {
+                    nativeImage = true;
+                    if (value != null)
+                        nativeExecutable = Paths.get(value);
+                    return true;
+                }
+                case "--watch": watch = true; return true;
+                case "--self-contained": options.selfContained = true; return true;
+                case "--library": options.library = true; return true;
+                case "--profile": options.profile = true; return true;
+                case "--pipeline": options.pipeline = true; return true;
+                case "--stats": options.stats = new CompileStats(); return true;
+                case "--dump-ast": astDump = openDump(value); return true;
+                case "--dump-bytecode": options.disassembly = openDump(value); return true;
+                case "--use-profile": {
+                    if (value == null)
+                        throw new IllegalArgumentException();
+                    options.pgo = ProfileData.read(Paths.get(value));
+                    return true;
+                }
+                case "--jar": {
+                    if (value == null)
+                        throw new IllegalArgumentException();
+                    jar = Paths.get(value);
+                    return true;
+                }
+                case "--cds": {
+                    cds = true;
+                    if (value != null)
+                        cdsArchive = Paths.get(value);
+                    return true;
+                }
+                case "--run": {
+                    runPolicy = value == null ? ExecutionPolicy.AUTO : ExecutionPolicy.valueOf(value.toUpperCase(Locale.ROOT));
+                    return true;
+                }
+                default: {
+                    System.err.println("Unknown flag " + arg);
+                    return false;
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Bad value for " + arg);
+            return false;
+        } catch (IOException ex) {
+            System.err.println("Couldn't open " + value + ": " + ex);
+            return false;
+        }
+    }
+
+    private static boolean validateArgs(String input) {
+        if (!input.contains(".fun")) {
             System.err.println("Must be a .fun file");
             return false;
         }
@@ -0,0 +1,96 @@
+package vlee12;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns an executable jar into a native executable with GraalVM's native-image, which compiles every class in it
+ * ahead of time. The result starts in milliseconds, with no JVM to boot and nothing to interpret while it warms up.
+ *
+ * The catch is that it can't load classes it didn't see while being built. Compiled fun programs never do, but
+ * fun2jvm itself does whenever it runs what it compiled, so a native fun2jvm only compiles, and runs programs
+ * with the interpreter (see Main).
+ */
+final class NativeImage {
+
+    private final Path jar;
+    private final Path executable;
+
+    NativeImage(Path jar, Path executable) {
+        this.jar = jar.toAbsolutePath();
+        this.executable = executable.toAbsolutePath();
+    }
+
+    /**
+     * Whether this is running as a native executable rather than on a JVM
+     */
+    static boolean inImage() {
+        return System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+    }
+
+    /**
+     * Builds the executable. native-image says what it's doing on stderr, since it takes a while.
+     */
+    void build() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(tool());
+        command.add("--no-fallback"); // otherwise a program that can't be compiled ahead of time quietly needs a JVM after all
+        command.add("-jar");
+        command.add(jar.toString());
+        command.add(executable.getFileName().toString());
+
+        Files.createDirectories(executable.getParent());
+        Process build;
+        try {
+            build = new ProcessBuilder(command)
+                    .directory(executable.getParent().toFile())
+                    .redirectErrorStream(true)
+                    .start();
+        } catch (IOException ex) {
+            throw new IOException("Couldn't run " + command.get(0) + ", it comes with GraalVM, point GRAALVM_HOME at one", ex);
+        }
+        try (InputStream out = build.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = out.read(buffer)) != -1)
+                System.err.write(buffer, 0, read);
+        }
+
+        try {
+            int status = build.waitFor();
+            if (status != 0)
+                throw new IOException("native-image exited with " + status + ": " + String.join(" ", command));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted building " + executable);
+        }
+    }
+
+    Path executable() {
+        return executable;
+    }
+
+    // GraalVM's own, then the JDK's running us if that is GraalVM, then whatever the PATH has
+    private static String tool() {
+        String name = System.getProperty("os.name").startsWith("Windows") ? "native-image.cmd" : "native-image";
+        List<String> homes = new ArrayList<>();
+        homes.add(System.getenv("GRAALVM_HOME"));
+        homes.add(System.getenv("JAVA_HOME"));
+        if (!inImage())
+            homes.add(System.getProperty("java.home"));
+        for (String home : homes) {
+            if (home == null || home.isEmpty())
+                continue;
+            Path ret = Paths.get(home, "bin", name);
+            if (Files.isExecutable(ret))
+                return ret.toString();
+        }
+        return name;
+    }
+}
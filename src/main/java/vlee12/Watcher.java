@@ -0,0 +1,322 @@
+package vlee12;
+
+import vlee12.compiler.Compiler;
+import vlee12.compiler.Options;
+import vlee12.parser.Fun;
+import vlee12.parser.Parser;
+import vlee12.parser.Program;
+import vlee12.runtime.FunRuntime;
+import vlee12.runtime.ProgramLoader;
+
+import java.io.BufferedReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * --watch: runs a program, then again every time its .fun file, or a library next to it that it imports, is saved.
+ * It all happens in one JVM, so an edit costs a parse and a compile instead of a JVM starting up and warming up.
+ *
+ * Only files whose funs actually changed get compiled again, the rest keep their classes from last time.
+ * If the program is still running when an edit lands (it's stuck in a long loop, say) and fun2jvm was started from
+ * its jar, which makes this its instrumentation agent (see build.gradle), the new classes replace the running ones
+ * in place: calls from then on run the new code, and globals keep their values. Funs in the middle of running finish
+ * on their old code, which the JVM won't compile any more, so a long loop that's already going gets slower until it
+ * returns. The JVM only allows swapping while every method and field stays the same, so changing formals, adding a
+ * fun or a global, or anything the compiler turns into extra methods (memoizing, outlining, parallel loops) needs a
+ * fresh start in a new ProgramLoader instead.
+ * A run that's being replaced can't be stopped, so it carries on in the background with its output dropped.
+ */
+public final class Watcher {
+
+    // How long files have to go quiet before rebuilding, editors tend to save in several steps
+    private static final long SETTLE_MS = 50;
+
+    // Set when running as an agent, null otherwise
+    private static volatile Instrumentation instrumentation = null;
+
+    /**
+     * Entry point as the jar's Launcher-Agent-Class, which the JVM calls before main when run with java -jar
+     */
+    public static void agentmain(String args, Instrumentation inst) {
+        instrumentation = inst;
+    }
+
+    private final Path main;
+    private final Options options;
+    private final Map<Path, Source> sources = new LinkedHashMap<>(); // main first, then the libraries it imports
+    private Run current = null;
+
+    Watcher(Path main, Options options) {
+        this.main = main.toAbsolutePath().normalize();
+        this.options = options;
+    }
+
+    /**
+     * Runs the program and reruns it on every change, until interrupted
+     */
+    void watch() throws IOException {
+        try (WatchService service = main.getFileSystem().newWatchService()) {
+            // Registered up front, so a program that doesn't compile yet is still watched for its fix
+            Set<Path> watched = new HashSet<>(Collections.singleton(main.getParent()));
+            main.getParent().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+            Set<Path> changed = Collections.singleton(main);
+            while (true) {
+                long start = System.nanoTime();
+                Map<Path, Source> updated = rebuild(changed);
+                if (!updated.isEmpty())
+                    swap(updated, start);
+
+                for (Path p : sources.keySet())
+                    if (watched.add(p.getParent()))
+                        p.getParent().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+                changed = changes(service);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits for sources to change, then until they've stopped changing
+    private Set<Path> changes(WatchService service) throws InterruptedException {
+        Set<Path> ret = new HashSet<>();
+        while (ret.isEmpty()) {
+            for (WatchKey key = service.take(); key != null; key = service.poll(SETTLE_MS, TimeUnit.MILLISECONDS)) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Path p = ((Path) key.watchable()).resolve(String.valueOf(event.context()));
+                    if (p.equals(main) || sources.containsKey(p))
+                        ret.add(p);
+                }
+                key.reset();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Parses the changed files, and any new library they import, and compiles the ones whose funs are different now.
+     * Returns those, or nothing if nothing changed or something doesn't compile, in which case the last version stays.
+     */
+    private Map<Path, Source> rebuild(Set<Path> changed) {
+        Map<Path, Source> ret = new LinkedHashMap<>();
+        Deque<Path> todo = new ArrayDeque<>(changed);
+        Set<Path> seen = new HashSet<>();
+        try {
+            while (!todo.isEmpty()) {
+                Path p = todo.poll();
+                if (!seen.add(p))
+                    continue;
+
+                Program program;
+                try (BufferedReader in = Files.newBufferedReader(p)) {
+                    program = Parser.parseProgram(in, options.stats);
+                }
+                for (String lib : program.imports) {
+                    Path libFile = p.resolveSibling(lib + ".fun");
+                    if (!sources.containsKey(libFile) && Files.exists(libFile))
+                        todo.add(libFile);
+                }
+
+                Source old = sources.get(p);
+                Source source = new Source(p, program);
+                Set<String> names = new HashSet<>(source.funs.keySet());
+                if (old != null)
+                    names.addAll(old.funs.keySet());
+                for (String name : names)
+                    if (old == null || !String.valueOf(old.funs.get(name)).equals(String.valueOf(source.funs.get(name))))
+                        source.changed.add(name);
+                Collections.sort(source.changed);
+                if (old == null || !source.changed.isEmpty() || !old.program.imports.equals(program.imports))
+                    ret.put(p, source);
+            }
+
+            for (Source source : ret.values()) {
+                Options sourceOptions = options;
+                if (!source.path.equals(main)) {
+                    sourceOptions = options.copy();
+                    sourceOptions.library = true;
+                }
+                source.bytes = Compiler.compile(source.program, source.className, sourceOptions);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // The parser already said where, if it was the parser
+            System.err.printf("keeping the last version until it compiles%s%n", ex.getMessage() == null ? "" : ": " + ex.getMessage());
+            return Collections.emptyMap();
+        }
+
+        sources.putAll(ret);
+        return ret;
+    }
+
+    // Puts updated into the running program if it's still going and can take it, otherwise starts over
+    private void swap(Map<Path, Source> updated, long start) {
+        if (current != null && current.thread.isAlive() && redefine(updated)) {
+            System.err.printf("changed %s in the running program after %d ms%n", describe(updated), elapsedMs(start));
+            return;
+        }
+        if (current != null && current.thread.isAlive()) {
+            current.output.close();
+            System.err.println("the last run is still going in the background, its output is dropped from now on");
+        }
+
+        String what = current == null ? "running " + sources.get(main).className : "rerunning with changes to " + describe(updated);
+        current = new Run(libraries());
+        System.err.printf("%s, compiled in %d ms%n", what, elapsedMs(start));
+        current.thread.start();
+    }
+
+    private boolean redefine(Map<Path, Source> updated) {
+        if (instrumentation == null)
+            return false;
+        try {
+            List<ClassDefinition> definitions = new ArrayList<>();
+            for (Source source : updated.values())
+                definitions.add(new ClassDefinition(Class.forName(source.className, false, current.loader), source.bytes));
+            instrumentation.redefineClasses(definitions.toArray(new ClassDefinition[0]));
+            return true;
+        } catch (ClassNotFoundException | UnmodifiableClassException | UnsupportedOperationException | LinkageError ex) {
+            return false; // A new library, or the class changed shape
+        }
+    }
+
+    // Imports that aren't next to the program come from compiled classes in the working directory, as with --run
+    private ClassLoader libraries() {
+        Set<String> ours = new HashSet<>();
+        for (Source source : sources.values())
+            ours.add(source.className);
+        try {
+            URL cwd = Paths.get("").toAbsolutePath().toUri().toURL();
+            return new URLClassLoader(new URL[] { cwd }, Watcher.class.getClassLoader()) {
+                @Override
+                protected Class<?> findClass(String name) throws ClassNotFoundException {
+                    if (ours.contains(name))
+                        throw new ClassNotFoundException(name); // a stale copy, the run has the one from source
+                    return super.findClass(name);
+                }
+            };
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // Impossible, it's a file: URL
+        }
+    }
+
+    private static String describe(Map<Path, Source> updated) {
+        List<String> ret = new ArrayList<>();
+        for (Source source : updated.values())
+            ret.add(source.changed.isEmpty() ? source.className : String.join(", ", source.changed) + " in " + source.className);
+        return String.join("; ", ret);
+    }
+
+    private static long elapsedMs(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static final class Source {
+        final Path path;
+        final String className;
+        final Program program;
+        final Map<String, String> funs = new LinkedHashMap<>(); // each fun's syntax tree, to tell whether it changed
+        final List<String> changed = new ArrayList<>(); // since the last version, added and removed ones too
+        byte[] bytes;
+
+        Source(Path path, Program program) {
+            String file = path.getFileName().toString();
+            this.path = path;
+            this.className = file.substring(0, file.indexOf(".fun"));
+            this.program = program;
+            for (Fun f : program.funs)
+                funs.put(f.name, f.toString());
+        }
+    }
+
+    // One run of the program, on its own thread, in its own loader, with its own output
+    private final class Run {
+        final ProgramLoader loader;
+        final Gate output = new Gate(System.out);
+        final Thread thread;
+
+        Run(ClassLoader libraries) {
+            loader = new ProgramLoader(libraries);
+            for (Source source : sources.values())
+                if (!source.path.equals(main))
+                    loader.add(source.className, source.bytes);
+            Source program = sources.get(main);
+            Class<?> mainClass = loader.define(program.className, program.bytes);
+
+            PrintStream out = new PrintStream(output, true);
+            thread = new Thread(() -> {
+                FunRuntime.setOutput(out);
+                long start = System.nanoTime();
+                try {
+                    mainClass.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+                } catch (InvocationTargetException ex) {
+                    ex.getCause().printStackTrace();
+                } catch (ReflectiveOperationException ex) {
+                    ex.printStackTrace();
+                } finally {
+                    out.flush();
+                    if (output.open)
+                        System.err.printf("%s finished in %d ms, watching for changes%n", program.className, elapsedMs(start));
+                }
+            }, "fun-watch-" + program.className);
+            thread.setDaemon(true);
+        }
+    }
+
+    // Lets a run's output through until it's been replaced
+    private static final class Gate extends FilterOutputStream {
+        volatile boolean open = true;
+
+        Gate(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (open)
+                out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (open)
+                out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (open)
+                out.flush();
+        }
+
+        @Override
+        public void close() {
+            open = false; // System.out stays open
+        }
+    }
+}
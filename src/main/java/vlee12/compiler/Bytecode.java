@@ -0,0 +1,188 @@
+package vlee12.compiler;
+
+/**
+ * Opcode names and instruction lengths, for code that reads back the bytecode we wrote (StackMaps, Disassembler),
+ * and the one rewrite the compiler does on finished code, padding switches (see padSwitches)
+ */
+final class Bytecode {
+
+    static final String[] NAMES = {
+        "nop", "aconst_null", "iconst_m1", "iconst_0", "iconst_1", "iconst_2", "iconst_3", "iconst_4",
+        "iconst_5", "lconst_0", "lconst_1", "fconst_0", "fconst_1", "fconst_2", "dconst_0", "dconst_1",
+        "bipush", "sipush", "ldc", "ldc_w", "ldc2_w", "iload", "lload", "fload",
+        "dload", "aload", "iload_0", "iload_1", "iload_2", "iload_3", "lload_0", "lload_1",
+        "lload_2", "lload_3", "fload_0", "fload_1", "fload_2", "fload_3", "dload_0", "dload_1",
+        "dload_2", "dload_3", "aload_0", "aload_1", "aload_2", "aload_3", "iaload", "laload",
+        "faload", "daload", "aaload", "baload", "caload", "saload", "istore", "lstore",
+        "fstore", "dstore", "astore", "istore_0", "istore_1", "istore_2", "istore_3", "lstore_0",
+        "lstore_1", "lstore_2", "lstore_3", "fstore_0", "fstore_1", "fstore_2", "fstore_3", "dstore_0",
+        "dstore_1", "dstore_2", "dstore_3", "astore_0", "astore_1", "astore_2", "astore_3", "iastore",
+        "lastore", "fastore", "dastore", "aastore", "bastore", "castore", "sastore", "pop",
+        "pop2", "dup", "dup_x1", "dup_x2", "dup2", "dup2_x1", "dup2_x2", "swap",
+        "iadd", "ladd", "fadd", "dadd", "isub", "lsub", "fsub", "dsub",
+        "imul", "lmul", "fmul", "dmul", "idiv", "ldiv", "fdiv", "ddiv",
+        "irem", "lrem", "frem", "drem", "ineg", "lneg", "fneg", "dneg",
+        "ishl", "lshl", "ishr", "lshr", "iushr", "lushr", "iand", "land",
+        "ior", "lor", "ixor", "lxor", "iinc", "i2l", "i2f", "i2d",
+        "l2i", "l2f", "l2d", "f2i", "f2l", "f2d", "d2i", "d2l",
+        "d2f", "i2b", "i2c", "i2s", "lcmp", "fcmpl", "fcmpg", "dcmpl",
+        "dcmpg", "ifeq", "ifne", "iflt", "ifge", "ifgt", "ifle", "if_icmpeq",
+        "if_icmpne", "if_icmplt", "if_icmpge", "if_icmpgt", "if_icmple", "if_acmpeq", "if_acmpne", "goto",
+        "jsr", "ret", "tableswitch", "lookupswitch", "ireturn", "lreturn", "freturn", "dreturn",
+        "areturn", "return", "getstatic", "putstatic", "getfield", "putfield", "invokevirtual", "invokespecial",
+        "invokestatic", "invokeinterface", "invokedynamic", "new", "newarray", "anewarray", "arraylength", "athrow",
+        "checkcast", "instanceof", "monitorenter", "monitorexit", "wide", "multianewarray", "ifnull", "ifnonnull",
+        "goto_w", "jsr_w",
+    };
+
+    static String name(int opcode) {
+        return opcode < NAMES.length ? NAMES[opcode] : String.format("<0x%02X>", opcode);
+    }
+
+    static int u1(byte[] code, int pc) {
+        return code[pc] & 0xFF;
+    }
+
+    static int s2(byte[] code, int pc) {
+        return (short) ((code[pc] & 0xFF) << 8 | code[pc + 1] & 0xFF);
+    }
+
+    static int u2(byte[] code, int pc) {
+        return s2(code, pc) & 0xFFFF;
+    }
+
+    static int s4(byte[] code, int pc) {
+        return (code[pc] & 0xFF) << 24 | (code[pc + 1] & 0xFF) << 16 | (code[pc + 2] & 0xFF) << 8 | code[pc + 3] & 0xFF;
+    }
+
+    // if<cond>, if_icmp<cond>, if_acmp<cond>, goto, jsr, ifnull, ifnonnull: a 16-bit offset
+    static boolean isBranch(int op) {
+        return op >= 0x99 && op <= 0xA8 || op == 0xC6 || op == 0xC7;
+    }
+
+    // Where a tableswitch or lookupswitch's operands start, they're aligned to 4 bytes from the start of the method
+    static int switchOperands(int pc) {
+        return (pc + 4) & ~3;
+    }
+
+    /**
+     * Length in bytes of the instruction at pc, operands included
+     */
+    static int length(byte[] code, int pc) {
+        int op = u1(code, pc);
+        switch (op) {
+            case 0x10: case 0x12: case 0xA9: case 0xBC: // bipush, ldc, ret, newarray
+                return 2;
+            case 0x11: case 0x13: case 0x14: case 0x84: // sipush, ldc_w, ldc2_w, iinc
+            case 0xB2: case 0xB3: case 0xB4: case 0xB5: case 0xB6: case 0xB7: case 0xB8: // field and method refs
+            case 0xBB: case 0xBD: case 0xC0: case 0xC1: // new, anewarray, checkcast, instanceof
+                return 3;
+            case 0xC5: // multianewarray
+                return 4;
+            case 0xB9: case 0xBA: case 0xC8: case 0xC9: // invokeinterface, invokedynamic, goto_w, jsr_w
+                return 5;
+            case 0xC4: // wide
+                return u1(code, pc + 1) == 0x84 ? 6 : 4;
+            case 0xAA: { // tableswitch
+                int p = switchOperands(pc);
+                return p - pc + 12 + 4 * (s4(code, p + 8) - s4(code, p + 4) + 1);
+            }
+            case 0xAB: { // lookupswitch
+                int p = switchOperands(pc);
+                return p - pc + 8 + 8 * s4(code, p + 4);
+            }
+            default:
+                if (op >= 0x15 && op <= 0x19 || op >= 0x36 && op <= 0x3A) // loads and stores with an index
+                    return 2;
+                return isBranch(op) ? 3 : 1;
+        }
+    }
+
+    /**
+     * The compiler writes tableswitch and lookupswitch without the padding before their operands, since it glues
+     * methods together from pieces that don't know where in the method they'll end up. Once a method is whole this
+     * pads every switch out so its operands are aligned, and moves every jump over the padding to match.
+     * Code without switches comes back as it was.
+     */
+    static byte[] padSwitches(byte[] code) {
+        int[] moved = layout(code);
+        return moved == null ? code : padSwitches(code, moved);
+    }
+
+    /**
+     * Where each instruction of code ends up once its switches are padded, by where it is now, with an entry for
+     * the end of the code too. Null if it has no switches, so nothing moves.
+     */
+    static int[] layout(byte[] code) {
+        int[] moved = new int[code.length + 1];
+        boolean padded = false;
+        int pc = 0;
+        int to = 0;
+        while (pc < code.length) {
+            moved[pc] = to;
+            int op = u1(code, pc);
+            if (op == 0xAA || op == 0xAB) {
+                to += switchOperands(to) - to - 1;
+                padded = true;
+            }
+            int length = unpaddedLength(code, pc);
+            pc += length;
+            to += length;
+        }
+        moved[pc] = to;
+        return padded ? moved : null;
+    }
+
+    // padSwitches given its layout
+    static byte[] padSwitches(byte[] code, int[] moved) {
+        byte[] ret = new byte[moved[code.length]];
+        int pc = 0;
+        while (pc < code.length) {
+            int op = u1(code, pc);
+            int at = moved[pc];
+            int length = unpaddedLength(code, pc);
+            if (op == 0xAA || op == 0xAB) {
+                ret[at] = (byte) op;
+                int p = switchOperands(at);
+                System.arraycopy(code, pc + 1, ret, p, length - 1);
+                // The default, then offsets from 12 on: after low and high, or after npairs and each pair's key
+                int stride = op == 0xAA ? 4 : 8;
+                int count = op == 0xAA ? s4(code, pc + 9) - s4(code, pc + 5) + 1 : s4(code, pc + 5);
+                put4(ret, p, moved[pc + s4(code, pc + 1)] - at);
+                for (int i = 0; i < count; i++)
+                    put4(ret, p + 12 + stride * i, moved[pc + s4(code, pc + 13 + stride * i)] - at);
+            } else {
+                System.arraycopy(code, pc, ret, at, length);
+                if (isBranch(op)) {
+                    int offset = moved[pc + s2(code, pc + 1)] - at;
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                        throw new CompileException("Branch offset too large");
+                    ret[at + 1] = (byte) (offset >>> 8);
+                    ret[at + 2] = (byte) offset;
+                } else if (op == 0xC8 || op == 0xC9) {
+                    put4(ret, at + 1, moved[pc + s4(code, pc + 1)] - at);
+                }
+            }
+            pc += length;
+        }
+        return ret;
+    }
+
+    // Like length, but with switches as the compiler writes them, operands straight after the opcode
+    private static int unpaddedLength(byte[] code, int pc) {
+        switch (u1(code, pc)) {
+            case 0xAA: return 1 + 12 + 4 * (s4(code, pc + 9) - s4(code, pc + 5) + 1);
+            case 0xAB: return 1 + 8 + 8 * s4(code, pc + 5);
+            default: return length(code, pc);
+        }
+    }
+
+    private static void put4(byte[] code, int at, int value) {
+        code[at] = (byte) (value >>> 24);
+        code[at + 1] = (byte) (value >>> 16);
+        code[at + 2] = (byte) (value >>> 8);
+        code[at + 3] = (byte) value;
+    }
+
+    private Bytecode() {}
+}
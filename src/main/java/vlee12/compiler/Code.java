@@ -0,0 +1,149 @@
+package vlee12.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A code buffer that knows about branch targets.
+ * Most of the compiler glues together ByteArrayOutputStreams and computes relative jumps from their sizes,
+ * which works fine for structured code. Longer generated helpers with several jumps to the same place
+ * are much easier to write with labels, so this lets a jump be emitted before its target is known
+ * and patches the 16-bit offset once the label is marked. Switches get their 32-bit offsets patched the same way.
+ */
+class Code extends ByteArrayOutputStream {
+
+    static class Label {
+        private int position = -1;
+        private final List<Integer> fixups = new ArrayList<>(); // offsets of branch opcodes waiting on us
+        private final List<int[]> wideFixups = new ArrayList<>(); // { where the offset goes, the switch it's from }
+    }
+
+    Code() {
+        super();
+    }
+
+    Label newLabel() {
+        return new Label();
+    }
+
+    /**
+     * Binds the label to the current position and patches every jump that was waiting on it
+     */
+    void mark(Label label) {
+        if (label.position != -1)
+            throw new CompileException("Label marked twice");
+        label.position = count;
+        for (int insn : label.fixups)
+            patch(insn, label.position - insn);
+        label.fixups.clear();
+        for (int[] fixup : label.wideFixups)
+            patch4(fixup[0], label.position - fixup[1]);
+        label.wideFixups.clear();
+    }
+
+    /**
+     * Writes a branch instruction (goto, ifeq, if_icmpne, ...) jumping to label
+     */
+    void jump(int opcode, Label label) {
+        int insn = count;
+        write(opcode);
+        if (label.position == -1) {
+            label.fixups.add(insn);
+            u2(0);
+        } else {
+            u2(label.position - insn);
+        }
+    }
+
+    /**
+     * Points the branch at insn, written with no target (see Compiler.tailCall), at label, which is marked already
+     */
+    void retarget(int insn, Label label) {
+        patch(insn, label.position - insn);
+    }
+
+    /**
+     * Writes a tableswitch where low + i goes to targets[i] and anything else to otherwise.
+     * It's left without the padding in front of its operands, see Bytecode.padSwitches.
+     */
+    void tableSwitch(int low, Label otherwise, Label[] targets) {
+        int insn = count;
+        write(0xAA);
+        offset(insn, otherwise);
+        u4(low);
+        u4(low + targets.length - 1);
+        for (Label target : targets)
+            offset(insn, target);
+    }
+
+    /**
+     * Writes a lookupswitch where keys[i] goes to targets[i] and anything else to otherwise, keys in ascending order.
+     * It's left without the padding in front of its operands, see Bytecode.padSwitches.
+     */
+    void lookupSwitch(int[] keys, Label otherwise, Label[] targets) {
+        int insn = count;
+        write(0xAB);
+        offset(insn, otherwise);
+        u4(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            u4(keys[i]);
+            offset(insn, targets[i]);
+        }
+    }
+
+    // A switch's 32-bit offset from insn to label
+    private void offset(int insn, Label label) {
+        if (label.position == -1) {
+            label.wideFixups.add(new int[] { count, insn });
+            u4(0);
+        } else {
+            u4(label.position - insn);
+        }
+    }
+
+    void u2(int value) {
+        write(value >>> 8 & 0xFF);
+        write(value & 0xFF);
+    }
+
+    void u4(int value) {
+        write(value >>> 24 & 0xFF);
+        write(value >>> 16 & 0xFF);
+        write(value >>> 8 & 0xFF);
+        write(value & 0xFF);
+    }
+
+    /**
+     * Pushes an int using the shortest form that doesn't need the constant pool,
+     * returns false if the caller has to ldc it instead
+     */
+    boolean pushSmall(int value) {
+        if (value >= -1 && value <= 5) {
+            write(0x03 + value); // iconst_m1 .. iconst_5
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            write(0x10); // bipush
+            write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            write(0x11); // sipush
+            u2(value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void patch(int insn, int offset) {
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+            throw new CompileException("Branch offset too large");
+        buf[insn + 1] = (byte) (offset >>> 8);
+        buf[insn + 2] = (byte) offset;
+    }
+
+    private void patch4(int at, int offset) {
+        buf[at] = (byte) (offset >>> 24);
+        buf[at + 1] = (byte) (offset >>> 16);
+        buf[at + 2] = (byte) (offset >>> 8);
+        buf[at + 3] = (byte) offset;
+    }
+}
@@ -0,0 +1,52 @@
+package vlee12.compiler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the phases of one or more compiles for the --stats summary.
+ */
+public final class CompileStats {
+
+    // How many of the slowest funs to list individually
+    private static final int SLOWEST_FUNS = 10;
+
+    private final List<Phase> phases = new ArrayList<>();
+
+    synchronized void add(Phase phase) {
+        phases.add(phase);
+    }
+
+    public synchronized void report(PrintStream out) {
+        Map<String, long[]> totals = new LinkedHashMap<>(); // phase name -> count, nanos, bytes, nodes, allocated
+        for (Phase p : phases) {
+            long[] total = totals.computeIfAbsent(p.name, k -> new long[5]);
+            total[0]++;
+            total[1] += p.durationNanos;
+            total[2] += p.bytes;
+            total[3] += p.nodes;
+            total[4] += p.allocatedBytes;
+        }
+
+        out.printf("%-16s %8s %12s %12s %12s %14s%n", "phase", "count", "time (ms)", "bytes", "nodes", "allocated");
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            long[] t = e.getValue();
+            out.printf("%-16s %8d %12.3f %12d %12d %14d%n", e.getKey(), t[0], t[1] / 1e6, t[2], t[3], t[4]);
+        }
+
+        List<Phase> funs = new ArrayList<>();
+        for (Phase p : phases)
+            if ("codegen".equals(p.name))
+                funs.add(p);
+        if (!funs.isEmpty()) {
+            funs.sort(Comparator.comparingLong((Phase p) -> p.durationNanos).reversed());
+            out.printf("slowest funs to generate:%n");
+            for (Phase p : funs.subList(0, Math.min(SLOWEST_FUNS, funs.size())))
+                out.printf("%12.3f ms  %s (%d bytes, %d nodes, %d allocated)%n", p.durationNanos / 1e6, p.subject, p.bytes, p.nodes, p.allocatedBytes);
+        }
+    }
+}
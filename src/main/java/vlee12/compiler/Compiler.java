@@ -1,20 +1,41 @@
 package vlee12.compiler;
 
+import vlee12.interpreter.Interpreter;
 import vlee12.parser.Expression;
 import vlee12.parser.ExpressionType;
 import vlee12.parser.Fun;
+import vlee12.parser.Parser;
+import vlee12.parser.Program;
 import vlee12.parser.Statement;
+import vlee12.parser.StatementType;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.IntFunction;
 
 import static vlee12.parser.ExpressionType.EQ;
 import static vlee12.parser.ExpressionType.GT;
@@ -23,18 +44,226 @@ import static vlee12.parser.ExpressionType.NE;
 
 public class Compiler {
     public static byte[] compile(List<Fun> funs, String className) {
-        return new Compiler(funs, className).genHex();
+        return compile(funs, className, new Options());
     }
 
+    public static byte[] compile(List<Fun> funs, String className, Options options) {
+        return compile(new Program(Collections.emptyList(), funs), className, options);
+    }
+
+    public static byte[] compile(Program program, String className, Options options) {
+        return compile(program, className, options, ByteBuffer::allocate).array();
+    }
+
+    /**
+     * Compiles into the buffer allocate hands back for the class's exact size, e.g. one mapping the output file,
+     * so the finished class exists once instead of being copied from buffer to buffer. Returns it, positioned at its end.
+     */
+    public static ByteBuffer compile(Program program, String className, Options options, IntFunction<ByteBuffer> allocate) {
+        try {
+            return disassemble(new Compiler(program, className, options).genHex(allocate), className, options);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Parses source and compiles it like compile above. With Options.pipeline the parser runs on a thread of its own
+     * and hands each fun over as soon as it's parsed, and its method is generated while the rest of the file is
+     * still being read, unless one of the options needing the whole program first is set too. A fun that calls one
+     * further down waits for it. Only what a call needs (name and formals) is kept of a fun once it's generated.
+     */
+    public static ByteBuffer compile(BufferedReader source, String className, Options options, IntFunction<ByteBuffer> allocate) {
+        String wholeProgram = options.pipeline ? wholeProgramOption(options) : null;
+        if (!options.pipeline || wholeProgram != null) {
+            if (wholeProgram != null && options.report != null)
+                options.report.printf("not pipelining %s, %s needs the whole program first%n", className, wholeProgram);
+            return compile(Parser.parseProgram(source, options.stats), className, options, allocate);
+        }
+
+        BlockingQueue<Fun> parsed = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        FutureTask<Program> parser = new FutureTask<>(() -> {
+            try {
+                return Parser.parseProgram(source, options.stats, fun -> {
+                    try {
+                        parsed.put(fun);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt(); // so the put below doesn't wait either
+                        throw new CancellationException();
+                    }
+                });
+            } finally {
+                parsed.put(END_OF_FUNS);
+            }
+        });
+        Thread thread = new Thread(parser, "fun-parser");
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            Compiler compiler = new Compiler(new Program(new ArrayList<>(), new ArrayList<>()), className, options);
+            return disassemble(compiler.genPipelined(parsed, parser, allocate), className, options);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            parser.cancel(true); // nothing left to hand over to if codegen failed
+        }
+    }
+
+    // The first option set that only works on the whole program at once, as its flag
+    private static String wholeProgramOption(Options options) {
+        if (options.memoize)
+            return "--memoize";
+        if (options.precomputeSteps > 0)
+            return "--precompute";
+        if (options.profile)
+            return "--profile";
+        if (options.pgo != null)
+            return "--use-profile";
+        if (options.unroll > 1)
+            return "--unroll";
+        if (options.trampoline)
+            return "--trampoline";
+        return null;
+    }
+
+    // For --dump-bytecode, once the class is done
+    private static ByteBuffer disassemble(ByteBuffer classFile, String className, Options options) throws IOException {
+        if (options.disassembly != null) {
+            try (Phase phase = Phase.start(options.stats, "disassemble", className)) {
+                byte[] bytes = new byte[classFile.position()];
+                for (int i = 0; i < bytes.length; i++)
+                    bytes[i] = classFile.get(i);
+                Disassembler.dump(bytes, options.disassembly);
+                phase.bytes(bytes.length);
+            }
+        }
+        return classFile;
+    }
+
+    // Shared support class generated code calls into, unless compiling self-contained
+    static final String RUNTIME_CLASS = "vlee12/runtime/FunRuntime";
+
+    // Most output --precompute bakes into a class, past this it's cheaper to just run the program
+    static final int MAX_PRECOMPUTED = 1 << 20;
+
+    // Bootstrap for calls into other compiled .fun files
+    private static final String LINKER_CLASS = "vlee12/runtime/Linker";
+    private static final String LINKER_DESCRIPTOR = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;";
+
+    // Holds every global when they're stored in an array rather than one field each
+    public static final String GLOBALS_FIELD = "$globals";
+
+    // Calls started by async and not awaited yet, see vlee12.runtime.Tasks
+    public static final String TASKS_FIELD = "$tasks";
+    private static final String TASKS_CLASS = "vlee12/runtime/Tasks";
+
+    // Probes per memo table lookup before giving up and evicting the home slot
+    private static final int MEMO_PROBES = 4;
+
+    // Counters for --profile live here, one long per call site of interest, see FunRuntime.profile
+    private static final String PROFILE_FIELD = "$profile";
+
+    // An if chain needs this many cases before one switch beats comparing them one after the other
+    private static final int MIN_SWITCH_CASES = 3;
+
+    // Most bytes of body copies an unrolled loop gets, so hot methods stay small enough for the JIT to inline
+    private static final int MAX_UNROLLED_BYTES = 256;
+
+    // Most iterations a loop with a known trip count is turned into straight line code for
+    private static final int MAX_FULL_UNROLL = 32;
+
+    // Biggest component --trampoline puts in one method, in syntax tree nodes (see ProfileGuide.size), which keeps
+    // its tail calls' jumps back to the top within a goto's reach
+    private static final int MAX_TRAMPOLINE_NODES = 2000;
+
+    // Parsed funs --pipeline lets wait for codegen, so only a few syntax trees are around at once
+    private static final int PIPELINE_DEPTH = 4;
+
+    // What the parser hands over after the last fun
+    private static final Fun END_OF_FUNS = new Fun("", Collections.emptyList(), null);
+
+    // The body of each parallel loop becomes a method taking (captures, lo, hi, partials), see genParallelChunk
+    private static final String CHUNK_DESCRIPTOR = "([III[I)V";
+    private static final List<String> CHUNK_PARAMETERS = Arrays.asList("[I", "I", "I", "[I");
+
     private final List<Fun> funs;
+    private final Map<String, Fun> funsByName = new HashMap<>();
+    private final List<String> imports;
     private final Set<String> globalVars = new HashSet<>();
-    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    // Index of each global in the $globals array, if they live in one instead of a field each. That's either the
+    // interpreter's array (Options.globalSlots), or one the class allocates itself when there are lots of globals
+    private Map<String, Integer> globalSlots = null;
+    private boolean ownsGlobals = false;
     private final List<ConstantPoolEntry> constantPoolEntries = new ArrayList<>();
+    private final Map<ConstantPoolEntry, Integer> constantPoolIndices = new HashMap<>(); // the same, entry to index
     private final String className;
+    private final Options options;
+    private final Set<String> memoized = new LinkedHashSet<>();
+    private String precomputed = null; // what main prints, if --precompute got it to the end
+    private Set<String> sideEffectFree = null; // only worked out once a loop needs it
+    private final List<String> profileLabels = new ArrayList<>(); // index is the counter's slot in $profile
+
+    // Descriptors of field, method and invokedynamic entries and the types of ldc constants, by pool index (see StackMaps)
+    private final Map<Integer, String> poolTypes = new HashMap<>();
+    private final StackMaps.Pool stackMapPool = new StackMaps.Pool() {
+        @Override
+        public String typeOf(int index) {
+            String type = poolTypes.get(index);
+            if (type == null)
+                throw new CompileException("Constant pool entry " + index + " has no type");
+            return type;
+        }
 
-    private Compiler(List<Fun> funs, String name) {
-        this.funs = funs;
+        @Override
+        public short classConstant(String name) {
+            return getClassConstant(name);
+        }
+    };
+
+    // Names of ifs and whiles for profiling and --use-profile, and the decisions made from the profile if there is one
+    private Map<Statement, String> branchLabels = null;
+    private ProfileGuide guide = null;
+    private final List<Fun> outlined = new ArrayList<>(); // cold branches moved into methods of their own
+    private final List<Fun> parallelChunks = new ArrayList<>(); // bodies of parallel loops, the loop itself as body
+    private int outlinedCount = 0;
+    private int parallelChunkCount = 0;
+    private boolean inParallelChunk = false;
+    private final Set<String> inlining = new HashSet<>(); // funs being inlined right now, so recursion stops
+
+    // The component each fun --trampoline runs in one method belongs to, and the one being generated right now
+    private final Map<String, List<Fun>> trampolines = new HashMap<>();
+    private List<Fun> trampolining = null;
+    private Set<String> trampolineMembers = null;
+    private int whichLocal = 0; // the trampoline's local saying which fun's body to run
+
+    // Methods generated so far, and whether one was main's
+    private final List<byte[]> funHex = new ArrayList<>();
+    private boolean foundMain = false;
+    private int mainFunArgCount = 0;
+
+    // Set when the funs come one at a time, see genPipelined
+    private boolean pipelined = false;
+
+    // Set once the first cross-file call is emitted, all of them share the one bootstrap method
+    private boolean linksExternally = false;
+
+    // Set once the first async or await is emitted, so the class gets a $tasks table
+    private boolean usesTasks = false;
+
+    private Compiler(Program program, String name, Options options) {
+        this.funs = program.funs;
+        this.imports = program.imports;
         this.className = name;
+        this.options = options;
+        for (Fun f : funs)
+            funsByName.putIfAbsent(f.name, f); // calls go to the first fun with the name
+    }
+
+    private void note(String format, Object... args) {
+        if (options.report != null)
+            options.report.printf(format + "%n", args);
     }
 
     /**
@@ -43,23 +272,29 @@ public class Compiler {
      * Note that the index is +1 from expected, because the JVM indexes the Constant Pool using [1, size]
      */
     private short findOrPut(ConstantPoolEntry entry) {
-        int index = constantPoolEntries.indexOf(entry);
+        Integer index = constantPoolIndices.get(entry);
         short ret = 0;
-        if (index == -1) {
+        if (index == null) {
+            if (constantPoolEntries.size() == 0xFFFE)
+                throw new CompileException("Too many constants for one class, try --pack-globals-above");
+            constantPoolIndices.put(entry, constantPoolEntries.size());
             constantPoolEntries.add(entry);
             ret = ((short) constantPoolEntries.size());
         } else {
             ret = ((short) (index + 1));
         }
 
+        if (entry instanceof ConstantPoolEntry.Int)
+            poolTypes.put(ret & 0xFFFF, "I");
+        else if (entry instanceof ConstantPoolEntry.Str)
+            poolTypes.put(ret & 0xFFFF, "Ljava/lang/String;");
         return ret;
     }
 
     // Variant of above for Class Constant Pool Entries
     private short getClassConstant(String name) {
         short entryIndex = findOrPut(new ConstantPoolEntry.Utf8(name));
-        constantPoolEntries.add(new ConstantPoolEntry.Class(entryIndex));
-        return ((short) constantPoolEntries.size());
+        return findOrPut(new ConstantPoolEntry.Class(entryIndex));
     }
 
     // Variant of above for Method Constant Pool Entries
@@ -69,7 +304,9 @@ public class Compiler {
         short callNameAndTypeIndex = findOrPut(new ConstantPoolEntry.NameAndType(callNameIndex, callNameDescriptorIndex));
         short classIndex = getClassConstant(ownerClass);
 
-        return findOrPut(new ConstantPoolEntry.Method(classIndex, callNameAndTypeIndex));
+        short ret = findOrPut(new ConstantPoolEntry.Method(classIndex, callNameAndTypeIndex));
+        poolTypes.put(ret & 0xFFFF, methodDesc);
+        return ret;
     }
 
     // Variant of above for Field Constant Pool Entries
@@ -79,7 +316,9 @@ public class Compiler {
         short callNameAndTypeIndex = findOrPut(new ConstantPoolEntry.NameAndType(callNameIndex, callNameDescriptorIndex));
         short classIndex = getClassConstant(ownerClass);
 
-        return findOrPut(new ConstantPoolEntry.Field(classIndex, callNameAndTypeIndex));
+        short ret = findOrPut(new ConstantPoolEntry.Field(classIndex, callNameAndTypeIndex));
+        poolTypes.put(ret & 0xFFFF, fieldDesc);
+        return ret;
     }
 
     // Helpers to write larger types or other ByteArrayOutputStreams
@@ -97,10 +336,31 @@ public class Compiler {
         bytes.write(shortToPut & 0xFF);
     }
 
-    private static void append(ByteArrayOutputStream baos, ByteArrayOutputStream toAppend) {
+    private void append(ByteArrayOutputStream baos, ByteArrayOutputStream toAppend) {
+        carry(lineStarts, baos, toAppend);
+        carry(tailJumps, baos, toAppend);
         append(baos, toAppend.toByteArray());
     }
 
+    // Copies what table says about offsets in toAppend over to where they'll be in baos once it's appended
+    private static void carry(Map<ByteArrayOutputStream, List<int[]>> table, ByteArrayOutputStream baos, ByteArrayOutputStream toAppend) {
+        List<int[]> entries = table.get(toAppend);
+        if (entries == null)
+            return;
+        // Not removed, the same code can be appended more than once (see unroll)
+        List<int[]> into = table.computeIfAbsent(baos, c -> new ArrayList<>());
+        for (int[] entry : entries) {
+            int[] moved = entry.clone();
+            moved[0] += baos.size();
+            into.add(moved);
+        }
+    }
+
+    // Where statements start in code, as { offset, line } in the order they were added
+    private List<int[]> lines(ByteArrayOutputStream code) {
+        return lineStarts.computeIfAbsent(code, c -> new ArrayList<>());
+    }
+
     private static void append(ByteArrayOutputStream baos, byte[] toAppend) {
         try {
             baos.write(toAppend);
@@ -109,55 +369,325 @@ public class Compiler {
         }
     }
 
-    private byte[] genHex() {
+    private ByteBuffer genHex(IntFunction<ByteBuffer> allocate) throws IOException {
         /* -- Setup -- */
-        short thisClassIndex = getClassConstant(className);
-        short superClassIndex = getClassConstant("java/lang/Object");
+        getClassConstant(className);
+        getClassConstant("java/lang/Object");
 
         /* -- Generate code for all methods -- */
         // This is done up here so the constant pool is populated
 
-        List<byte[]> funHex = new ArrayList<>();
-        boolean foundMain = false;
-        int mainFunArgCount = 0;
+        ParallelLoops.check(funs, options.stats);
+
+        // Tiers and libraries have no main of their own, and profiling a program that never runs would count nothing
+        if (options.precomputeSteps > 0 && !options.library && !options.profile) {
+            if (!imports.isEmpty()) {
+                note("not precomputing %s, what the funs it imports return isn't known until it runs", className);
+            } else {
+                try (Phase phase = Phase.start(options.stats, "precompute", null)) {
+                    precomputed = Interpreter.evaluate(new Program(imports, funs), className, options.precomputeSteps, MAX_PRECOMPUTED, options);
+                    if (precomputed != null)
+                        phase.bytes(precomputed.length());
+                }
+            }
+        }
+
+        if (options.memoize) {
+            // main only ever runs once and a fun without formals has nothing to key on
+            Set<String> pure;
+            try (Phase phase = Phase.start(options.stats, "purity", null)) {
+                pure = Purity.pureFuns(funs, phase);
+            }
+            Set<String> threaded = ParallelLoops.calledConcurrently(funs);
+            for (String name : pure) {
+                Fun fun = findFun(name);
+                if ("main".equals(name) || fun.formals.isEmpty())
+                    continue;
+                if (threaded.contains(name))
+                    note("not memoizing %s/%d, it can run on several threads at once and memo tables aren't thread safe", name, fun.formals.size());
+                else
+                    memoized.add(name);
+            }
+        }
+
+        if (options.mainStackMegabytes > 0 && options.selfContained && !options.library)
+            note("running main on the thread that starts %s, --self-contained has no runtime to give it a bigger stack", className);
+
+        // Profiling counts calls as written, and memo wrappers have to see every call
+        if (options.trampoline && !options.profile) {
+            Set<String> excluded = new HashSet<>(memoized);
+            excluded.add("main"); // runs once, from the entry point
+            for (List<Fun> component : Recursion.tailRecursive(funs, excluded)) {
+                List<String> names = new ArrayList<>();
+                int size = 0;
+                for (Fun f : component) {
+                    names.add(f.name);
+                    size += ProfileGuide.size(f.body);
+                }
+                if (size > MAX_TRAMPOLINE_NODES) {
+                    note("not trampolining %s, %d nodes is too big for one method", String.join(", ", names), size);
+                    continue;
+                }
+                for (Fun f : component)
+                    trampolines.put(f.name, component);
+                note("trampolined %s in %s", String.join(", ", names), trampolineName(component));
+            }
+        }
+
+        if (options.globalSlots != null) {
+            globalSlots = options.globalSlots;
+        } else {
+            Map<String, Integer> slots = new LinkedHashMap<>();
+            for (Fun fun : funs)
+                findGlobals(fun, fun.body, slots);
+            if (slots.size() > options.packGlobalsAbove) {
+                globalSlots = slots;
+                ownsGlobals = true;
+                note("packed %d globals into %s", slots.size(), GLOBALS_FIELD);
+            }
+        }
+
+        if (options.profile || options.pgo != null || options.unroll > 1)
+            branchLabels = ProfileGuide.labels(funs);
+        if (options.pgo != null) {
+            Map<String, Long> counts = options.pgo.countsFor(className);
+            if (counts.isEmpty())
+                note("no profile for %s, compiling without one", className);
+            else
+                guide = new ProfileGuide(counts, branchLabels);
+        }
+
+        for (Fun fun : funs)
+            genFun(fun);
+        genNested();
+
+        return genClass(allocate);
+    }
+
+    /**
+     * genHex for Options.pipeline, with the funs coming from the parser's thread through parsed as it goes,
+     * then END_OF_FUNS. Whatever only the whole program can tell is left out, see wholeProgramOption.
+     */
+    private ByteBuffer genPipelined(BlockingQueue<Fun> parsed, Future<Program> parser, IntFunction<ByteBuffer> allocate) throws IOException {
+        getClassConstant(className);
+        getClassConstant("java/lang/Object");
+
+        ParallelLoops.Incremental parallelLoops = new ParallelLoops.Incremental(options.stats);
+
+        // Globals past packGlobalsAbove get a slot as they turn up, the count isn't known up front (see packed)
+        globalSlots = options.globalSlots != null ? options.globalSlots : new LinkedHashMap<>();
+        pipelined = true;
+
+        // Funs calling something not parsed yet, by the first such name
+        Map<String, List<Fun>> waiting = new LinkedHashMap<>();
+        Deque<Fun> ready = new ArrayDeque<>(); // in the order they were parsed, so the class comes out the same every time
+        for (Fun fun = take(parsed); fun != END_OF_FUNS; fun = take(parsed)) {
+            parallelLoops.add(fun);
+            ready.add(fun);
+            if (!funsByName.containsKey(fun.name)) {
+                funsByName.put(fun.name, new Fun(fun.name, fun.formals, null)); // all a call needs
+                List<Fun> unblocked = waiting.remove(fun.name);
+                if (unblocked != null)
+                    ready.addAll(unblocked);
+            }
+
+            while (!ready.isEmpty()) {
+                Fun next = ready.poll();
+                String missing = unknownCallee(next);
+                if (missing != null) {
+                    waiting.computeIfAbsent(missing, k -> new ArrayList<>()).add(next);
+                } else {
+                    genFun(next);
+                    genNested();
+                }
+            }
+        }
+
+        Program program;
+        try {
+            program = parser.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            if (ex.getCause() instanceof Error)
+                throw (Error) ex.getCause();
+            throw new IllegalStateException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the parser", ex);
+        }
+        imports.addAll(program.imports);
+        parallelLoops.finish();
+
+        // What's still waiting calls a fun this file never defines, an import or a mistake genFun reports
+        for (List<Fun> stuck : waiting.values()) {
+            for (Fun fun : stuck) {
+                genFun(fun);
+                genNested();
+            }
+        }
+
+        if (options.globalSlots == null) {
+            if (globalSlots.isEmpty()) {
+                globalSlots = null;
+            } else {
+                ownsGlobals = true;
+                note("packed %d globals into %s", globalSlots.size(), GLOBALS_FIELD);
+            }
+        }
+        return genClass(allocate);
+    }
+
+    private static Fun take(BlockingQueue<Fun> parsed) {
+        try {
+            return parsed.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the parser", ex);
+        }
+    }
+
+    // A fun fun calls that hasn't been seen yet, or null if it can be generated
+    private String unknownCallee(Fun fun) {
+        Set<String> calls = new HashSet<>();
+        ParallelLoops.calls(fun.body, calls, new HashSet<>(), false);
+        for (String name : calls)
+            if (!funsByName.containsKey(name))
+                return name;
+        return null;
+    }
+
+    private void genFun(Fun fun) {
+        if ("main".equals(fun.name)) {
+            foundMain = true;
+            mainFunArgCount = fun.formals.size();
+        }
 
-        for (Fun fun : funs) {
-            if ("main".equals(fun.name)) {
-                foundMain = true;
-                mainFunArgCount = fun.formals.size();
+        if (memoized.contains(fun.name)) {
+            // The original body moves aside and the wrapper takes its name, so recursive calls hit the table too
+            funHex.add(genMethod(fun, "$impl$" + fun.name, false));
+            funHex.add(genMemoWrapper(fun));
+            note("memoized %s/%d", fun.name, fun.formals.size());
+        } else if (trampolines.containsKey(fun.name)) {
+            List<Fun> component = trampolines.get(fun.name);
+            if (component.get(0) == fun)
+                funHex.add(genTrampoline(component));
+            funHex.add(genTrampolineEntry(fun, component));
+        } else {
+            funHex.add(genMethod(fun, methodName(fun.name), true));
+        }
+    }
+
+    // Outlining and parallel loops turn up while generating funs, and again inside what they turn into
+    private void genNested() {
+        while (!outlined.isEmpty() || !parallelChunks.isEmpty()) {
+            if (!outlined.isEmpty()) {
+                Fun branch = outlined.remove(0);
+                funHex.add(genMethod(branch, branch.name, false));
+            } else {
+                funHex.add(genParallelChunk(parallelChunks.remove(0)));
             }
-            funHex.add(genMethod(fun));
         }
+    }
+
+    // Everything but the funs' methods, then the whole class into the buffer allocate gives for its size
+    private ByteBuffer genClass(IntFunction<ByteBuffer> allocate) throws IOException {
+        short thisClassIndex = getClassConstant(className);
+        short superClassIndex = getClassConstant("java/lang/Object");
 
-        if (!foundMain) {
+        if (!foundMain && !options.library) {
             throw new CompileException("No main fun found");
         }
 
-        // Generate code for class initializer, empty constructor, and entry point
+        if (options.profile && options.selfContained) {
+            throw new CompileException("Profiling reports through the shared runtime, so it can't be self-contained");
+        }
+
+        // Generate code for class initializer, empty constructor, and entry point (libraries can do without)
         ByteArrayOutputStream clinit = genCtor(true);
         ByteArrayOutputStream init = genCtor(false);
-        ByteArrayOutputStream mainMethod = genMainMethod(mainFunArgCount);
+        ByteArrayOutputStream mainMethod = foundMain ? genMainMethod(mainFunArgCount) : new ByteArrayOutputStream(0);
+        int entryPoints = foundMain ? 3 : 2;
 
         // Generate code for comparison helpers. This is because there is no "icmp" instruction in JVM. See report.
-        ByteArrayOutputStream isEq = genConditionalHelper(EQ);
-        ByteArrayOutputStream isLt = genConditionalHelper(LT);
-        ByteArrayOutputStream isGt = genConditionalHelper(GT);
+        // Normally these live in the shared runtime instead.
+        List<ByteArrayOutputStream> helpers = new ArrayList<>();
+        if (options.selfContained) {
+            helpers.add(genConditionalHelper(GT));
+            helpers.add(genConditionalHelper(LT));
+            helpers.add(genConditionalHelper(EQ));
+        }
+
+        // Fields and class attributes go into the constant pool too, so build them before it gets written out
+        List<ByteArrayOutputStream> fields = new ArrayList<>();
+        for (String var : globalVars) {
+            fields.add(genGlobalVar(var));
+        }
+        if (ownsGlobals) {
+            fields.add(genField(GLOBALS_FIELD, "[I", (short) (0x0002 | 0x0008 | 0x0010 | 0x1000))); // PRIVATE STATIC FINAL SYNTHETIC
+        } else if (globalSlots != null) {
+            // Public so whoever loads the class can hand it the array
+            fields.add(genField(GLOBALS_FIELD, "[I", (short) (0x0001 | 0x0008 | 0x1000))); // PUBLIC STATIC SYNTHETIC
+        }
+        if (usesTasks && options.sharedTasks) {
+            fields.add(genField(TASKS_FIELD, "L" + TASKS_CLASS + ";", (short) (0x0001 | 0x0008 | 0x1000))); // PUBLIC STATIC SYNTHETIC
+        } else if (usesTasks) {
+            fields.add(genField(TASKS_FIELD, "L" + TASKS_CLASS + ";", (short) (0x0002 | 0x0008 | 0x0010 | 0x1000))); // PRIVATE STATIC FINAL SYNTHETIC
+        }
+        for (String name : memoized) {
+            fields.add(genField("$memo$" + name, "[I"));
+        }
+        if (options.profile) {
+            fields.add(genField(PROFILE_FIELD, "[J"));
+        }
+
+        ByteArrayOutputStream bootstrapMethods = linksExternally ? genBootstrapMethods() : null;
+        ByteArrayOutputStream sourceFile = options.lineNumbers ? genSourceFile() : null;
 
         /* -- Actual file -- */
 
+        // Everything is known now, so the class is written once into a buffer of exactly its size
+        List<ByteArrayOutputStream> methods = new ArrayList<>();
+        methods.add(clinit);
+        methods.add(init);
+        methods.add(mainMethod);
+        methods.addAll(helpers);
+
+        long size = 4 + 2 + 2 + 2; // magic, version, pool count
+        for (ConstantPoolEntry e : constantPoolEntries)
+            size += e.getBytes().length;
+        size += 2 + 2 + 2 + 2 + 2; // flags, this, super, interfaces, field count
+        for (ByteArrayOutputStream field : fields)
+            size += field.size();
+        size += 2; // method count
+        for (ByteArrayOutputStream method : methods)
+            size += method.size();
+        for (byte[] arr : funHex)
+            size += arr.length;
+        size += 2 + (bootstrapMethods == null ? 0 : bootstrapMethods.size()) + (sourceFile == null ? 0 : sourceFile.size());
+        if (size > Integer.MAX_VALUE)
+            throw new CompileException("Class is too big to write out: " + size + " bytes");
+        ByteBuffer out = allocate.apply((int) size);
+        OutputStream sink = new BufferSink(out);
+
         // Magic header for class files
-        putInt(bytes, 0xCAFEBABE);
+        out.putInt(0xCAFEBABE);
 
-        // Compiling for JVM 6u0 (version 50.0)
-        putShort(bytes, 0);    // minor 0
-        putShort(bytes, 0x32); // major 50
+        // Compiling for JVM 8 (version 52.0), every method carries the stack map frames it needs to verify
+        out.putShort((short) 0);    // minor 0
+        out.putShort((short) 0x34);
 
         // Constant pool size
-        putShort(bytes, constantPoolEntries.size() + 1);
+        out.putShort((short) (constantPoolEntries.size() + 1));
 
         // Constant pool
-        for (ConstantPoolEntry e : constantPoolEntries) {
-            append(bytes, e.getBytes());
+        try (Phase phase = Phase.start(options.stats, "constant pool", null)) {
+            int before = out.position();
+            for (ConstantPoolEntry e : constantPoolEntries) {
+                out.put(e.getBytes());
+            }
+            phase.bytes(out.position() - before);
+            phase.visited(constantPoolEntries.size());
         }
 
         // Access flags
@@ -165,59 +695,132 @@ public class Compiler {
         flags |= 0x0001; // PUBLIC
         flags |= 0x0010; // FINAL
         flags |= 0x1000; // SYNTHETIC
-        putShort(bytes, flags);
+        out.putShort(flags);
 
         // what is this class
-        putShort(bytes, thisClassIndex);
+        out.putShort(thisClassIndex);
 
         // who is the superclass
-        putShort(bytes, superClassIndex);
+        out.putShort(superClassIndex);
 
         // interface count and no interfaces
-        putShort(bytes, 0);
+        out.putShort((short) 0);
 
         // field count
-        putShort(bytes, globalVars.size());
+        out.putShort((short) fields.size());
 
         // fields
-        for (String var : globalVars) {
-            append(bytes, genGlobalVar(var));
+        for (ByteArrayOutputStream field : fields) {
+            field.writeTo(sink);
         }
 
         // method count
-        putShort(bytes, funHex.size() + 6);
+        out.putShort((short) (funHex.size() + helpers.size() + entryPoints));
 
-        // methods
-        append(bytes, clinit);
-        append(bytes, init);
-        append(bytes, mainMethod);
-
-        append(bytes, isGt);
-        append(bytes, isLt);
-        append(bytes, isEq);
+        // methods: clinit, init, main, helpers, then the funs
+        for (ByteArrayOutputStream method : methods) {
+            method.writeTo(sink);
+        }
 
         for (byte[] arr : funHex) {
-            append(bytes, arr);
+            out.put(arr);
         }
 
-        // class attribute count and no class attributes
-        putShort(bytes, 0);
-        return bytes.toByteArray();
+        // class attribute count and class attributes
+        out.putShort((short) ((bootstrapMethods == null ? 0 : 1) + (sourceFile == null ? 0 : 1)));
+        if (bootstrapMethods != null)
+            bootstrapMethods.writeTo(sink);
+        if (sourceFile != null)
+            sourceFile.writeTo(sink);
+        return out;
+    }
+
+    // The .fun this class came from, which stack traces show next to line numbers. Tiers are named after theirs
+    private ByteArrayOutputStream genSourceFile() {
+        int end = className.indexOf('$');
+        String name = (end == -1 ? className : className.substring(0, end)) + ".fun";
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("SourceFile")));
+        putInt(ret, 2);
+        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8(name.substring(name.lastIndexOf('/') + 1))));
+        return ret;
+    }
+
+    // Lets ByteArrayOutputStream.writeTo hand over its internal array, which is the only way to get at it without a copy
+    private static final class BufferSink extends OutputStream {
+        private final ByteBuffer out;
+
+        BufferSink(ByteBuffer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            out.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            out.put(b, off, len);
+        }
+    }
+
+    /**
+     * Generates the BootstrapMethods attribute, which holds a single entry pointing every invokedynamic at Linker
+     * along with the list of classes it should search.
+     */
+    private ByteArrayOutputStream genBootstrapMethods() {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream(16);
+
+        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("BootstrapMethods")));
+
+        // attribute length
+        putInt(ret, 8);
+
+        // one bootstrap method
+        putShort(ret, 1);
+        putShort(ret, bootstrapMethodHandle());
+
+        // with one static argument
+        putShort(ret, 1);
+        putShort(ret, findOrPut(new ConstantPoolEntry.Str(findOrPut(new ConstantPoolEntry.Utf8(String.join(",", imports))))));
+
+        return ret;
+    }
+
+    private short bootstrapMethodHandle() {
+        short methodIndex = getMethodRef(LINKER_CLASS, "bootstrap", LINKER_DESCRIPTOR);
+        return findOrPut(new ConstantPoolEntry.MethodHandle(ConstantPoolEntry.MethodHandle.REF_INVOKE_STATIC, methodIndex));
+    }
+
+    // A constant for ldc that's the static method at methodIndex
+    private short methodHandle(short methodIndex) {
+        short ret = findOrPut(new ConstantPoolEntry.MethodHandle(ConstantPoolEntry.MethodHandle.REF_INVOKE_STATIC, methodIndex));
+        poolTypes.put(ret & 0xFFFF, "Ljava/lang/invoke/MethodHandle;");
+        return ret;
     }
 
     private ByteArrayOutputStream genGlobalVar(String name) {
-        ByteArrayOutputStream ret = new ByteArrayOutputStream(8);
+        return genField(name, "I");
+    }
+
+    private ByteArrayOutputStream genField(String name, String descriptor) {
         short flags = 0;
         flags |= 0x0002; // PRIVATE
         flags |= 0x0008; // STATIC
         flags |= 0x1000; // SYNTHETIC
+        return genField(name, descriptor, flags);
+    }
+
+    private ByteArrayOutputStream genField(String name, String descriptor, short flags) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream(8);
         putShort(ret, flags);
 
         // Name
         putShort(ret, findOrPut(new ConstantPoolEntry.Utf8(name)));
 
         // Descriptor
-        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("I")));
+        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8(descriptor)));
 
         // No attributes
         putShort(ret, 0);
@@ -249,47 +852,90 @@ public class Compiler {
         // Attribute count
         putShort(ret, 0x1);
 
-        // code attribute
-        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("Code")));
-
-        // code attribute attribute length (12 + codeLength below this)
-        int codeAttribLength = 12 + (mainFunArgCount + 5);
-        putInt(ret, codeAttribLength);
-
-        // max stack
-        putShort(ret, mainFunArgCount); // pushing 0's
-
-        // max locals
-        putShort(ret, 1); // args parameter
+        if (precomputed != null) {
+            putCode(ret, Collections.singletonList("[Ljava/lang/String;"), null, 1, genPrecomputedMain());
+            return ret;
+        }
 
-        // code length
-        int codeLength = mainFunArgCount + 5; // Push args (n) + invokestatic (3) + pop (1) + return (1)
-        putInt(ret, codeLength);
+        if (options.mainStackMegabytes > 0 && !options.selfContained) {
+            // ldc_w $main, push the size, FunRuntime.runMain(MethodHandle, int)
+            Code code = new Code();
+            code.write(0x13);
+            putShort(code, methodHandle(getMethodRef(className, "$main", methodDescriptor(mainFunArgCount))));
+            pushInt(code, options.mainStackMegabytes);
+            code.write(0xB8);
+            putShort(code, getMethodRef(RUNTIME_CLASS, "runMain", "(Ljava/lang/invoke/MethodHandle;I)V"));
+            code.write(0xB1); // return
+            putCode(ret, Collections.singletonList("[Ljava/lang/String;"), null, 1, code);
+            return ret;
+        }
 
+        ByteArrayOutputStream code = new ByteArrayOutputStream(mainFunArgCount + 5);
         for (int i = 0; i < mainFunArgCount; i++) {
             // iconst_0
-            ret.write(0x03);
+            code.write(0x03);
         }
 
         // invokestatic
-        ret.write(0xB8);
-        putShort(ret, getMethodRef(className, "$main", "(" + String.join("", Collections.nCopies(mainFunArgCount, "I")) + ")I"));
+        code.write(0xB8);
+        putShort(code, getMethodRef(className, "$main", "(" + String.join("", Collections.nCopies(mainFunArgCount, "I")) + ")I"));
 
         // pop $main's return value
-        ret.write(0x57);
+        code.write(0x57);
 
         // Return
-        ret.write(0xB1);
-
-        // exception table length
-        putShort(ret, 0);
+        code.write(0xB1);
 
-        // attrib table length
-        putShort(ret, 0);
+        putCode(ret, Collections.singletonList("[Ljava/lang/String;"), null, 1, code); // args parameter
 
         return ret;
     }
 
+    // The whole output in one write, with the funs left in the class for anything importing it
+    private ByteArrayOutputStream genPrecomputedMain() {
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        if (precomputed.isEmpty()) {
+            // Return
+            code.write(0xB1);
+            return code;
+        }
+
+        if (options.selfContained) {
+            // getstatic System.out
+            code.write(0xB2);
+            putShort(code, getFieldRef("java/lang/System", "out", "Ljava/io/PrintStream;"));
+        }
+
+        // A string constant holds at most 65535 bytes, output is all digits and newlines so that many chars
+        for (int i = 0; i < precomputed.length(); i += 0xFFFF) {
+            String piece = precomputed.substring(i, Math.min(precomputed.length(), i + 0xFFFF));
+
+            // ldc_w
+            code.write(0x13);
+            putShort(code, findOrPut(new ConstantPoolEntry.Str(findOrPut(new ConstantPoolEntry.Utf8(piece)))));
+
+            if (i > 0) {
+                // invokevirtual
+                code.write(0xB6);
+                putShort(code, getMethodRef("java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;"));
+            }
+        }
+
+        if (options.selfContained) {
+            // invokevirtual
+            code.write(0xB6);
+            putShort(code, getMethodRef("java/io/PrintStream", "print", "(Ljava/lang/String;)V"));
+        } else {
+            // invokestatic
+            code.write(0xB8);
+            putShort(code, getMethodRef(RUNTIME_CLASS, "write", "(Ljava/lang/String;)V"));
+        }
+
+        // Return
+        code.write(0xB1);
+        return code;
+    }
+
     /**
      * Generates a conditional helper.
      * This provides a bridge between Java's compareTo-style semantics and C's zero-nonzero semantics.
@@ -324,33 +970,17 @@ public class Compiler {
         // Attribute count
         putShort(ret, 1);
 
-        // code attribute
-        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("Code")));
-
-        // code attribute attribute length (12 + codeLength)
-        int codeAttribLength = 12 + 14;
-        putInt(ret, codeAttribLength);
-
-        // max stack
-        putShort(ret, 2);
-
-        // max locals
-        putShort(ret, 2);
-
-        // code length
-        putInt(ret, 14);
-
-        // code
+        ByteArrayOutputStream code = new ByteArrayOutputStream(14);
 
         // iload_0
-        ret.write(0x1A);
+        code.write(0x1A);
 
         // iload_1
-        ret.write(0x1B);
+        code.write(0x1B);
 
         // invokestatic
-        ret.write(0xB8);
-        putShort(ret, getMethodRef("java/lang/Integer", "compareUnsigned", "(II)I"));
+        code.write(0xB8);
+        putShort(code, getMethodRef("java/lang/Integer", "compareUnsigned", "(II)I"));
 
         // ifCC branch forward from this byte to iconst_1
         int insn = 0;
@@ -359,27 +989,23 @@ public class Compiler {
             case GT: insn = 0x9D; break; // ifgt
             case EQ: insn = 0x99; break; // ifeq
         }
-        ret.write(insn);
-        putShort(ret, 7);
+        code.write(insn);
+        putShort(code, 7);
 
         // iconst_0
-        ret.write(0x03);
+        code.write(0x03);
 
         // goto over the iconst_1
-        ret.write(0xA7);
-        putShort(ret, 4);
+        code.write(0xA7);
+        putShort(code, 4);
 
         // iconst_1
-        ret.write(0x04);
+        code.write(0x04);
 
         // ireturn
-        ret.write(0xAC);
-
-        // exception table length
-        putShort(ret, 0);
+        code.write(0xAC);
 
-        // attrib table length
-        putShort(ret, 0);
+        putCode(ret, Arrays.asList("I", "I"), null, 2, code);
 
         return ret;
     }
@@ -407,158 +1033,697 @@ public class Compiler {
         // Attribute count
         putShort(ret, 1);
 
-        // code attribute
-        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("Code")));
+        Code code = new Code();
+
+        if (isStatic) {
+            if (ownsGlobals) {
+                pushInt(code, globalSlots.size());
+
+                // newarray int, putstatic
+                code.write(0xBC);
+                code.write(10);
+                code.write(0xB3);
+                putShort(code, getFieldRef(className, GLOBALS_FIELD, "[I"));
+            }
 
-        // code attribute attribute length (13 bytes below this one)
-        putInt(ret, isStatic ? 13 : 17); // need to call super if not static
+            if (usesTasks && !options.sharedTasks) {
+                // invokestatic, putstatic
+                code.write(0xB8);
+                putShort(code, getMethodRef(TASKS_CLASS, "create", "()L" + TASKS_CLASS + ";"));
+                code.write(0xB3);
+                putShort(code, getFieldRef(className, TASKS_FIELD, "L" + TASKS_CLASS + ";"));
+            }
 
-        // max stack
-        putShort(ret, isStatic ? 0 : 1); // need one to load "this" before calling super
+            // Allocate the memo tables
+            for (String name : memoized) {
+                pushInt(code, memoCapacity() * memoStride(findFun(name)));
 
-        // max locals
-        putShort(ret, isStatic ? 0 : 1); // need one local to store "this"
+                // newarray int
+                code.write(0xBC);
+                code.write(10);
 
-        // code length
-        putInt(ret, isStatic ? 1 : 5);
+                // putstatic
+                code.write(0xB3);
+                putShort(code, getFieldRef(className, "$memo$" + name, "[I"));
+            }
+
+            if (options.profile) {
+                // Allocate the counters and hand them to the runtime along with what each one counts
+                pushInt(code, profileLabels.size());
+
+                // newarray long
+                code.write(0xBC);
+                code.write(11);
+
+                // dup, putstatic
+                code.write(0x59);
+                code.write(0xB3);
+                putShort(code, getFieldRef(className, PROFILE_FIELD, "[J"));
+
+                // ldc_w
+                code.write(0x13);
+                putShort(code, findOrPut(new ConstantPoolEntry.Str(findOrPut(new ConstantPoolEntry.Utf8(profileLabels())))));
 
-        if (!isStatic) {
+                // invokestatic
+                code.write(0xB8);
+                putShort(code, getMethodRef(RUNTIME_CLASS, "profile", "([JLjava/lang/String;)V"));
+            }
+        } else {
             // aload_0
-            ret.write(0x2A);
+            code.write(0x2A);
 
             // invokespecial
-            ret.write(0xB7);
-            putShort(ret, getMethodRef("java/lang/Object", "<init>", "()V"));
+            code.write(0xB7);
+            putShort(code, getMethodRef("java/lang/Object", "<init>", "()V"));
         }
 
         // return
-        ret.write(0xB1);
-
-        // exception table length
-        putShort(ret, 0);
+        code.write(0xB1);
 
-        // attrib table length
-        putShort(ret, 0);
+        // need one local to store "this"
+        putCode(ret, isStatic ? Collections.<String>emptyList() : Collections.singletonList("U"), null, isStatic ? 0 : 1, code);
 
         return ret;
     }
 
     private Fun findFun(String name) {
-        for (Fun f : funs) {
-            if (name.equals(f.name)){
-                return f;
+        return funsByName.get(name);
+    }
+
+    // Numbers every name that isn't a formal of the fun using it, in order of first use
+    static void findGlobals(Fun fun, Statement s, Map<String, Integer> slots) {
+        switch (s.kind) {
+            case BLOCK: {
+                for (Statement sub : ((Statement.Block) s).block)
+                    findGlobals(fun, sub, slots);
+                break;
+            }
+            case ASSIGNMENT: {
+                Statement.Assign assign = ((Statement.Assign) s);
+                findGlobals(fun, assign.assignValue, slots);
+                if (!fun.formals.contains(assign.assignName))
+                    slots.putIfAbsent(assign.assignName, slots.size());
+                break;
             }
+            case PRINT: findGlobals(fun, ((Statement.Print) s).printValue, slots); break;
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                findGlobals(fun, ifStatement.ifCondition, slots);
+                findGlobals(fun, ifStatement.ifThen, slots);
+                if (ifStatement.ifElse != null)
+                    findGlobals(fun, ifStatement.ifElse, slots);
+                break;
+            }
+            case WHILE: {
+                Statement.While whileStatement = ((Statement.While) s);
+                findGlobals(fun, whileStatement.whileCondition, slots);
+                findGlobals(fun, whileStatement.whileBody, slots);
+                break;
+            }
+            case RETURN: findGlobals(fun, ((Statement.Return) s).returnValue, slots); break;
+            case PARALLEL: {
+                Statement.Parallel loop = ((Statement.Parallel) s);
+                findGlobals(fun, loop.parallelFrom, slots);
+                findGlobals(fun, loop.parallelTo, slots);
+                findGlobals(new Fun(fun.name, ParallelLoops.scope(fun.formals, loop), null), loop.parallelBody, slots);
+                for (String name : loop.parallelReductions)
+                    if (!fun.formals.contains(name))
+                        slots.putIfAbsent(name, slots.size());
+                break;
+            }
+            default: break;
         }
-
-        return null;
     }
 
-    private byte[] genMethod(Fun func) {
-        ByteArrayOutputStream ret = new ByteArrayOutputStream();
-
-        short flags = 0;
-        flags |= 0x0002; // PRIVATE
-        flags |= 0x0008; // STATIC
-        flags |= 0x1000; // SYNTHETIC
-
-        putShort(ret, flags);
+    private static void findGlobals(Fun fun, Expression e, Map<String, Integer> slots) {
+        switch (e.kind) {
+            case VAR: {
+                String name = ((Expression.Var) e).varName;
+                if (!fun.formals.contains(name))
+                    slots.putIfAbsent(name, slots.size());
+                break;
+            }
+            case PLUS:
+            case MUL:
+            case EQ:
+            case NE:
+            case LT:
+            case GT: {
+                Expression.BinaryExpr expr = ((Expression.BinaryExpr) e);
+                findGlobals(fun, expr.left, slots);
+                findGlobals(fun, expr.right, slots);
+                break;
+            }
+            case CALL: {
+                for (Expression actual : ((Expression.Call) e).callActuals)
+                    findGlobals(fun, actual, slots);
+                break;
+            }
+            case ASYNC: findGlobals(fun, ((Expression.Async) e).asyncCall, slots); break;
+            case AWAIT: findGlobals(fun, ((Expression.Await) e).awaitHandle, slots); break;
+            default: break;
+        }
+    }
 
-        // If this is the main function, mangle the name by prepending "$"
-        boolean mangle = func.name.equals("main");
-        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8((mangle ? "$" : "") + func.name)));
+    // The fun main is mangled to $main so it doesn't clash with the real entry point
+    public static String methodName(String funName) {
+        return funName.equals("main") ? "$main" : funName;
+    }
 
-        short descriptorIndex = findOrPut(new ConstantPoolEntry.Utf8("(" + String.join("", Collections.nCopies(func.formals.size(), "I")) + ")I"));
-        putShort(ret, descriptorIndex);
+    private static String methodDescriptor(int argCount) {
+        return "(" + String.join("", Collections.nCopies(argCount, "I")) + ")I";
+    }
 
-        // Attribute count
-        putShort(ret, 1);
+    // Pushes an arbitrary int constant, only going through the constant pool when it has to
+    private void pushInt(Code code, int value) {
+        if (!code.pushSmall(value)) {
+            // ldc_w
+            code.write(0x13);
+            putShort(code, findOrPut(new ConstantPoolEntry.Int(value)));
+        }
+    }
 
-        // code attribute
-        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("Code")));
+    // The class name, then one label per counter, a line each
+    private String profileLabels() {
+        String labels = className + "\n" + String.join("\n", profileLabels);
+        if (labels.getBytes(StandardCharsets.UTF_8).length > 65535)
+            throw new CompileException("Too many profile counters");
+        return labels;
+    }
+
+    private int profileCounter(String label) {
+        profileLabels.add(label);
+        return profileLabels.size() - 1;
+    }
+
+    // $profile[counter]++, as longs so counters in hot loops don't wrap around
+    private ByteArrayOutputStream countHit(int counter) {
+        Code code = new Code();
+
+        // getstatic
+        code.write(0xB2);
+        putShort(code, getFieldRef(className, PROFILE_FIELD, "[J"));
+        pushInt(code, counter);
 
-        ByteArrayOutputStream code = fun(func);
+        code.write(0x5C); // dup2
+        code.write(0x2F); // laload, the array and index become a long
+        code.write(0x0A); // lconst_1
+        code.write(0x61); // ladd
+        code.write(0x50); // lastore
 
-        // code attribute attribute length (12 + codeLength)
-        int codeAttribLength = 12 + code.size();
-        putInt(ret, codeAttribLength);
+        return code;
+    }
+
+    // Prefixes code with a hit on counter, if there is one
+    private ByteArrayOutputStream counted(int counter, ByteArrayOutputStream code) {
+        if (counter == -1)
+            return code;
+        ByteArrayOutputStream ret = countHit(counter);
+        append(ret, code);
+        return ret;
+    }
 
-        // max stack
-        short maxStack = (short) maxStackTracker.stream().mapToInt(Integer::intValue).max().orElse(0);
-        putShort(ret, maxStack);
+    private int memoCapacity() {
+        return Integer.highestOneBit(Math.max(options.memoCapacity - 1, 1)) << 1;
+    }
 
-        // max locals
-        putShort(ret, func.formals.size());
+    // Each memo slot is laid out as [state, key0 .. keyN, value] inside one flat int[]
+    private static int memoStride(Fun fun) {
+        return fun.formals.size() + 2;
+    }
+
+    /**
+     * Generates the memoizing front for a pure fun, which takes over the fun's name.
+     * The table is an open-addressed int[] with a small bounded probe window, so it never grows:
+     * on a miss the result goes into the first empty slot in the window, or evicts the home slot if there isn't one.
+     * No boxing anywhere, a hit is a handful of array loads.
+     */
+    private byte[] genMemoWrapper(Fun func) {
+        int arity = func.formals.size();
+        int mask = memoCapacity() - 1;
+        int stride = memoStride(func);
+
+        // Locals after the formals
+        int table = arity;
+        int home = arity + 1;
+        int slot = arity + 2;
+        int result = arity + 3;
+
+        Code code = new Code();
+        Code.Label miss = code.newLabel();
+
+        // getstatic the table, astore
+        code.write(0xB2);
+        putShort(code, getFieldRef(className, "$memo$" + func.name, "[I"));
+        code.write(0x3A);
+        code.write(table);
+
+        // Hash the formals together, then spread the bits so small sequential keys don't cluster
+        code.write(0x15); // iload
+        code.write(0);
+        for (int i = 1; i < arity; i++) {
+            pushInt(code, 0x9E3779B9);
+            code.write(0x68); // imul
+            code.write(0x15); // iload
+            code.write(i);
+            code.write(0x60); // iadd
+        }
+        code.write(0x59); // dup
+        pushInt(code, 16);
+        code.write(0x7C); // iushr
+        code.write(0x82); // ixor
+        pushInt(code, mask);
+        code.write(0x7E); // iand
+        code.write(0x36); // istore
+        code.write(home);
+
+        for (int probe = 0; probe < MEMO_PROBES; probe++) {
+            Code.Label next = code.newLabel();
+
+            // slot = ((home + probe) & mask) * stride
+            code.write(0x15); // iload
+            code.write(home);
+            if (probe > 0) {
+                pushInt(code, probe);
+                code.write(0x60); // iadd
+                pushInt(code, mask);
+                code.write(0x7E); // iand
+            }
+            pushInt(code, stride);
+            code.write(0x68); // imul
+            code.write(0x36); // istore
+            code.write(slot);
+
+            // Empty slot, so the key can't be further along either
+            loadMemoField(code, table, slot, 0);
+            code.jump(0x99, miss); // ifeq
+
+            for (int i = 0; i < arity; i++) {
+                loadMemoField(code, table, slot, 1 + i);
+                code.write(0x15); // iload
+                code.write(i);
+                code.jump(0xA0, next); // if_icmpne
+            }
+
+            // Hit
+            loadMemoField(code, table, slot, arity + 1);
+            code.write(0xAC); // ireturn
+
+            code.mark(next);
+        }
+
+        // Window is full of other keys, evict the home slot
+        code.write(0x15); // iload
+        code.write(home);
+        pushInt(code, stride);
+        code.write(0x68); // imul
+        code.write(0x36); // istore
+        code.write(slot);
+
+        code.mark(miss);
+
+        // Compute the real thing
+        for (int i = 0; i < arity; i++) {
+            code.write(0x15); // iload
+            code.write(i);
+        }
+        code.write(0xB8); // invokestatic
+        putShort(code, getMethodRef(className, "$impl$" + func.name, methodDescriptor(arity)));
+        code.write(0x36); // istore
+        code.write(result);
+
+        // Fill in the slot, marking it used last
+        for (int i = 0; i < arity; i++)
+            storeMemoField(code, table, slot, 1 + i, i);
+        storeMemoField(code, table, slot, arity + 1, result);
+        code.write(0x19); // aload
+        code.write(table);
+        code.write(0x15); // iload
+        code.write(slot);
+        code.write(0x04); // iconst_1
+        code.write(0x4F); // iastore
+
+        code.write(0x15); // iload
+        code.write(result);
+        code.write(0xAC); // ireturn
+
+        return genMethodInfo(methodName(func.name), true, func.formals, arity + 4, code);
+    }
+
+    // table[slot + offset]
+    private void loadMemoField(Code code, int table, int slot, int offset) {
+        code.write(0x19); // aload
+        code.write(table);
+        code.write(0x15); // iload
+        code.write(slot);
+        if (offset != 0) {
+            pushInt(code, offset);
+            code.write(0x60); // iadd
+        }
+        code.write(0x2E); // iaload
+    }
+
+    // table[slot + offset] = local
+    private void storeMemoField(Code code, int table, int slot, int offset, int local) {
+        code.write(0x19); // aload
+        code.write(table);
+        code.write(0x15); // iload
+        code.write(slot);
+        pushInt(code, offset);
+        code.write(0x60); // iadd
+        code.write(0x15); // iload
+        code.write(local);
+        code.write(0x4F); // iastore
+    }
+
+    /**
+     * Writes the Code attribute for finished code, including the StackMapTable the verifier checks it against,
+     * and the LineNumberTable and LocalVariableTable for the statements and formals in it if Options asks for them.
+     * The max stack and the frames both come from StackMaps, params are the types of the locals on entry and names
+     * what the source calls them, or null if it doesn't.
+     */
+    private void putCode(ByteArrayOutputStream ret, List<String> params, List<String> names, int maxLocals, ByteArrayOutputStream code) {
+        byte[] raw = code.toByteArray();
+        int[] moved = Bytecode.layout(raw);
+        byte[] bytecode = moved == null ? raw : Bytecode.padSwitches(raw, moved);
+        StackMaps.Result maps = StackMaps.analyze(bytecode, params, maxLocals, stackMapPool);
+        int stackMapLength = maps.frameCount == 0 ? 0 : 2 + 4 + 2 + maps.table.length;
+        List<int[]> lines = lineTable(lineStarts.remove(code), moved);
+        int lineLength = lines.isEmpty() ? 0 : 2 + 4 + 2 + 4 * lines.size();
+        boolean vars = options.localNames && names != null && !names.isEmpty();
+        int varLength = vars ? 2 + 4 + 2 + 10 * names.size() : 0;
+
+        // code attribute
+        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("Code")));
+
+        // code attribute attribute length (12 + codeLength + attributes)
+        putInt(ret, 12 + bytecode.length + stackMapLength + lineLength + varLength);
+
+        putShort(ret, maps.maxStack);
+        putShort(ret, maxLocals);
 
         // code length
-        putInt(ret, code.size());
+        putInt(ret, bytecode.length);
 
         // code
-        append(ret, code);
+        append(ret, bytecode);
 
         // exception table length
         putShort(ret, 0);
 
         // attrib table length
-        putShort(ret, 0);
+        putShort(ret, (maps.frameCount == 0 ? 0 : 1) + (lines.isEmpty() ? 0 : 1) + (vars ? 1 : 0));
+
+        if (maps.frameCount != 0) {
+            putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("StackMapTable")));
+            putInt(ret, 2 + maps.table.length);
+            putShort(ret, maps.frameCount);
+            append(ret, maps.table);
+        }
+
+        if (!lines.isEmpty()) {
+            putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("LineNumberTable")));
+            putInt(ret, 2 + 4 * lines.size());
+            putShort(ret, lines.size());
+            for (int[] line : lines) {
+                putShort(ret, line[0]);
+                putShort(ret, line[1]);
+            }
+        }
+
+        if (vars) {
+            // Formals are ints live for the whole method, in the first locals
+            putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("LocalVariableTable")));
+            putInt(ret, 2 + 10 * names.size());
+            putShort(ret, names.size());
+            for (int i = 0; i < names.size(); i++) {
+                putShort(ret, 0);
+                putShort(ret, bytecode.length);
+                putShort(ret, findOrPut(new ConstantPoolEntry.Utf8(names.get(i))));
+                putShort(ret, findOrPut(new ConstantPoolEntry.Utf8("I")));
+                putShort(ret, i);
+            }
+        }
+    }
+
+    /**
+     * Turns where statements start in code into LineNumberTable entries, ordered by pc and moved to where padding
+     * switches put them. Of statements starting at the same pc the innermost, added last, wins, and entries that
+     * don't change the line are dropped.
+     */
+    private static List<int[]> lineTable(List<int[]> starts, int[] moved) {
+        List<int[]> ret = new ArrayList<>();
+        if (starts == null)
+            return ret;
+        List<int[]> sorted = new ArrayList<>(starts);
+        sorted.sort((a, b) -> Integer.compare(a[0], b[0])); // stable, so same pc stays in the order added
+        for (int i = 0; i < sorted.size(); i++) {
+            int[] start = sorted.get(i);
+            if (i + 1 < sorted.size() && sorted.get(i + 1)[0] == start[0])
+                continue;
+            if (!ret.isEmpty() && ret.get(ret.size() - 1)[1] == start[1])
+                continue;
+            ret.add(new int[] { start[0], start[1] });
+        }
+        if (ret.size() > 0xFFFF)
+            return new ArrayList<>(); // more than the table can count, leave it out
+        if (moved != null)
+            for (int[] line : ret)
+                line[0] = moved[line[0]];
+        return ret;
+    }
+
+    /**
+     * Wraps finished code into a static method_info.
+     * Methods other compiled files may link against (see Linker) are public, everything else private.
+     * Formals are the names of its args, for the LocalVariableTable.
+     */
+    private byte[] genMethodInfo(String name, boolean exported, List<String> formals, int maxLocals, ByteArrayOutputStream code) {
+        return genMethodInfo(name, exported, methodDescriptor(formals.size()), Collections.nCopies(formals.size(), "I"), formals, maxLocals, code);
+    }
+
+    // Variant of above for methods that take more than ints, params being the types of the locals they start with
+    private byte[] genMethodInfo(String name, boolean exported, String descriptor, List<String> params, int maxLocals, ByteArrayOutputStream code) {
+        return genMethodInfo(name, exported, descriptor, params, null, maxLocals, code);
+    }
+
+    private byte[] genMethodInfo(String name, boolean exported, String descriptor, List<String> params, List<String> names, int maxLocals, ByteArrayOutputStream code) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+
+        short flags = 0;
+        flags |= exported ? 0x0001 : 0x0002; // PUBLIC or PRIVATE
+        flags |= 0x0008; // STATIC
+        flags |= 0x1000; // SYNTHETIC
+
+        putShort(ret, flags);
+        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8(name)));
+        putShort(ret, findOrPut(new ConstantPoolEntry.Utf8(descriptor)));
+
+        // Attribute count
+        putShort(ret, 1);
+
+        putCode(ret, params, names, maxLocals, code);
 
         return ret.toByteArray();
     }
 
+    private byte[] genMethod(Fun func, String name, boolean exported) {
+        try (Phase phase = Phase.start(options.stats, "codegen", func.name)) {
+            nodesVisited = 0;
+            ByteArrayOutputStream code = fun(func);
+            byte[] ret = genMethodInfo(name, exported, func.formals, maxLocals, code);
+            phase.bytes(ret.length);
+            phase.visited(nodesVisited);
+            return ret;
+        }
+    }
+
     /**
-     * This is a semi-cheaty way to try to find out how deep the stack goes during this method call,
-     * without implementing the advanced data and control flow analysis that javac has.
-     * Whenever bytecode is generated that pushes or pops from the stack these methods are called and the number stored.
-     * The maximum value is found and used (above).
-     * It's primitive and should prefer to overestimate, and thus should be safe.
+     * Generates the one method --trampoline runs a component of mutually recursive funs in, so tail calls between
+     * them (see tailCall) go back around a loop instead of deeper into the stack. It takes the most formals any of
+     * them has, then which one to run, and switches to that fun's body. Formals stay in the same locals as in a
+     * method of their own, a fun with fewer just leaves the rest alone.
      */
+    private byte[] genTrampoline(List<Fun> component) {
+        String name = trampolineName(component);
+        int arity = trampolineArity(component);
+        try (Phase phase = Phase.start(options.stats, "codegen", name)) {
+            nodesVisited = 0;
+            startMethod(arity + 1);
+            whichLocal = arity;
+            trampolining = component;
+            trampolineMembers = new HashSet<>();
+            for (Fun f : component)
+                trampolineMembers.add(f.name);
+            List<ByteArrayOutputStream> bodies = new ArrayList<>();
+            for (Fun f : component) {
+                ByteArrayOutputStream body = statement(f, f.body);
+                body.write(0x03); // iconst_0, the implicit return 0 at the end
+                body.write(0xAC); // ireturn
+                bodies.add(body);
+            }
+            trampolining = null;
+
+            Code code = new Code();
+            loadGlobalsArray(code);
+            Code.Label top = code.newLabel();
+            code.mark(top);
+            code.write(0x15); // iload
+            code.write(whichLocal);
+            Code.Label[] targets = new Code.Label[component.size()];
+            for (int i = 0; i < targets.length; i++)
+                targets[i] = code.newLabel();
+            code.tableSwitch(0, targets[0], targets);
+            for (int i = 0; i < targets.length; i++) {
+                code.mark(targets[i]);
+                append(code, bodies.get(i));
+            }
+
+            List<int[]> jumps = tailJumps.remove(code);
+            if (jumps != null)
+                for (int[] jump : jumps)
+                    code.retarget(jump[0], top);
+
+            byte[] ret = genMethodInfo(name, false, methodDescriptor(arity + 1), Collections.nCopies(arity + 1, "I"), maxLocals, code);
+            phase.bytes(ret.length);
+            phase.visited(nodesVisited);
+            return ret;
+        }
+    }
 
-    private final List<Integer> maxStackTracker = new ArrayList<>();
-    private int curStack = 0;
+    // What a fun in a trampolined component compiles to: a call to the trampoline saying to run its body
+    private byte[] genTrampolineEntry(Fun fun, List<Fun> component) {
+        Code code = new Code();
+        for (int i = 0; i < fun.formals.size(); i++) {
+            code.write(0x15); // iload
+            code.write(i);
+        }
+        for (int i = fun.formals.size(); i < trampolineArity(component); i++)
+            code.write(0x03); // iconst_0
+        pushInt(code, component.indexOf(fun));
+        code.write(0xB8); // invokestatic
+        putShort(code, getMethodRef(className, trampolineName(component), methodDescriptor(trampolineArity(component) + 1)));
+        code.write(0xAC); // ireturn
+        return genMethodInfo(methodName(fun.name), true, fun.formals, fun.formals.size(), code);
+    }
+
+    private static String trampolineName(List<Fun> component) {
+        return "$trampoline$" + component.get(0).name;
+    }
+
+    private static int trampolineArity(List<Fun> component) {
+        return component.stream().mapToInt(f -> f.formals.size()).max().orElse(0);
+    }
+
+    /**
+     * return f(...) inside a trampoline, to a fun in it: overwrites the formals with the actuals and jumps back to the
+     * top to run f's body. The goto gets its offset once the trampoline is put together, see genTrampoline.
+     */
+    private ByteArrayOutputStream tailCall(Fun fun, Expression.Call call) {
+        Fun receiver = findFun(call.callName);
+        if (call.callActuals.size() < receiver.formals.size())
+            throw new CompileException("Not enough arguments");
 
-    private void pushed() {
-        pushed(1);
+        // All the actuals are worked out before any formal changes, they may well use them
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        for (int i = 0; i < receiver.formals.size(); i++)
+            append(ret, expression(fun, call.callActuals.get(i)));
+        for (int i = receiver.formals.size() - 1; i >= 0; i--) {
+            ret.write(0x36); // istore
+            ret.write(i);
+        }
+        Code which = new Code();
+        pushInt(which, trampolining.indexOf(receiver));
+        append(ret, which);
+        ret.write(0x36); // istore
+        ret.write(whichLocal);
+
+        tailJumps.computeIfAbsent(ret, c -> new ArrayList<>()).add(new int[] { ret.size() });
+        ret.write(0xA7); // goto
+        putShort(ret, 0);
+        return ret;
     }
 
-    private void popped() {
-        popped(1);
+    // Statements and expressions generated for the current method, for --stats
+    private int nodesVisited = 0;
+
+    // Line numbers of the statements in code generated so far, keyed by the chunk they're in (see append)
+    private final Map<ByteArrayOutputStream, List<int[]>> lineStarts = new IdentityHashMap<>();
+
+    // Offsets of the gotos back to the top of the trampoline in code generated so far, the same way (see tailCall)
+    private final Map<ByteArrayOutputStream, List<int[]>> tailJumps = new IdentityHashMap<>();
+
+    // Locals past the formals hold the actuals of inlined calls, parallel loops' results and the $globals array
+    private int nextLocal = 0;
+    private int maxLocals = 0;
+
+    // The local holding the method's copy of $globals, claimed the first time a packed global is used (-1 until
+    // then). The copy is made at the start of the method, see loadGlobalsArray
+    private int globalsLocal = -1;
+
+    // Resets the locals for a new method starting out with the given number of them
+    private void startMethod(int params) {
+        nextLocal = params;
+        maxLocals = nextLocal;
+        globalsLocal = -1;
     }
 
-    private void pushed(int count) {
-        curStack += count;
-        maxStackTracker.add(curStack);
+    // Gives back the locals claimed from base on, except the $globals copy, which stays for the rest of the method
+    private void releaseLocals(int base) {
+        nextLocal = Math.max(base, globalsLocal + 1);
     }
 
-    private void popped(int count) {
-        curStack -= count;
-        if (curStack < 0)
-            throw new CompileException("Pop tracker went below 0");
-        maxStackTracker.add(curStack);
+    // The start of a method, once the rest of it has been generated: the copy of $globals if it turned out to need one
+    private void loadGlobalsArray(ByteArrayOutputStream ret) {
+        if (globalsLocal != -1) {
+            // getstatic, astore
+            ret.write(0xB2);
+            putShort(ret, getFieldRef(className, GLOBALS_FIELD, "[I"));
+            ret.write(0x3A);
+            ret.write(globalsLocal);
+        }
     }
 
     private ByteArrayOutputStream fun(Fun fun) {
-        maxStackTracker.clear();
-        curStack = 0;
+        startMethod(fun.formals.size());
 
-        ByteArrayOutputStream ret = statement(fun, fun.body);
+        int calls = options.profile ? profileCounter(fun.name + " calls") : -1;
+        ByteArrayOutputStream body = counted(calls, statement(fun, fun.body));
 
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        loadGlobalsArray(ret);
+        append(ret, body);
 
         // Implicit return 0 at end
         // iconst_0
         ret.write(0x03);
-        pushed();
         // ireturn
         ret.write(0xAC);
-        popped();
 
         return ret;
     }
 
     private ByteArrayOutputStream statement(Fun fun, Statement s) {
+        return atLine(s, statementCode(fun, s));
+    }
+
+    // Marks code as starting s's line in the LineNumberTable, ahead of any lines inside it
+    private ByteArrayOutputStream atLine(Statement s, ByteArrayOutputStream code) {
+        if (options.lineNumbers && s.line > 0 && s.kind != StatementType.BLOCK && code.size() > 0)
+            lines(code).add(0, new int[] { 0, s.line });
+        return code;
+    }
+
+    private ByteArrayOutputStream statementCode(Fun fun, Statement s) {
+        nodesVisited++;
         switch (s.kind) {
             case BLOCK: {
                 ByteArrayOutputStream ret = new ByteArrayOutputStream();
-                for (Statement sub : ((Statement.Block) s).block)
-                    append(ret, statement(fun, sub));
+                Statement previous = null; // a loop's counter may have been set right before it
+                for (Statement sub : ((Statement.Block) s).block) {
+                    append(ret, sub.kind == StatementType.WHILE ? atLine(sub, whileLoop(fun, (Statement.While) sub, previous)) : statement(fun, sub));
+                    previous = sub;
+                }
                 return ret;
             }
             case ASSIGNMENT: {
@@ -566,6 +1731,14 @@ public class Compiler {
                 boolean global = !fun.formals.contains(assign.assignName);
                 ByteArrayOutputStream ret = new ByteArrayOutputStream();
 
+                if (global && packed(assign.assignName)) {
+                    // $globals[slot] = value
+                    loadGlobalsArraySlot(ret, assign.assignName);
+                    append(ret, expression(fun, assign.assignValue));
+                    ret.write(0x4F); // iastore
+                    return ret;
+                }
+
                 append(ret, expression(fun, assign.assignValue));
 
                 if (global) {
@@ -589,43 +1762,80 @@ public class Compiler {
                     }
                 }
 
-                popped();
                 return ret;
             }
             case PRINT: {
                 ByteArrayOutputStream ret = new ByteArrayOutputStream();
 
+                if (!options.selfContained) {
+                    append(ret, expression(fun, ((Statement.Print) s).printValue));
+
+                    // invokestatic
+                    ret.write(0xB8);
+                    putShort(ret, getMethodRef(RUNTIME_CLASS, "print", "(I)V"));
+
+                    return ret;
+                }
+
                 // getstatic System.out
                 ret.write(0xB2);
                 putShort(ret, getFieldRef("java/lang/System", "out", "Ljava/io/PrintStream;"));
-                pushed();
 
                 append(ret, expression(fun, ((Statement.Print) s).printValue));
 
                 // invokestatic
                 ret.write(0xB8);
                 putShort(ret, getMethodRef("java/lang/Integer", "toUnsignedString", "(I)Ljava/lang/String;"));
-                popped();
-                pushed();
 
                 // invokevirtual
                 ret.write(0xB6);
                 putShort(ret, getMethodRef("java/io/PrintStream", "println", "(Ljava/lang/String;)V"));
-                popped(2);
 
                 return ret;
             }
             case IF: {
                 Statement.If ifStatement = ((Statement.If) s);
 
+                // Profiling keeps the chain, so every if still gets its own counts
+                ByteArrayOutputStream dispatch = options.profile ? null : dispatch(fun, ifStatement);
+                if (dispatch != null)
+                    return dispatch;
+
+                int taken = -1;
+                int notTaken = -1;
+                if (options.profile) {
+                    taken = profileCounter(branchLabels.get(s) + " taken");
+                    notTaken = profileCounter(branchLabels.get(s) + " not taken");
+                }
+
                 ByteArrayOutputStream ifCondition = expression(fun, ifStatement.ifCondition);
-                ByteArrayOutputStream trueBranch = statement(fun, ifStatement.ifThen);
-                ByteArrayOutputStream elseBranch = ifStatement.ifElse == null ? new ByteArrayOutputStream(0) : statement(fun, ifStatement.ifElse);
+                ByteArrayOutputStream trueBranch = counted(taken, branch(fun, ifStatement, true));
+                ByteArrayOutputStream elseBranch = counted(notTaken, ifStatement.ifElse == null ? new ByteArrayOutputStream(0) : branch(fun, ifStatement, false));
 
                 ByteArrayOutputStream ret = new ByteArrayOutputStream();
 
                 append(ret, ifCondition);
 
+                if (guide != null && guide.thenIsHot(ifStatement)) {
+                    // The profile says the then branch runs more, so it goes first and falls through instead
+                    boolean hasElse = elseBranch.size() > 0;
+
+                    // ifeq, jump over trueBranch
+                    ret.write(0x99);
+                    putShort(ret, 3 + trueBranch.size() + (hasElse ? 3 : 0)); // This instruction + true branch + goto
+
+                    append(ret, trueBranch);
+
+                    if (hasElse) {
+                        // goto over else branch
+                        ret.write(0xA7);
+                        putShort(ret, 3 + elseBranch.size());
+                        append(ret, elseBranch);
+                    }
+
+                    return ret;
+                }
+
                 // ifne, jump over elseBranch
                 ret.write(0x9A);
                 putShort(ret, (2 + elseBranch.size() + 3) + 1); // These two bytes + else branch code + goto at end of else branch
@@ -642,38 +1852,305 @@ public class Compiler {
 
                 return ret;
             }
-            case WHILE: {
-                Statement.While whileStatement = ((Statement.While) s);
-                ByteArrayOutputStream whileCondition = expression(fun, whileStatement.whileCondition);
-                ByteArrayOutputStream whileBody = statement(fun, whileStatement.whileBody);
-                ByteArrayOutputStream ret = new ByteArrayOutputStream();
-
-                append(ret, whileCondition);
-
-                // ifeq jump over body
-                ret.write(0x99);
-                putShort(ret, (2 + whileBody.size() + 3) + 1); // These two bytes + body code + loopback
-
-                append(ret, whileBody);
-
-                // goto back to condition check
-                ret.write(0xA7);
-                putShort(ret, -(whileBody.size() + 3 + whileCondition.size())); // Back over body + two bytes from if check + conditional
-
-                return ret;
-            }
+            case WHILE: return whileLoop(fun, (Statement.While) s, null);
             case RETURN: {
                 Statement.Return retStatement = ((Statement.Return) s);
+                if (trampolining != null && Recursion.isTailCall(s, trampolineMembers))
+                    return tailCall(fun, (Expression.Call) retStatement.returnValue);
                 ByteArrayOutputStream ret = expression(fun, retStatement.returnValue);
                 // ireturn
                 ret.write(0xAC);
-                popped();
                 return ret;
             }
+            case PARALLEL: return parallel(fun, (Statement.Parallel) s);
             default: throw new CompileException("Unknown statement type: " + s);
         }
     }
 
+    // previous is the statement before the loop in its block, if any
+    private ByteArrayOutputStream whileLoop(Fun fun, Statement.While whileStatement, Statement previous) {
+        ByteArrayOutputStream[] generated = new ByteArrayOutputStream[1]; // the body, if unroll got as far as that
+        ByteArrayOutputStream unrolled = unroll(fun, whileStatement, previous, generated);
+        if (unrolled != null)
+            return unrolled;
+
+        int entries = -1;
+        int iterations = -1;
+        if (options.profile) {
+            entries = profileCounter(branchLabels.get(whileStatement) + " entries");
+            iterations = profileCounter(branchLabels.get(whileStatement) + " iterations");
+        }
+
+        ByteArrayOutputStream whileCondition = expression(fun, whileStatement.whileCondition);
+        ByteArrayOutputStream whileBody = counted(iterations, generated[0] != null ? generated[0] : statement(fun, whileStatement.whileBody));
+        ByteArrayOutputStream ret = counted(entries, new ByteArrayOutputStream()); // Counted once, outside the loop
+
+        append(ret, whileCondition);
+
+        // ifeq jump over body
+        ret.write(0x99);
+        putShort(ret, (2 + whileBody.size() + 3) + 1); // These two bytes + body code + loopback
+
+        append(ret, whileBody);
+
+        // goto back to condition check
+        ret.write(0xA7);
+        putShort(ret, -(whileBody.size() + 3 + whileCondition.size())); // Back over body + two bytes from if check + conditional
+
+        return ret;
+    }
+
+    /**
+     * A loop counting a variable up to a bound by a constant step, e.g.
+     *     while (i < n) { v = v * i; i = i + 1 }
+     * where the body assigns i only there and never assigns n, and calls nothing that could if they're globals.
+     * Goes around once per Options.unroll copies of the body while at least that many iterations are left, then a
+     * copy at a time. The checks it skips are just i < n, so every copy does exactly what that iteration would have.
+     * When the counter was set to a constant right before the loop and the bound is one too, the trip count is
+     * known and a short enough loop becomes that many copies of its body, no checks at all.
+     * Null if s isn't such a loop, or isn't worth it. The body is generated at most once, since that can add methods
+     * (parallel loops, outlined branches) and line numbers, and left in generated for whileLoop if it isn't used here.
+     */
+    private ByteArrayOutputStream unroll(Fun fun, Statement.While s, Statement previous, ByteArrayOutputStream[] generated) {
+        // Profiling counts the loop as written
+        if (options.unroll < 2 || options.profile)
+            return null;
+
+        Expression condition = s.whileCondition;
+        if (condition.kind != LT && condition.kind != GT)
+            return null;
+        Expression.BinaryExpr compare = ((Expression.BinaryExpr) condition);
+        Expression counterSide = condition.kind == LT ? compare.left : compare.right;
+        Expression bound = condition.kind == LT ? compare.right : compare.left;
+        if (counterSide.kind != ExpressionType.VAR || (bound.kind != ExpressionType.VAR && bound.kind != ExpressionType.VAL))
+            return null;
+        String counter = ((Expression.Var) counterSide).varName;
+        String boundName = bound.kind == ExpressionType.VAR ? ((Expression.Var) bound).varName : null;
+        if (counter.equals(boundName))
+            return null;
+
+        List<Statement> body = s.whileBody.kind == StatementType.BLOCK ? ((Statement.Block) s.whileBody).block : Collections.singletonList(s.whileBody);
+        Integer step = null;
+        for (Statement sub : body) {
+            Integer by = counterStep(sub, counter);
+            if (by != null && step != null)
+                return null;
+            if (by != null)
+                step = by;
+        }
+        List<String> assigned = new ArrayList<>();
+        assignments(s.whileBody, assigned);
+        if (step == null || step == 0 || Collections.frequency(assigned, counter) != 1 || assigned.contains(boundName))
+            return null;
+
+        if (!fun.formals.contains(counter) || (boundName != null && !fun.formals.contains(boundName))) {
+            Set<String> callees = new HashSet<>();
+            ParallelLoops.calls(s.whileBody, callees, new HashSet<>(), false);
+            if (!callees.isEmpty()) {
+                if (sideEffectFree == null) {
+                    try (Phase phase = Phase.start(options.stats, "purity", null)) {
+                        sideEffectFree = Purity.sideEffectFreeFuns(funs, phase);
+                    }
+                }
+                if (!sideEffectFree.containsAll(callees))
+                    return null;
+            }
+        }
+
+        String label = branchLabels.get(s);
+        if (previous != null && previous.kind == StatementType.ASSIGNMENT && bound.kind == ExpressionType.VAL) {
+            Statement.Assign start = ((Statement.Assign) previous);
+            if (start.assignName.equals(counter) && start.assignValue.kind == ExpressionType.VAL) {
+                int trips = tripCount(((Expression.Val) start.assignValue).value_unsigned, ((Expression.Val) bound).value_unsigned, step);
+                if (trips > 0)
+                    generated[0] = statement(fun, s.whileBody);
+                if (trips >= 0 && (long) trips * (trips > 0 ? generated[0].size() : 0) <= MAX_UNROLLED_BYTES) {
+                    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+                    for (int i = 0; i < trips; i++)
+                        append(ret, generated[0]);
+                    note("fully unrolled %s, %d iterations", label, trips);
+                    return ret;
+                }
+            }
+        }
+
+        if (guide != null && guide.averageTrips(s) < options.unroll) {
+            note("not unrolling %s, it only went around %.1f times per entry", label, guide.averageTrips(s));
+            return null;
+        }
+        // Past this many iterations left the copies run without checks, any further and the counter could wrap
+        long skip = (options.unroll - 1) * Integer.toUnsignedLong(step);
+        if (skip > 0xFFFFFFFFL)
+            return null;
+        if (generated[0] == null)
+            generated[0] = statement(fun, s.whileBody);
+        ByteArrayOutputStream once = generated[0];
+        if ((long) once.size() * options.unroll > MAX_UNROLLED_BYTES) {
+            note("not unrolling %s, %d copies of its %d byte body would be too big", label, options.unroll, once.size());
+            return null;
+        }
+
+        // top: if !(i < n) goto end
+        //      if (n - i) <= skip, unsigned, goto single
+        //      body x unroll, goto top
+        // single: body, goto top
+        // end:
+        Code code = new Code();
+        Code.Label top = code.newLabel();
+        Code.Label single = code.newLabel();
+        Code.Label end = code.newLabel();
+        code.mark(top);
+        append(code, expression(fun, condition));
+        code.jump(0x99, end); // ifeq
+        append(code, expression(fun, bound));
+        append(code, expression(fun, counterSide));
+        code.write(0x64); // isub
+        pushInt(code, (int) skip);
+        // invokestatic
+        code.write(0xB8);
+        putShort(code, getMethodRef("java/lang/Integer", "compareUnsigned", "(II)I"));
+        code.jump(0x9E, single); // ifle
+        for (int i = 0; i < options.unroll; i++)
+            append(code, once);
+        code.jump(0xA7, top); // goto
+        code.mark(single);
+        append(code, once);
+        code.jump(0xA7, top); // goto
+        code.mark(end);
+
+        note("unrolled %s %d times", label, options.unroll);
+        return code;
+    }
+
+    // How much s moves counter by, if it's counter = counter + constant (or constant + counter)
+    private static Integer counterStep(Statement s, String counter) {
+        if (s.kind != StatementType.ASSIGNMENT || !((Statement.Assign) s).assignName.equals(counter))
+            return null;
+        Expression value = ((Statement.Assign) s).assignValue;
+        if (value.kind != ExpressionType.PLUS)
+            return null;
+        Expression left = ((Expression.BinaryExpr) value).left;
+        Expression right = ((Expression.BinaryExpr) value).right;
+        Expression constant = left.kind == ExpressionType.VAR ? right : left;
+        Expression var = constant == left ? right : left;
+        if (var.kind != ExpressionType.VAR || !((Expression.Var) var).varName.equals(counter) || constant.kind != ExpressionType.VAL)
+            return null;
+        return ((Expression.Val) constant).value_unsigned;
+    }
+
+    // Iterations of while (i < bound) { ... i = i + step ... } starting from start, -1 if more than MAX_FULL_UNROLL
+    private static int tripCount(int start, int bound, int step) {
+        int trips = 0;
+        for (int i = start; Integer.compareUnsigned(i, bound) < 0; i += step)
+            if (++trips > MAX_FULL_UNROLL)
+                return -1;
+        return trips;
+    }
+
+    // Every name s assigns, once per assignment
+    private static void assignments(Statement s, List<String> names) {
+        switch (s.kind) {
+            case BLOCK: ((Statement.Block) s).block.forEach(sub -> assignments(sub, names)); break;
+            case ASSIGNMENT: names.add(((Statement.Assign) s).assignName); break;
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                assignments(ifStatement.ifThen, names);
+                if (ifStatement.ifElse != null)
+                    assignments(ifStatement.ifElse, names);
+                break;
+            }
+            case WHILE: assignments(((Statement.While) s).whileBody, names); break;
+            case PARALLEL: {
+                Statement.Parallel loop = ((Statement.Parallel) s);
+                names.add(loop.parallelVar);
+                names.addAll(loop.parallelLocals);
+                names.addAll(loop.parallelReductions);
+                break;
+            }
+            default: break;
+        }
+    }
+
+    /**
+     * An if chain comparing the same variable against constants all the way down, e.g.
+     *     if (x == 0) { ... } else if (x == 1) { ... } else if (x == 7) { ... } else { ... }
+     * as a single switch, with the final else as its default. It's a tableswitch when the constants are dense
+     * enough and a lookupswitch otherwise (javac's cost model), either way one jump however many cases there are.
+     * Null if s doesn't start a chain of at least MIN_SWITCH_CASES.
+     */
+    private ByteArrayOutputStream dispatch(Fun fun, Statement.If s) {
+        Expression.Var var = null;
+        Map<Integer, Statement.If> cases = new LinkedHashMap<>(); // in order, the first if with a constant wins
+        Statement.If last = null;
+        for (Statement.If current = s; current != null; current = elseIf(current)) {
+            Expression condition = current.ifCondition;
+            if (condition.kind != ExpressionType.EQ)
+                break;
+            Expression.BinaryExpr eq = ((Expression.BinaryExpr) condition);
+            Expression side = eq.left.kind == ExpressionType.VAR ? eq.left : eq.right;
+            Expression constant = side == eq.left ? eq.right : eq.left;
+            if (side.kind != ExpressionType.VAR || constant.kind != ExpressionType.VAL)
+                break;
+            if (var != null && !var.varName.equals(((Expression.Var) side).varName))
+                break;
+
+            var = ((Expression.Var) side);
+            cases.putIfAbsent(((Expression.Val) constant).value_unsigned, current);
+            last = current;
+        }
+        if (cases.size() < MIN_SWITCH_CASES)
+            return null;
+
+        int[] keys = new int[cases.size()];
+        int n = 0;
+        for (int key : cases.keySet())
+            keys[n++] = key;
+        Arrays.sort(keys); // signed, as the JVM compares them
+        Map<Integer, Code.Label> labels = new HashMap<>();
+
+        Code code = new Code();
+        Code.Label otherwise = code.newLabel();
+        Code.Label end = code.newLabel();
+        for (int key : keys)
+            labels.put(key, code.newLabel());
+
+        append(code, expression(fun, var));
+        long range = (long) keys[n - 1] - keys[0] + 1;
+        boolean table = 4 + range + 3 * 3 <= 3 + 2L * n + 3L * n;
+        if (table) {
+            Code.Label[] targets = new Code.Label[(int) range];
+            for (int i = 0; i < targets.length; i++)
+                targets[i] = labels.getOrDefault(keys[0] + i, otherwise);
+            code.tableSwitch(keys[0], otherwise, targets);
+        } else {
+            Code.Label[] targets = new Code.Label[n];
+            for (int i = 0; i < n; i++)
+                targets[i] = labels.get(keys[i]);
+            code.lookupSwitch(keys, otherwise, targets);
+        }
+
+        for (Map.Entry<Integer, Statement.If> entry : cases.entrySet()) {
+            code.mark(labels.get(entry.getKey()));
+            append(code, branch(fun, entry.getValue(), true));
+            code.jump(0xA7, end); // goto
+        }
+        code.mark(otherwise);
+        if (last.ifElse != null)
+            append(code, branch(fun, last, false));
+        code.mark(end);
+
+        note("compiled the if chain on %s in %s into a %s of %d cases", var.varName, fun.name, table ? "tableswitch" : "lookupswitch", n);
+        return code;
+    }
+
+    // The if that's all there is to s's else, if there's one
+    private static Statement.If elseIf(Statement.If s) {
+        Statement next = s.ifElse;
+        while (next != null && next.kind == StatementType.BLOCK && ((Statement.Block) next).block.size() == 1)
+            next = ((Statement.Block) next).block.get(0);
+        return next != null && next.kind == StatementType.IF ? (Statement.If) next : null;
+    }
+
     /**
      * Postcondition of executing the bytecode produced by this method:
      *     Expression result value (int) is on top of stack after completion
@@ -681,13 +2158,17 @@ public class Compiler {
      */
 
     private ByteArrayOutputStream expression(Fun fun, Expression e) {
+        nodesVisited++;
         switch (e.kind) {
             case VAR: {
                 Expression.Var varExp = ((Expression.Var) e);
                 boolean global = !fun.formals.contains(varExp.varName);
                 ByteArrayOutputStream ret = new ByteArrayOutputStream();
 
-                if (global) {
+                if (global && packed(varExp.varName)) {
+                    loadGlobalsArraySlot(ret, varExp.varName);
+                    ret.write(0x2E); // iaload
+                } else if (global) {
                     globalVars.add(varExp.varName);
                     // getstatic
                     ret.write(0xB2);
@@ -709,7 +2190,6 @@ public class Compiler {
                     }
                 }
 
-                pushed();
                 return ret;
             }
             case VAL: {
@@ -727,15 +2207,20 @@ public class Compiler {
                         // put into constant pool
                         short index = findOrPut(new ConstantPoolEntry.Int(valExp.value_unsigned));
 
-                        // ldc
-                        ret.write(0x12);
-                        ret.write((byte) index);
+                        if ((index & 0xFFFF) <= 0xFF) {
+                            // ldc
+                            ret.write(0x12);
+                            ret.write(index);
+                        } else {
+                            // ldc_w, the pool outgrew ldc's one byte index
+                            ret.write(0x13);
+                            putShort(ret, index);
+                        }
 
                         break;
                     }
                 }
 
-                pushed();
                 return ret;
             }
 
@@ -755,38 +2240,33 @@ public class Compiler {
 
                 if (e.kind == ExpressionType.PLUS) {
                     ret.write(0x60); // iadd
-                    popped(2);
-                    pushed();
                 } else if (e.kind == ExpressionType.MUL) {
                     ret.write(0x68); // imul
-                    popped(2);
-                    pushed();
                 } else {
                     // invokestatic our condtional helpers
                     ret.write(0xB8);
                     String callName;
 
                     switch (e.kind) {
-                        case LT: callName = "$isLt"; break;
-                        case GT: callName = "$isGt"; break;
+                        case LT: callName = "isLt"; break;
+                        case GT: callName = "isGt"; break;
                         case EQ:
-                        case NE: callName = "$isEq"; break;
+                        case NE: callName = "isEq"; break;
                         default: callName = "PANIC_IF_THIS_APPEARS"; break;
                     }
 
-                    putShort(ret, getMethodRef(className, callName, "(II)I"));
-                    popped(2);
-                    pushed();
+                    // Self-contained classes carry their own copies, prefixed with $
+                    if (options.selfContained)
+                        putShort(ret, getMethodRef(className, "$" + callName, "(II)I"));
+                    else
+                        putShort(ret, getMethodRef(RUNTIME_CLASS, callName, "(II)I"));
 
                     // If NE, invert result of call to $isEq()
                     if (e.kind == NE) {
                         // iconst_1
                         ret.write(0x04);
-                        pushed();
                         // ixor by 1 (flips 1-0 and vice versa)
                         ret.write(0x82);
-                        popped(2);
-                        pushed();
                     }
                 }
 
@@ -795,11 +2275,19 @@ public class Compiler {
             case CALL: {
                 Expression.Call call = ((Expression.Call) e);
                 Fun receiver = findFun(call.callName);
+                if (receiver == null && !imports.isEmpty())
+                    return externalCall(fun, call);
                 if (receiver == null)
                     throw new CompileException("Calling something nonexistent");
                 if (call.callActuals.size() < receiver.formals.size())
                     throw new CompileException("Not enough arguments");
 
+                Expression inline = guide == null || memoized.contains(receiver.name) || inlining.contains(receiver.name) ? null : guide.inlineBody(receiver);
+                if (inline != null && nextLocal + receiver.formals.size() <= 0xFF) {
+                    note("inlined %s into %s", receiver.name, fun.name);
+                    return inlineCall(fun, call, receiver, inline);
+                }
+
                 ByteArrayOutputStream ret = new ByteArrayOutputStream();
 
                 // actuals guaranteed to be >= formals vua above. Extra actuals ignored at compile time.
@@ -809,16 +2297,410 @@ public class Compiler {
 
                 // invokestatic
                 ret.write(0xB8);
-                boolean mangle = call.callName.equals("main");
-                putShort(ret, getMethodRef(className, (mangle ? "$" : "") + call.callName, "(" + String.join("", Collections.nCopies(receiver.formals.size(), "I")) + ")I"));
+                putShort(ret, getMethodRef(className, methodName(call.callName), methodDescriptor(receiver.formals.size())));
 
-                popped(receiver.formals.size());
-                pushed();
 
                 return ret;
             }
+            case ASYNC: return async(fun, ((Expression.Async) e).asyncCall);
+            case AWAIT: {
+                ByteArrayOutputStream ret = new ByteArrayOutputStream();
+                if (options.selfContained) {
+                    // The handle is the result already, see async
+                    append(ret, expression(fun, ((Expression.Await) e).awaitHandle));
+                    return ret;
+                }
+
+                // getstatic, the handle, invokevirtual
+                usesTasks = true;
+                ret.write(0xB2);
+                putShort(ret, getFieldRef(className, TASKS_FIELD, "L" + TASKS_CLASS + ";"));
+                append(ret, expression(fun, ((Expression.Await) e).awaitHandle));
+                ret.write(0xB6);
+                putShort(ret, getMethodRef(TASKS_CLASS, "await", "(I)I"));
+                return ret;
+            }
             default: throw new CompileException("Unknown expression type: " + e);
         }
     }
 
+    /**
+     * Evaluates the actuals here, then hands the callee and them to the class's Tasks, which starts the call on
+     * another thread and gives back its handle. Self-contained classes have no Tasks to go to, so they make the call
+     * right away and use the result as the handle, which is what a call that happened to finish before anyone looked
+     * would give anyway.
+     *
+     * Globals are plain static fields (or $globals slots), no volatile or locking, so code on one thread sees
+     * another thread's writes only once something orders the two. For async that's the call starting, which sees
+     * everything written before it, and await, after which everything the call wrote is visible (see Tasks).
+     * Parallel loops can't write globals at all until they're over.
+     */
+    private ByteArrayOutputStream async(Fun fun, Expression.Call call) {
+        Fun receiver = findFun(call.callName);
+        if (receiver == null)
+            throw new CompileException(imports.isEmpty() ? "Calling something nonexistent" : "async can only call funs in the same file");
+        if (call.callActuals.size() < receiver.formals.size())
+            throw new CompileException("Not enough arguments");
+
+        Code code = new Code();
+        short method = getMethodRef(className, methodName(call.callName), methodDescriptor(receiver.formals.size()));
+        if (options.selfContained) {
+            for (int i = 0; i < receiver.formals.size(); i++)
+                append(code, expression(fun, call.callActuals.get(i)));
+            // invokestatic
+            code.write(0xB8);
+            putShort(code, method);
+            return code;
+        }
+
+        // getstatic the table, ldc_w the callee
+        usesTasks = true;
+        code.write(0xB2);
+        putShort(code, getFieldRef(className, TASKS_FIELD, "L" + TASKS_CLASS + ";"));
+        code.write(0x13);
+        putShort(code, methodHandle(method));
+
+        // The actuals in an array, extra ones never evaluated like any other call
+        pushInt(code, receiver.formals.size());
+        code.write(0xBC); // newarray int
+        code.write(10);
+        for (int i = 0; i < receiver.formals.size(); i++) {
+            code.write(0x59); // dup
+            pushInt(code, i);
+            append(code, expression(fun, call.callActuals.get(i)));
+            code.write(0x4F); // iastore
+        }
+
+        // invokevirtual
+        code.write(0xB6);
+        putShort(code, getMethodRef(TASKS_CLASS, "async", "(Ljava/lang/invoke/MethodHandle;[I)I"));
+        return code;
+    }
+
+    /**
+     * Evaluates the actuals into fresh locals, then the callee's returned expression on top of them.
+     * The expression sees a scope made up of just the callee's formals at those locals, so the caller's formals
+     * can't shadow the callee's globals.
+     */
+    private ByteArrayOutputStream inlineCall(Fun fun, Expression.Call call, Fun callee, Expression body) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        int base = nextLocal;
+        int arity = callee.formals.size();
+
+        // Claimed up front, since actuals may have inlined calls of their own
+        nextLocal = base + arity;
+        maxLocals = Math.max(maxLocals, nextLocal);
+
+        for (int i = 0; i < arity; i++) {
+            append(ret, expression(fun, call.callActuals.get(i)));
+            // istore
+            ret.write(0x36);
+            ret.write(base + i);
+        }
+
+        // Every slot below base is out of scope, and no fun has a formal named ""
+        List<String> scope = new ArrayList<>(Collections.nCopies(base, ""));
+        scope.addAll(callee.formals);
+
+        inlining.add(callee.name);
+        append(ret, expression(new Fun(callee.name, scope, null), body));
+        inlining.remove(callee.name);
+
+        releaseLocals(base);
+        return ret;
+    }
+
+    /**
+     * Generates one branch of an if, or a call to it if the profile says to move it out of the way
+     */
+    private ByteArrayOutputStream branch(Fun fun, Statement.If s, boolean then) {
+        Statement branch = then ? s.ifThen : s.ifElse;
+        // A parallel loop's body starts with arrays where the fun's formals would be
+        if (guide == null || inParallelChunk || !guide.shouldOutline(fun, s, then))
+            return statement(fun, branch);
+
+        Fun cold = new Fun("$cold$" + fun.name + "$" + (++outlinedCount), fun.formals, branch);
+        outlined.add(cold);
+        note("moved never taken %s branch of %s into %s", then ? "then" : "else", branchLabels.get(s), cold.name);
+
+        // Pass every formal along, call, and drop the (always 0) result
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        for (int i = 0; i < fun.formals.size(); i++) {
+            // iload
+            ret.write(0x15);
+            ret.write(i);
+        }
+
+        // invokestatic
+        ret.write(0xB8);
+        putShort(ret, getMethodRef(className, cold.name, methodDescriptor(fun.formals.size())));
+
+        // pop
+        ret.write(0x57);
+
+        return ret;
+    }
+
+    /**
+     * Hands the body of a parallel loop, compiled into a method of its own, to FunRuntime.parallel, which splits the
+     * range into slices for the common ForkJoinPool. Everything in scope is passed along by value in an int[], and
+     * what the reductions add up to comes back in another, to be folded into where they belong here.
+     * Self-contained classes have no runtime to do the splitting, so they run the one slice covering it all.
+     */
+    private ByteArrayOutputStream parallel(Fun fun, Statement.Parallel loop) {
+        List<String> formals = new ArrayList<>(Collections.nCopies(CHUNK_PARAMETERS.size(), ""));
+        formals.addAll(ParallelLoops.scope(fun.formals, loop));
+        Fun chunk = new Fun("$parallel$" + (++parallelChunkCount), formals, loop);
+        parallelChunks.add(chunk);
+        short chunkMethod = getMethodRef(className, chunk.name, CHUNK_DESCRIPTOR);
+        note("compiled the parallel loop over %s in %s into %s", loop.parallelVar, fun.name, chunk.name);
+
+        // Claimed up front, since the range may have inlined calls of their own
+        int results = nextLocal++;
+        maxLocals = Math.max(maxLocals, nextLocal);
+
+        Code code = new Code();
+        if (options.selfContained) {
+            // Reductions start out at 0 for + and 1 for *
+            pushInt(code, loop.parallelReductions.size());
+            code.write(0xBC); // newarray int
+            code.write(10);
+            for (int i = 0; i < loop.parallelOps.size(); i++) {
+                if (loop.parallelOps.get(i) == ExpressionType.MUL) {
+                    code.write(0x59); // dup
+                    pushInt(code, i);
+                    code.write(0x04); // iconst_1
+                    code.write(0x4F); // iastore
+                }
+            }
+            code.write(0x3A); // astore
+            code.write(results);
+        } else {
+            // ldc_w the chunk's method handle
+            code.write(0x13);
+            putShort(code, methodHandle(chunkMethod));
+        }
+
+        // Captures, skipping what's blank since that may not even be an int
+        pushInt(code, fun.formals.size());
+        code.write(0xBC); // newarray int
+        code.write(10);
+        for (int i = 0; i < fun.formals.size(); i++) {
+            if (fun.formals.get(i).isEmpty())
+                continue;
+            code.write(0x59); // dup
+            pushInt(code, i);
+            code.write(0x15); // iload
+            code.write(i);
+            code.write(0x4F); // iastore
+        }
+
+        append(code, expression(fun, loop.parallelFrom));
+        append(code, expression(fun, loop.parallelTo));
+
+        if (options.selfContained) {
+            code.write(0x19); // aload
+            code.write(results);
+            code.write(0xB8); // invokestatic
+            putShort(code, chunkMethod);
+        } else {
+            StringBuilder ops = new StringBuilder();
+            for (ExpressionType op : loop.parallelOps)
+                ops.append(op == ExpressionType.MUL ? '*' : '+');
+            code.write(0x13); // ldc_w
+            putShort(code, findOrPut(new ConstantPoolEntry.Str(findOrPut(new ConstantPoolEntry.Utf8(ops.toString())))));
+
+            code.write(0xB8); // invokestatic
+            putShort(code, getMethodRef(RUNTIME_CLASS, "parallel", "(Ljava/lang/invoke/MethodHandle;[IIILjava/lang/String;)[I"));
+            code.write(0x3A); // astore
+            code.write(results);
+        }
+
+        for (int i = 0; i < loop.parallelReductions.size(); i++) {
+            String name = loop.parallelReductions.get(i);
+            int op = loop.parallelOps.get(i) == ExpressionType.MUL ? 0x68 : 0x60; // imul, iadd
+            int local = fun.formals.indexOf(name);
+            boolean packed = local == -1 && packed(name);
+
+            // name = name op results[i]
+            if (local != -1) {
+                code.write(0x15); // iload
+                code.write(local);
+            } else if (packed) {
+                loadGlobalsArraySlot(code, name);
+                code.write(0x5C); // dup2
+                code.write(0x2E); // iaload
+            } else {
+                globalVars.add(name);
+                code.write(0xB2); // getstatic
+                putShort(code, getFieldRef(className, name, "I"));
+            }
+
+            code.write(0x19); // aload
+            code.write(results);
+            pushInt(code, i);
+            code.write(0x2E); // iaload
+            code.write(op);
+
+            if (local != -1) {
+                code.write(0x36); // istore
+                code.write(local);
+            } else if (packed) {
+                code.write(0x4F); // iastore
+            } else {
+                code.write(0xB3); // putstatic
+                putShort(code, getFieldRef(className, name, "I"));
+            }
+        }
+
+        releaseLocals(results);
+        return code;
+    }
+
+    /**
+     * Generates the method for the body of a parallel loop, which runs iterations lo until hi (unsigned).
+     * Captures are copied into the locals they had outside, then come the loop variable, the body's own locals
+     * (0 at the start of every iteration) and the reductions, which start from and end up back in partials.
+     */
+    private byte[] genParallelChunk(Fun chunk) {
+        Statement.Parallel loop = (Statement.Parallel) chunk.body;
+        int base = CHUNK_PARAMETERS.size();
+        int var = chunk.formals.size() - loop.parallelReductions.size() - loop.parallelLocals.size() - 1;
+        int reductions = var + 1 + loop.parallelLocals.size();
+
+        try (Phase phase = Phase.start(options.stats, "codegen", chunk.name)) {
+            nodesVisited = 0;
+            startMethod(chunk.formals.size());
+
+            inParallelChunk = true;
+            ByteArrayOutputStream body = statement(new Fun(chunk.name, chunk.formals, loop.parallelBody), loop.parallelBody);
+            inParallelChunk = false;
+
+            Code code = new Code();
+            loadGlobalsArray(code);
+
+            for (int i = base; i < var; i++) {
+                if (chunk.formals.get(i).isEmpty())
+                    continue;
+                code.write(0x2A); // aload_0
+                pushInt(code, i - base);
+                code.write(0x2E); // iaload
+                code.write(0x36); // istore
+                code.write(i);
+            }
+            for (int i = 0; i < loop.parallelReductions.size(); i++) {
+                code.write(0x2D); // aload_3
+                pushInt(code, i);
+                code.write(0x2E); // iaload
+                code.write(0x36); // istore
+                code.write(reductions + i);
+            }
+
+            code.write(0x1B); // iload_1
+            code.write(0x36); // istore
+            code.write(var);
+
+            Code.Label top = code.newLabel();
+            Code.Label done = code.newLabel();
+            code.mark(top);
+            code.write(0x15); // iload
+            code.write(var);
+            code.write(0x1C); // iload_2
+            code.write(0xB8); // invokestatic
+            putShort(code, getMethodRef("java/lang/Integer", "compareUnsigned", "(II)I"));
+            code.jump(0x9C, done); // ifge
+
+            for (int i = var + 1; i < reductions; i++) {
+                code.write(0x03); // iconst_0
+                code.write(0x36); // istore
+                code.write(i);
+            }
+            append(code, body);
+
+            code.write(0x84); // iinc
+            code.write(var);
+            code.write(1);
+            code.jump(0xA7, top); // goto
+
+            code.mark(done);
+            for (int i = 0; i < loop.parallelReductions.size(); i++) {
+                code.write(0x2D); // aload_3
+                pushInt(code, i);
+                code.write(0x15); // iload
+                code.write(reductions + i);
+                code.write(0x4F); // iastore
+            }
+            code.write(0xB1); // return
+
+            byte[] ret = genMethodInfo(chunk.name, false, CHUNK_DESCRIPTOR, CHUNK_PARAMETERS, maxLocals, code);
+            phase.bytes(ret.length);
+            phase.visited(nodesVisited);
+            return ret;
+        }
+    }
+
+    /**
+     * Whether the named global lives in $globals rather than a field of its own. Normally that's all of them or none,
+     * but a pipelined compile can't count them first, so the first packGlobalsAbove it comes across get fields and
+     * the rest are packed.
+     */
+    private boolean packed(String name) {
+        if (globalSlots == null)
+            return false;
+        if (!pipelined || options.globalSlots != null || globalSlots.containsKey(name))
+            return true;
+        if (globalVars.contains(name) || globalVars.size() < options.packGlobalsAbove)
+            return false;
+        globalSlots.put(name, globalSlots.size());
+        return true;
+    }
+
+    /**
+     * Pushes the globals array and the slot of the named global in it
+     */
+    private void loadGlobalsArraySlot(ByteArrayOutputStream ret, String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot == null)
+            throw new CompileException("No slot for global " + name);
+
+        if (globalsLocal == -1) {
+            globalsLocal = nextLocal++;
+            maxLocals = Math.max(maxLocals, nextLocal);
+        }
+
+        // aload the copy loadGlobalsArray puts in a local
+        ret.write(0x19);
+        ret.write(globalsLocal);
+
+        Code index = new Code();
+        pushInt(index, slot);
+        append(ret, index);
+    }
+
+    /**
+     * A call to a fun this file doesn't define, left for Linker to resolve against the imports the first time it runs.
+     * We can't see the receiver, so every actual is passed and the arity has to match exactly at link time.
+     */
+    private ByteArrayOutputStream externalCall(Fun fun, Expression.Call call) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        for (Expression actual : call.callActuals) {
+            append(ret, expression(fun, actual));
+        }
+
+        linksExternally = true;
+        short nameIndex = findOrPut(new ConstantPoolEntry.Utf8(methodName(call.callName)));
+        short descriptorIndex = findOrPut(new ConstantPoolEntry.Utf8(methodDescriptor(call.callActuals.size())));
+        short nameAndTypeIndex = findOrPut(new ConstantPoolEntry.NameAndType(nameIndex, descriptorIndex));
+
+        // invokedynamic, always bootstrap method 0
+        ret.write(0xBA);
+        short callSite = findOrPut(new ConstantPoolEntry.InvokeDynamic((short) 0, nameAndTypeIndex));
+        poolTypes.put(callSite & 0xFFFF, methodDescriptor(call.callActuals.size()));
+        putShort(ret, callSite);
+        putShort(ret, 0);
+
+
+        return ret;
+    }
+
 }
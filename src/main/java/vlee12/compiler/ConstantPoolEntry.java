@@ -204,13 +204,104 @@ abstract class ConstantPoolEntry {
         }
     }
 
+    static class Str extends ConstantPoolEntry {
+
+        private final byte[] ret;
+
+        Str(short utf8Index) {
+            super(EntryType.STRING);
+            ret = new byte[3];
+            ret[0] = type.id;
+            ret[1] = (byte) (utf8Index >>> 8);
+            ret[2] = (byte) (utf8Index);
+        }
+
+        @Override
+        byte[] getBytes() {
+            return ret;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(ret);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Str && Arrays.equals(ret, ((Str) o).ret);
+        }
+    }
+
+    static class MethodHandle extends ConstantPoolEntry {
+        static final int REF_INVOKE_STATIC = 6;
+
+        private final byte[] ret;
+
+        MethodHandle(int referenceKind, short referenceIndex) {
+            super(EntryType.METHOD_HANDLE);
+            ret = new byte[4];
+            ret[0] = type.id;
+            ret[1] = (byte) referenceKind;
+            ret[2] = (byte) (referenceIndex >>> 8);
+            ret[3] = (byte) (referenceIndex);
+        }
+
+        @Override
+        byte[] getBytes() {
+            return ret;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(ret);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MethodHandle && Arrays.equals(ret, ((MethodHandle) o).ret);
+        }
+    }
+
+    static class InvokeDynamic extends ConstantPoolEntry {
+
+        private final byte[] ret;
+
+        InvokeDynamic(short bootstrapIndex, short nameTypeIndex) {
+            super(EntryType.INVOKE_DYNAMIC);
+            ret = new byte[5];
+            ret[0] = type.id;
+            ret[1] = (byte) (bootstrapIndex >>> 8);
+            ret[2] = (byte) (bootstrapIndex);
+            ret[3] = (byte) (nameTypeIndex >>> 8);
+            ret[4] = (byte) (nameTypeIndex);
+        }
+
+        @Override
+        byte[] getBytes() {
+            return ret;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(ret);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof InvokeDynamic && Arrays.equals(ret, ((InvokeDynamic) o).ret);
+        }
+    }
+
     public enum EntryType {
         UTF8(1),
         INTEGER(3),
         CLASS(7),
+        STRING(8),
         FIELD(9),
         METHOD(10),
-        NAME_AND_TYPE(12);
+        NAME_AND_TYPE(12),
+        METHOD_HANDLE(15),
+        INVOKE_DYNAMIC(18);
 
         public final byte id;
 
@@ -0,0 +1,282 @@
+package vlee12.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.Writer;
+
+import static vlee12.compiler.Bytecode.isBranch;
+import static vlee12.compiler.Bytecode.length;
+import static vlee12.compiler.Bytecode.s2;
+import static vlee12.compiler.Bytecode.s4;
+import static vlee12.compiler.Bytecode.switchOperands;
+import static vlee12.compiler.Bytecode.u1;
+import static vlee12.compiler.Bytecode.u2;
+
+/**
+ * Prints the methods of a class file, one instruction per line with constants resolved, for --dump-bytecode.
+ * It reads the finished class rather than peeking at the compiler, so what it shows is exactly what the JVM gets.
+ * Each line goes to the writer as soon as it's decoded.
+ *
+ *   method public static synthetic factorial (I)I, max stack 2, max locals 1, 49 bytes
+ *          0  iload_0
+ *          1  invokestatic vlee12/runtime/FunRuntime.print (I)V
+ *          4  iconst_0
+ *          5  putstatic t3.i I
+ *          8  iconst_1
+ *          9  putstatic t3.v I
+ *         12  getstatic t3.i I
+ *         15  iload_0
+ *         16  invokestatic vlee12/runtime/FunRuntime.isLt (II)I
+ *         19  ifeq 43
+ *         ...
+ */
+public final class Disassembler {
+
+    private final Writer out;
+    private final DataInputStream in;
+
+    // Constant pool, entries that refer to others keep the indices they refer to
+    private int[] tags;
+    private Object[] values; // String for Utf8, Integer, Long, int[] for everything made of indices
+
+    private Disassembler(byte[] classFile, Writer out) {
+        this.out = out;
+        this.in = new DataInputStream(new ByteArrayInputStream(classFile));
+    }
+
+    public static void dump(byte[] classFile, Writer out) throws IOException {
+        new Disassembler(classFile, out).dump();
+    }
+
+    private void dump() throws IOException {
+        if (in.readInt() != 0xCAFEBABE)
+            throw new IOException("Not a class file");
+        int minor = in.readUnsignedShort();
+        int major = in.readUnsignedShort();
+        readConstantPool();
+
+        int flags = in.readUnsignedShort();
+        String name = className(in.readUnsignedShort());
+        String superName = className(in.readUnsignedShort());
+        out.write(String.format("class %s%s extends %s, version %d.%d, %d constants%n",
+                modifiers(flags), name, superName, major, minor, tags.length - 1));
+
+        skip(2 * in.readUnsignedShort()); // interfaces
+
+        int fieldCount = in.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            int fieldFlags = in.readUnsignedShort();
+            String fieldName = utf8(in.readUnsignedShort());
+            String descriptor = utf8(in.readUnsignedShort());
+            out.write(String.format("  field %s%s %s%n", modifiers(fieldFlags), fieldName, descriptor));
+            skipAttributes();
+        }
+
+        int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++)
+            method();
+
+        int attributes = in.readUnsignedShort();
+        for (int i = 0; i < attributes; i++) {
+            String attribute = utf8(in.readUnsignedShort());
+            int length = in.readInt();
+            if (attribute.equals("SourceFile"))
+                out.write(String.format("  source %s%n", utf8(in.readUnsignedShort())));
+            else
+                skip(length);
+        }
+
+        out.flush();
+    }
+
+    private void method() throws IOException {
+        int flags = in.readUnsignedShort();
+        String name = utf8(in.readUnsignedShort());
+        String descriptor = utf8(in.readUnsignedShort());
+        out.write(String.format("  method %s%s %s", modifiers(flags), name, descriptor));
+
+        int attributes = in.readUnsignedShort();
+        boolean hasCode = false;
+        for (int i = 0; i < attributes; i++) {
+            String attribute = utf8(in.readUnsignedShort());
+            int length = in.readInt();
+            if (!attribute.equals("Code")) {
+                skip(length);
+                continue;
+            }
+
+            hasCode = true;
+            int maxStack = in.readUnsignedShort();
+            int maxLocals = in.readUnsignedShort();
+            byte[] code = new byte[in.readInt()];
+            in.readFully(code);
+            out.write(String.format(", max stack %d, max locals %d, %d bytes%n", maxStack, maxLocals, code.length));
+            code(code);
+
+            skip(8 * in.readUnsignedShort()); // exception table
+            int codeAttributes = in.readUnsignedShort();
+            for (int j = 0; j < codeAttributes; j++) {
+                String codeAttribute = utf8(in.readUnsignedShort());
+                int codeAttributeLength = in.readInt();
+                if (codeAttribute.equals("StackMapTable")) {
+                    // Just how many, the frames themselves are what the code above says anyway
+                    int frames = in.readUnsignedShort();
+                    skip(codeAttributeLength - 2);
+                    out.write(String.format("         %d stack map frames%n", frames));
+                } else if (codeAttribute.equals("LineNumberTable")) {
+                    StringBuilder lines = new StringBuilder();
+                    for (int k = in.readUnsignedShort(); k > 0; k--)
+                        lines.append(' ').append(in.readUnsignedShort()).append(':').append(in.readUnsignedShort());
+                    out.write(String.format("         lines (pc:line)%s%n", lines));
+                } else if (codeAttribute.equals("LocalVariableTable")) {
+                    StringBuilder locals = new StringBuilder();
+                    for (int k = in.readUnsignedShort(); k > 0; k--) {
+                        skip(4); // live for the whole method
+                        String local = utf8(in.readUnsignedShort());
+                        skip(2); // always an int
+                        locals.append(' ').append(in.readUnsignedShort()).append(':').append(local);
+                    }
+                    out.write(String.format("         locals (slot:name)%s%n", locals));
+                } else {
+                    skip(codeAttributeLength);
+                }
+            }
+        }
+        if (!hasCode)
+            out.write(String.format("%n"));
+    }
+
+    private void code(byte[] code) throws IOException {
+        int pc = 0;
+        while (pc < code.length) {
+            out.write(String.format("%10d  %s%n", pc, instruction(code, pc)));
+            pc += length(code, pc);
+        }
+    }
+
+    private String instruction(byte[] code, int pc) {
+        int op = u1(code, pc);
+        String name = Bytecode.name(op);
+        if (isBranch(op))
+            return name + " " + (pc + s2(code, pc + 1));
+
+        switch (op) {
+            case 0x10: return name + " " + (byte) u1(code, pc + 1); // bipush
+            case 0x11: return name + " " + s2(code, pc + 1); // sipush
+            case 0x12: return name + " " + constant(u1(code, pc + 1)); // ldc
+            case 0x13: case 0x14: return name + " " + constant(u2(code, pc + 1)); // ldc_w, ldc2_w
+            case 0x84: return name + " " + u1(code, pc + 1) + " " + (byte) u1(code, pc + 2); // iinc
+            case 0xB2: case 0xB3: case 0xB4: case 0xB5: case 0xB6: case 0xB7: case 0xB8: case 0xB9: // field and method refs
+            case 0xBB: case 0xBD: case 0xC0: case 0xC1: // new, anewarray, checkcast, instanceof
+                return name + " " + constant(u2(code, pc + 1));
+            case 0xBA: { // invokedynamic
+                int[] indy = (int[]) values[u2(code, pc + 1)];
+                return name + " #" + indy[0] + " " + constant(indy[1]);
+            }
+            case 0xBC: { // newarray
+                String[] types = { "boolean", "char", "float", "double", "byte", "short", "int", "long" };
+                return name + " " + types[u1(code, pc + 1) - 4];
+            }
+            case 0xC4: { // wide
+                int wideOp = u1(code, pc + 1);
+                String ret = name + " " + Bytecode.name(wideOp) + " " + u2(code, pc + 2);
+                return wideOp == 0x84 ? ret + " " + s2(code, pc + 4) : ret;
+            }
+            case 0xC8: case 0xC9: return name + " " + (pc + s4(code, pc + 1)); // goto_w, jsr_w
+            case 0xAA: { // tableswitch
+                int p = switchOperands(pc);
+                int low = s4(code, p + 4);
+                int high = s4(code, p + 8);
+                StringBuilder ret = new StringBuilder(name);
+                for (int i = 0; i <= high - low; i++)
+                    ret.append(' ').append(low + i).append(':').append(pc + s4(code, p + 12 + 4 * i));
+                return ret.append(" default:").append(pc + s4(code, p)).toString();
+            }
+            case 0xAB: { // lookupswitch
+                int p = switchOperands(pc);
+                int count = s4(code, p + 4);
+                StringBuilder ret = new StringBuilder(name);
+                for (int i = 0; i < count; i++)
+                    ret.append(' ').append(s4(code, p + 8 + 8 * i)).append(':').append(pc + s4(code, p + 12 + 8 * i));
+                return ret.append(" default:").append(pc + s4(code, p)).toString();
+            }
+            default: {
+                int length = length(code, pc);
+                if (length == 2) // loads, stores and ret with a local index
+                    return name + " " + u1(code, pc + 1);
+                return name;
+            }
+        }
+    }
+
+    private void readConstantPool() throws IOException {
+        int count = in.readUnsignedShort();
+        tags = new int[count];
+        values = new Object[count];
+        for (int i = 1; i < count; i++) {
+            tags[i] = in.readUnsignedByte();
+            switch (tags[i]) {
+                case 1: values[i] = in.readUTF(); break;
+                case 3: values[i] = in.readInt(); break;
+                case 4: values[i] = in.readFloat(); break;
+                case 5: values[i] = in.readLong(); i++; break; // takes two entries
+                case 6: values[i] = in.readDouble(); i++; break;
+                case 7: case 8: case 16: case 19: case 20: // class, string, method type, module, package
+                    values[i] = new int[] { in.readUnsignedShort() };
+                    break;
+                case 15: values[i] = new int[] { in.readUnsignedByte(), in.readUnsignedShort() }; break; // method handle
+                case 9: case 10: case 11: case 12: case 17: case 18: // refs, name and type, dynamic, invokedynamic
+                    values[i] = new int[] { in.readUnsignedShort(), in.readUnsignedShort() };
+                    break;
+                default: throw new IOException("Unknown constant pool tag " + tags[i] + " at " + i);
+            }
+        }
+    }
+
+    private String utf8(int index) {
+        return (String) values[index];
+    }
+
+    private String className(int index) {
+        return utf8(((int[]) values[index])[0]);
+    }
+
+    private String constant(int index) {
+        if (index <= 0 || index >= tags.length)
+            return "#" + index + " (out of range)";
+        int[] refs = values[index] instanceof int[] ? (int[]) values[index] : null;
+        switch (tags[index]) {
+            case 1: return utf8(index);
+            case 7: return className(index);
+            case 8: return '"' + utf8(refs[0]).replace("\\", "\\\\").replace("\n", "\\n").replace("\"", "\\\"") + '"';
+            case 9: case 10: case 11: return className(refs[0]) + "." + constant(refs[1]);
+            case 12: return utf8(refs[0]) + " " + utf8(refs[1]);
+            case 3: case 4: case 5: case 6: return String.valueOf(values[index]);
+            default: return "#" + index;
+        }
+    }
+
+    private static String modifiers(int flags) {
+        StringBuilder ret = new StringBuilder();
+        String[] names = { "public", "private", "protected", "static", "final" };
+        for (int i = 0; i < names.length; i++)
+            if ((flags & 1 << i) != 0)
+                ret.append(names[i]).append(' ');
+        if ((flags & 0x1000) != 0)
+            ret.append("synthetic ");
+        return ret.toString();
+    }
+
+    private void skipAttributes() throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.readUnsignedShort();
+            skip(in.readInt());
+        }
+    }
+
+    private void skip(int bytes) throws IOException {
+        in.readFully(new byte[bytes]);
+    }
+}
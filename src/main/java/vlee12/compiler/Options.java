@@ -0,0 +1,91 @@
+package vlee12.compiler;
+
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Knobs for a single compilation.
+ * The defaults produce a class that calls into the shared runtime, vlee12.runtime.FunRuntime, so it needs fun2jvm on
+ * the classpath to run (selfContained makes one that doesn't), and carries javac's usual debug info (see
+ * lineNumbers). Everything else is opt-in.
+ */
+public class Options implements Cloneable {
+    // Embed the comparison and print helpers instead of calling into vlee12.runtime.FunRuntime,
+    // so the class runs without fun2jvm on the classpath
+    public boolean selfContained = false;
+
+    // Allow compiling a file without a main fun, for use through import from other files
+    public boolean library = false;
+
+    // Wrap pure funs in a memo table (see Purity)
+    public boolean memoize = false;
+
+    // Entries per memo table, rounded up to a power of two
+    public int memoCapacity = 4096;
+
+    // Copies of the body per trip around counted loops (see Compiler.unroll), which also fully unrolls short loops
+    // with a known trip count. 1 to leave loops as written
+    public int unroll = 1;
+
+    // Write which .fun the class came from and the line each statement starts on into it, like javac does, so stack
+    // traces and profilers point at the source
+    public boolean lineNumbers = true;
+
+    // Also write the names of every fun's formals, for debuggers
+    public boolean localNames = false;
+
+    // Run mutually recursive funs that tail call each other in one method each group, so those calls loop instead of
+    // using up stack (see Recursion)
+    public boolean trampoline = false;
+
+    // Run main on a thread of its own with this much stack, for recursion too deep for the usual one (see
+    // FunRuntime.runMain). 0 to run it on the thread that starts the class
+    public int mainStackMegabytes = 0;
+
+    // Count calls, loop iterations and branches taken in every fun, reported when the JVM exits (see FunRuntime.profile)
+    public boolean profile = false;
+
+    // Counters from a --profile run of this program, to guide inlining, branch layout and outlining (see ProfileGuide)
+    public ProfileData pgo = null;
+
+    // Generate each fun's method while the parser is still working through the rest of the file, on another thread,
+    // instead of parsing all of it first (see Compiler.compile). Doesn't mix with the options that look at the whole
+    // program before generating anything, compiling with those just parses first
+    public boolean pipeline = false;
+
+    // Past this many globals they all go into one private int[] instead of a static field each, which keeps classes
+    // with huge numbers of globals inside the JVM's limits on fields and constant pool entries
+    public int packGlobalsAbove = 1024;
+
+    // Run main at compile time for up to this many calls and loop iterations, and if it finishes just print what
+    // it printed (see Interpreter.evaluate). 0 to compile main as usual
+    public long precomputeSteps = 0;
+
+    // When set, globals live at these indices of an int[] in the class's public static $globals field instead of
+    // a field each, and whoever loads the class supplies the array. This is how compiled code shares globals with
+    // the interpreter.
+    public Map<String, Integer> globalSlots = null;
+
+    // When set, async and await go through a Tasks table in the class's public static $tasks field, which whoever
+    // loads the class supplies, instead of one of its own. This is how handles pass between compiled code and the
+    // interpreter.
+    public boolean sharedTasks = false;
+
+    // Where to record how long each compiler phase took (see Phase), null to not bother
+    public CompileStats stats = null;
+
+    // Where to write notes about what the compiler decided to do, null for nowhere
+    public PrintStream report = null;
+
+    // Where to write a disassembly of every class compiled (see Disassembler), null for nowhere
+    public Writer disassembly = null;
+
+    public Options copy() {
+        try {
+            return (Options) clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException(ex); // Impossible
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package vlee12.compiler;
+
+import vlee12.parser.Expression;
+import vlee12.parser.Fun;
+import vlee12.parser.Statement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What parallel loops need from the rest of the program. The parser already made sure a body can't print, return,
+ * or write anything but its own locals and reductions. Here the body is checked against where it sits: it can't
+ * reuse a name of the scope around it for one of its locals, and it may only call funs free of side effects.
+ *
+ * A body sees the names of the scope around it, then the loop variable, its locals and its reductions, in that
+ * order. Compiled chunks and the interpreter both lay out their locals like that. Neither can a local take the name of
+ * a global used anywhere else in the program, the body would quietly stop seeing it.
+ */
+public final class ParallelLoops {
+
+    /**
+     * Names in scope inside the body, given the names in scope around the loop.
+     * Outer names the loop has its own variable for (only ever reductions, see check) are blanked out.
+     */
+    public static List<String> scope(List<String> enclosing, Statement.Parallel loop) {
+        List<String> ret = new ArrayList<>();
+        for (String name : enclosing)
+            ret.add(loop.parallelReductions.contains(name) ? "" : name);
+        ret.add(loop.parallelVar);
+        ret.addAll(loop.parallelLocals);
+        ret.addAll(loop.parallelReductions);
+        return ret;
+    }
+
+    /**
+     * Throws if a parallel loop anywhere in funs couldn't safely run its iterations at once
+     */
+    public static void check(List<Fun> funs, CompileStats stats) {
+        Checker checker = new Checker(funs, stats);
+        for (Fun f : funs)
+            checker.check(f, f.body);
+    }
+
+    /**
+     * check for funs that come one at a time and don't stay around (see Compiler.compile). Names are checked as each
+     * fun is added, calls once finish knows every fun there is.
+     */
+    static final class Incremental {
+        private final CompileStats stats;
+        private final Purity.Summaries summaries = new Purity.Summaries(true);
+        private final List<String[]> calls = new ArrayList<>(); // fun with a parallel loop, and a fun the loop calls
+        private final List<String[]> locals = new ArrayList<>(); // fun with a parallel loop, and a local of the loop
+        private final Map<String, Integer> globals = new HashMap<>();
+        private final Checker checker;
+
+        Incremental(CompileStats stats) {
+            this.stats = stats;
+            this.checker = new Checker(null, stats) {
+                @Override
+                void checkLocals(Fun fun, List<String> own) {
+                    for (String name : own)
+                        locals.add(new String[] { fun.name, name });
+                }
+
+                @Override
+                void checkCallees(Fun fun, Set<String> callees) {
+                    for (String callee : callees)
+                        calls.add(new String[] { fun.name, callee });
+                }
+            };
+        }
+
+        void add(Fun fun) {
+            checker.check(fun, fun.body);
+            Compiler.findGlobals(fun, fun.body, globals);
+            try (Phase phase = Phase.start(stats, "purity", fun.name)) {
+                summaries.add(fun, phase);
+            }
+        }
+
+        void finish() {
+            for (String[] local : locals)
+                if (globals.containsKey(local[1]))
+                    throw alreadyInScope(local[0], local[1]);
+            if (calls.isEmpty())
+                return;
+            Set<String> sideEffectFree = summaries.result();
+            for (String[] call : calls)
+                if (!sideEffectFree.contains(call[1]))
+                    throw new CompileException(String.format("A parallel loop in %s calls %s, which prints or writes globals", call[0], call[1]));
+        }
+    }
+
+    /**
+     * Funs that can end up running on several threads at once, inside a parallel loop or started by async
+     */
+    static Set<String> calledConcurrently(List<Fun> funs) {
+        Map<String, Set<String>> callees = new HashMap<>();
+        Set<String> ret = new HashSet<>();
+        for (Fun f : funs) {
+            callees.computeIfAbsent(f.name, k -> new HashSet<>());
+            calls(f.body, callees.get(f.name), ret, false);
+        }
+
+        List<String> work = new ArrayList<>(ret);
+        while (!work.isEmpty())
+            for (String callee : callees.getOrDefault(work.remove(work.size() - 1), new HashSet<>()))
+                if (ret.add(callee))
+                    work.add(callee);
+        return ret;
+    }
+
+    // Adds every call in s to all, and the ones inside parallel loops or made by async to inLoops as well
+    static void calls(Statement s, Set<String> all, Set<String> inLoops, boolean inLoop) {
+        switch (s.kind) {
+            case BLOCK: ((Statement.Block) s).block.forEach(sub -> calls(sub, all, inLoops, inLoop)); break;
+            case ASSIGNMENT: calls(((Statement.Assign) s).assignValue, all, inLoops, inLoop); break;
+            case PRINT: calls(((Statement.Print) s).printValue, all, inLoops, inLoop); break;
+            case RETURN: calls(((Statement.Return) s).returnValue, all, inLoops, inLoop); break;
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                calls(ifStatement.ifCondition, all, inLoops, inLoop);
+                calls(ifStatement.ifThen, all, inLoops, inLoop);
+                if (ifStatement.ifElse != null)
+                    calls(ifStatement.ifElse, all, inLoops, inLoop);
+                break;
+            }
+            case WHILE: {
+                calls(((Statement.While) s).whileCondition, all, inLoops, inLoop);
+                calls(((Statement.While) s).whileBody, all, inLoops, inLoop);
+                break;
+            }
+            case PARALLEL: {
+                Statement.Parallel loop = ((Statement.Parallel) s);
+                calls(loop.parallelFrom, all, inLoops, inLoop);
+                calls(loop.parallelTo, all, inLoops, inLoop);
+                calls(loop.parallelBody, all, inLoops, true);
+                break;
+            }
+        }
+    }
+
+    private static void calls(Expression e, Set<String> all, Set<String> inLoops, boolean inLoop) {
+        if (e instanceof Expression.BinaryExpr) {
+            calls(((Expression.BinaryExpr) e).left, all, inLoops, inLoop);
+            calls(((Expression.BinaryExpr) e).right, all, inLoops, inLoop);
+        } else if (e instanceof Expression.Call) {
+            Expression.Call call = ((Expression.Call) e);
+            all.add(call.callName);
+            if (inLoop)
+                inLoops.add(call.callName);
+            call.callActuals.forEach(a -> calls(a, all, inLoops, inLoop));
+        } else if (e instanceof Expression.Async) {
+            Expression.Call call = ((Expression.Async) e).asyncCall;
+            all.add(call.callName);
+            inLoops.add(call.callName);
+            call.callActuals.forEach(a -> calls(a, all, inLoops, inLoop));
+        } else if (e instanceof Expression.Await) {
+            calls(((Expression.Await) e).awaitHandle, all, inLoops, inLoop);
+        }
+    }
+
+    private static class Checker {
+        private final List<Fun> funs;
+        private final CompileStats stats;
+        private Set<String> sideEffectFree = null; // only worked out once there's a loop
+        private Map<String, Integer> globals = null; // likewise
+
+        Checker(List<Fun> funs, CompileStats stats) {
+            this.funs = funs;
+            this.stats = stats;
+        }
+
+        void check(Fun fun, Statement s) {
+            switch (s.kind) {
+                case BLOCK: ((Statement.Block) s).block.forEach(sub -> check(fun, sub)); break;
+                case IF: {
+                    Statement.If ifStatement = ((Statement.If) s);
+                    check(fun, ifStatement.ifThen);
+                    if (ifStatement.ifElse != null)
+                        check(fun, ifStatement.ifElse);
+                    break;
+                }
+                case WHILE: check(fun, ((Statement.While) s).whileBody); break;
+                case PARALLEL: {
+                    Statement.Parallel loop = ((Statement.Parallel) s);
+
+                    // Written by every iteration on its own, where running in order would have shared them
+                    List<String> own = new ArrayList<>(loop.parallelLocals);
+                    own.add(loop.parallelVar);
+                    for (String name : own)
+                        if (fun.formals.contains(name))
+                            throw alreadyInScope(fun.name, name);
+                    checkLocals(fun, own);
+
+                    Set<String> callees = new HashSet<>();
+                    calls(loop.parallelBody, callees, new HashSet<>(), true);
+                    checkCallees(fun, callees);
+
+                    check(new Fun(fun.name, scope(fun.formals, loop), loop.parallelBody), loop.parallelBody);
+                    break;
+                }
+                default: break;
+            }
+        }
+
+        void checkLocals(Fun fun, List<String> own) {
+            if (globals == null) {
+                globals = new HashMap<>();
+                for (Fun f : funs)
+                    Compiler.findGlobals(f, f.body, globals);
+            }
+            for (String name : own)
+                if (globals.containsKey(name))
+                    throw alreadyInScope(fun.name, name);
+        }
+
+        void checkCallees(Fun fun, Set<String> callees) {
+            if (sideEffectFree == null) {
+                try (Phase phase = Phase.start(stats, "purity", null)) {
+                    sideEffectFree = Purity.sideEffectFreeFuns(funs, phase);
+                }
+            }
+            for (String callee : callees)
+                if (!sideEffectFree.contains(callee))
+                    throw new CompileException(String.format("A parallel loop in %s calls %s, which prints or writes globals", fun.name, callee));
+        }
+    }
+
+    private static CompileException alreadyInScope(String fun, String name) {
+        return new CompileException(String.format("%s in %s can't be assigned inside a parallel loop, it's already in scope", name, fun));
+    }
+
+    private ParallelLoops() {}
+}
@@ -0,0 +1,92 @@
+package vlee12.compiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * One timed step of a compile: parsing a file, an optimization pass, generating one fun, writing the class...
+ * Used with try-with-resources around the step, which reports how much it produced along the way.
+ *
+ * A finished phase goes into the CompileStats it was started with (for --stats), and into a JFR event when a
+ * flight recording is asking for them. When neither wants it the phase measures nothing.
+ */
+public final class Phase implements AutoCloseable {
+
+    // Flight recorder ships with JDK 11+ and late 8 updates, don't touch PhaseEvent where it doesn't exist
+    private static final boolean JFR_AVAILABLE = classExists("jdk.jfr.Event");
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public final String name;
+    public final String subject; // e.g. the fun being generated, null when it's about the whole program
+
+    private final CompileStats stats;
+    private final Object event; // a PhaseEvent, kept as Object so this class loads without JFR
+    private final long startNanos;
+    private final long startAllocated;
+
+    long durationNanos;
+    long bytes;
+    long nodes;
+    long allocatedBytes;
+
+    private Phase(CompileStats stats, String name, String subject) {
+        this.name = name;
+        this.subject = subject;
+        this.stats = stats;
+        this.event = JFR_AVAILABLE ? PhaseEvent.start() : null;
+        boolean measuring = stats != null || event != null;
+        this.startAllocated = measuring ? allocatedBytes() : 0;
+        this.startNanos = measuring ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @param stats where the phase goes once it's done, may be null
+     */
+    public static Phase start(CompileStats stats, String name, String subject) {
+        return new Phase(stats, name, subject);
+    }
+
+    // Bytes produced (or consumed, for parsing)
+    public void bytes(long count) {
+        bytes += count;
+    }
+
+    // Syntax tree nodes (or constant pool entries) looked at
+    public void visited(long count) {
+        nodes += count;
+    }
+
+    @Override
+    public void close() {
+        if (stats == null && event == null)
+            return;
+
+        durationNanos = System.nanoTime() - startNanos;
+        allocatedBytes = allocatedBytes() - startAllocated;
+
+        if (event != null)
+            PhaseEvent.finish(event, this);
+        if (stats != null)
+            stats.add(this);
+    }
+
+    // Bytes allocated by this thread so far, or 0 if the JVM can't tell
+    @SuppressWarnings("restriction")
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static boolean classExists(String name) {
+        try {
+            Class.forName(name, false, Phase.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package vlee12.compiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder view of a Phase, so slow compiles can be looked into with e.g.
+ *     java -XX:StartFlightRecording=filename=compile.jfr -jar fun2jvm.jar big.fun
+ *     jfr print --events vlee12.CompilerPhase compile.jfr
+ * Only ever touched through Phase, and only when jdk.jfr exists.
+ */
+@Name("vlee12.CompilerPhase")
+@Label("Compiler Phase")
+@Category("fun2jvm")
+@Description("One step of compiling a .fun file")
+@StackTrace(false) // Always the same few frames, not worth recording
+final class PhaseEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Subject")
+    @Description("The fun the phase worked on, if any")
+    String subject;
+
+    @Label("Bytes")
+    @Description("Bytes produced, or read in the case of parsing")
+    @DataAmount
+    long bytes;
+
+    @Label("Nodes Visited")
+    long nodes;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the compiling thread during the phase")
+    @DataAmount
+    long allocated;
+
+    // Null when no recording wants these events
+    static Object start() {
+        PhaseEvent event = new PhaseEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    static void finish(Object begun, Phase phase) {
+        PhaseEvent event = (PhaseEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = phase.name;
+            event.subject = phase.subject;
+            event.bytes = phase.bytes;
+            event.nodes = phase.nodes;
+            event.allocated = phase.allocatedBytes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package vlee12.compiler;
+
+import vlee12.runtime.Profile;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counters from a run of a program compiled with --profile, read back in for --use-profile.
+ * The format is just the report FunRuntime prints (see vlee12.runtime.Profile), a "profile of <class>:" line
+ * followed by a "<count>  <label>" line per counter, for any number of classes.
+ */
+public final class ProfileData {
+
+    private static final Pattern HEADER = Pattern.compile("profile of (\\S+):");
+    private static final Pattern COUNTER = Pattern.compile("\\s*(\\d+)\\s+(.+)");
+
+    private final Map<String, Map<String, Long>> counts = new HashMap<>();
+
+    private ProfileData() {}
+
+    public static ProfileData read(Path file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * Straight from profiles collected in-process (see FunRuntime.collectProfiles), without going through a file
+     */
+    public static ProfileData of(Iterable<Profile> profiles) {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        try (PrintStream out = new PrintStream(report, true, "UTF-8")) {
+            for (Profile profile : profiles)
+                profile.report(out);
+            return parse(new BufferedReader(new StringReader(new String(report.toByteArray(), StandardCharsets.UTF_8))));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // Impossible, it's all in memory
+        }
+    }
+
+    public static ProfileData parse(BufferedReader in) throws IOException {
+        ProfileData ret = new ProfileData();
+        Map<String, Long> current = null;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty())
+                continue;
+
+            Matcher header = HEADER.matcher(line);
+            Matcher counter = COUNTER.matcher(line);
+            if (header.matches()) {
+                // A class run more than once (e.g. several loaders) adds up
+                current = ret.counts.computeIfAbsent(header.group(1), k -> new HashMap<>());
+            } else if (counter.matches() && current != null) {
+                current.merge(counter.group(2), Long.parseLong(counter.group(1)), Long::sum);
+            } else {
+                throw new IOException("Not a profile line: " + line);
+            }
+        }
+        return ret;
+    }
+
+    // Counters by label for one class, empty if it wasn't profiled
+    Map<String, Long> countsFor(String className) {
+        return counts.getOrDefault(className, Collections.emptyMap());
+    }
+}
@@ -0,0 +1,187 @@
+package vlee12.compiler;
+
+import vlee12.parser.Expression;
+import vlee12.parser.Fun;
+import vlee12.parser.Statement;
+import vlee12.parser.StatementType;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a profile (see ProfileData) into decisions for --use-profile:
+ *     which way each if is laid out, so the branch that ran more falls through
+ *     which calls get inlined, small funs that are called a lot
+ *     which never-taken branches of hot ifs move out into their own method, so the hot method stays small
+ *       enough for the JIT to inline it in turn. Everything else is left compact as written.
+ *     how many times each loop goes around per entry, for unrolling
+ *
+ * Counters are matched up with the syntax tree by label, which is why profiling and this share labels().
+ * A profile from a different version of the program just gives worse decisions, never wrong code.
+ */
+final class ProfileGuide {
+
+    // Calls (or runs of an if) before something is considered hot
+    static final long HOT = 1000;
+
+    // How lopsided an if has to be before the then branch is moved to fall through, a coin toss isn't worth changing
+    static final int BIAS = 2;
+
+    // Biggest expression, in nodes, worth inlining in place of a call
+    static final int INLINE_MAX_NODES = 24;
+
+    // Smallest cold branch, in nodes, worth moving out of a hot fun
+    static final int OUTLINE_MIN_NODES = 16;
+
+    private final Map<String, Long> counts;
+    private final Map<Statement, String> labels;
+
+    ProfileGuide(Map<String, Long> counts, Map<Statement, String> labels) {
+        this.counts = counts;
+        this.labels = labels;
+    }
+
+    /**
+     * Names each if and while by its fun and position in it ("fib if #1", "main while #2"), numbered in source order.
+     * Kept by node identity, so code that's been moved around (e.g. outlined) still finds its counters.
+     */
+    static Map<Statement, String> labels(List<Fun> funs) {
+        Map<Statement, String> ret = new IdentityHashMap<>();
+        for (Fun f : funs)
+            label(f.name, f.body, new int[2], ret);
+        return ret;
+    }
+
+    private static void label(String fun, Statement s, int[] counts, Map<Statement, String> ret) {
+        switch (s.kind) {
+            case BLOCK: ((Statement.Block) s).block.forEach(sub -> label(fun, sub, counts, ret)); break;
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                ret.put(s, fun + " if #" + ++counts[0]);
+                label(fun, ifStatement.ifThen, counts, ret);
+                if (ifStatement.ifElse != null)
+                    label(fun, ifStatement.ifElse, counts, ret);
+                break;
+            }
+            case WHILE: {
+                ret.put(s, fun + " while #" + ++counts[1]);
+                label(fun, ((Statement.While) s).whileBody, counts, ret);
+                break;
+            }
+            case PARALLEL: label(fun, ((Statement.Parallel) s).parallelBody, counts, ret); break;
+        }
+    }
+
+    long count(String label) {
+        return counts.getOrDefault(label, 0L);
+    }
+
+    long calls(String fun) {
+        return count(fun + " calls");
+    }
+
+    boolean thenIsHot(Statement.If s) {
+        String label = labels.get(s);
+        return count(label + " taken") > BIAS * count(label + " not taken");
+    }
+
+    /**
+     * @param then whether it's about the then branch or the else branch
+     */
+    boolean shouldOutline(Fun fun, Statement.If s, boolean then) {
+        Statement branch = then ? s.ifThen : s.ifElse;
+        if (branch == null)
+            return false;
+
+        String label = labels.get(s);
+        long taken = count(label + " taken");
+        long notTaken = count(label + " not taken");
+        if (taken + notTaken < HOT || (then ? taken : notTaken) != 0)
+            return false;
+
+        // The outlined method gets the formals by value, so the branch can't change them or return from the fun
+        return size(branch) >= OUTLINE_MIN_NODES && isOutlinable(fun, branch);
+    }
+
+    /**
+     * @return the expression to evaluate in place of a call to the fun, or null to just call it
+     */
+    Expression inlineBody(Fun callee) {
+        if (calls(callee.name) < HOT)
+            return null;
+
+        Statement body = callee.body;
+        while (body.kind == StatementType.BLOCK && ((Statement.Block) body).block.size() == 1)
+            body = ((Statement.Block) body).block.get(0);
+        if (body.kind != StatementType.RETURN)
+            return null;
+
+        Expression e = ((Statement.Return) body).returnValue;
+        return size(e) <= INLINE_MAX_NODES ? e : null;
+    }
+
+    // Average trips around the loop each time it's entered, 0 if it never ran
+    double averageTrips(Statement.While s) {
+        String label = labels.get(s);
+        long entries = count(label + " entries");
+        return entries == 0 ? 0 : (double) count(label + " iterations") / entries;
+    }
+
+    private static boolean isOutlinable(Fun fun, Statement s) {
+        switch (s.kind) {
+            case BLOCK: {
+                for (Statement sub : ((Statement.Block) s).block)
+                    if (!isOutlinable(fun, sub))
+                        return false;
+                return true;
+            }
+            case ASSIGNMENT: return !fun.formals.contains(((Statement.Assign) s).assignName);
+            case PRINT: return true;
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                return isOutlinable(fun, ifStatement.ifThen) && (ifStatement.ifElse == null || isOutlinable(fun, ifStatement.ifElse));
+            }
+            case WHILE: return isOutlinable(fun, ((Statement.While) s).whileBody);
+            case PARALLEL: {
+                // The body only writes its own locals, but where the reductions end up has to be a global
+                for (String name : ((Statement.Parallel) s).parallelReductions)
+                    if (fun.formals.contains(name))
+                        return false;
+                return true;
+            }
+            default: return false;
+        }
+    }
+
+    static int size(Statement s) {
+        switch (s.kind) {
+            case BLOCK: return 1 + ((Statement.Block) s).block.stream().mapToInt(ProfileGuide::size).sum();
+            case ASSIGNMENT: return 1 + size(((Statement.Assign) s).assignValue);
+            case PRINT: return 1 + size(((Statement.Print) s).printValue);
+            case RETURN: return 1 + size(((Statement.Return) s).returnValue);
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                return 1 + size(ifStatement.ifCondition) + size(ifStatement.ifThen) + (ifStatement.ifElse == null ? 0 : size(ifStatement.ifElse));
+            }
+            case WHILE: return 1 + size(((Statement.While) s).whileCondition) + size(((Statement.While) s).whileBody);
+            case PARALLEL: {
+                Statement.Parallel loop = ((Statement.Parallel) s);
+                return 1 + size(loop.parallelFrom) + size(loop.parallelTo) + size(loop.parallelBody);
+            }
+            default: return 1;
+        }
+    }
+
+    static int size(Expression e) {
+        if (e instanceof Expression.BinaryExpr)
+            return 1 + size(((Expression.BinaryExpr) e).left) + size(((Expression.BinaryExpr) e).right);
+        if (e instanceof Expression.Call)
+            return 1 + ((Expression.Call) e).callActuals.stream().mapToInt(ProfileGuide::size).sum();
+        if (e instanceof Expression.Async)
+            return 1 + size(((Expression.Async) e).asyncCall);
+        if (e instanceof Expression.Await)
+            return 1 + size(((Expression.Await) e).awaitHandle);
+        return 1;
+    }
+}
@@ -0,0 +1,148 @@
+package vlee12.compiler;
+
+import vlee12.parser.Expression;
+import vlee12.parser.Fun;
+import vlee12.parser.Statement;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Interprocedural purity analysis over fun bodies.
+ * A fun is pure if it never prints, never touches a global (anything that isn't one of its formals),
+ * and only calls other pure funs. The result of a pure fun is then determined entirely by its arguments.
+ *
+ * Starts by assuming every fun is pure and repeatedly knocks out funs that are locally impure or
+ * call something impure until nothing changes, so (mutually) recursive funs stay pure when they can.
+ *
+ * The same goes for funs free of side effects, which may also read globals: any number of calls to those can
+ * run at once, as long as nothing writes a global meanwhile (see ParallelLoops).
+ */
+final class Purity {
+
+    static Set<String> pureFuns(List<Fun> funs, Phase phase) {
+        return analyze(funs, false, phase);
+    }
+
+    static Set<String> sideEffectFreeFuns(List<Fun> funs, Phase phase) {
+        return analyze(funs, true, phase);
+    }
+
+    private static Set<String> analyze(List<Fun> funs, boolean readsGlobals, Phase phase) {
+        Summaries summaries = new Summaries(readsGlobals);
+        for (Fun f : funs)
+            summaries.add(f, phase);
+        return summaries.result();
+    }
+
+    /**
+     * The analysis for funs that turn up one at a time, which only keeps what it found in each body rather than the
+     * body itself. The first fun with a name is the one that counts, like calls see it.
+     */
+    static final class Summaries {
+        private final boolean readsGlobals;
+        private final Set<String> seen = new HashSet<>();
+        private final Map<String, Set<String>> callees = new HashMap<>(); // of the locally pure funs
+
+        Summaries(boolean readsGlobals) {
+            this.readsGlobals = readsGlobals;
+        }
+
+        void add(Fun f, Phase phase) {
+            if (!seen.add(f.name))
+                return;
+            Set<String> calls = new HashSet<>();
+            if (isLocallyPure(f, f.body, readsGlobals, calls, phase))
+                callees.put(f.name, calls);
+        }
+
+        Set<String> result() {
+            Set<String> pure = new HashSet<>(callees.keySet());
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (String name : new HashSet<>(pure)) {
+                    for (String callee : callees.get(name)) {
+                        if (!pure.contains(callee)) {
+                            pure.remove(name);
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            return pure;
+        }
+    }
+
+    private static boolean isLocallyPure(Fun fun, Statement s, boolean readsGlobals, Set<String> calls, Phase phase) {
+        phase.visited(1);
+        switch (s.kind) {
+            case BLOCK: {
+                for (Statement sub : ((Statement.Block) s).block)
+                    if (!isLocallyPure(fun, sub, readsGlobals, calls, phase))
+                        return false;
+                return true;
+            }
+            case ASSIGNMENT: {
+                Statement.Assign assign = ((Statement.Assign) s);
+                return fun.formals.contains(assign.assignName) && isLocallyPure(fun, assign.assignValue, readsGlobals, calls, phase);
+            }
+            case PRINT: return false;
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                return isLocallyPure(fun, ifStatement.ifCondition, readsGlobals, calls, phase)
+                        && isLocallyPure(fun, ifStatement.ifThen, readsGlobals, calls, phase)
+                        && (ifStatement.ifElse == null || isLocallyPure(fun, ifStatement.ifElse, readsGlobals, calls, phase));
+            }
+            case WHILE: {
+                Statement.While whileStatement = ((Statement.While) s);
+                return isLocallyPure(fun, whileStatement.whileCondition, readsGlobals, calls, phase) && isLocallyPure(fun, whileStatement.whileBody, readsGlobals, calls, phase);
+            }
+            case RETURN: return isLocallyPure(fun, ((Statement.Return) s).returnValue, readsGlobals, calls, phase);
+            case PARALLEL: {
+                // The body only writes its own locals, but whatever it reduces into gets written afterwards
+                Statement.Parallel loop = ((Statement.Parallel) s);
+                Fun body = new Fun(fun.name, ParallelLoops.scope(fun.formals, loop), loop.parallelBody);
+                return fun.formals.containsAll(loop.parallelReductions)
+                        && isLocallyPure(fun, loop.parallelFrom, readsGlobals, calls, phase)
+                        && isLocallyPure(fun, loop.parallelTo, readsGlobals, calls, phase)
+                        && isLocallyPure(body, loop.parallelBody, readsGlobals, calls, phase);
+            }
+            default: return false;
+        }
+    }
+
+    private static boolean isLocallyPure(Fun fun, Expression e, boolean readsGlobals, Set<String> calls, Phase phase) {
+        phase.visited(1);
+        switch (e.kind) {
+            case VAR: return readsGlobals || fun.formals.contains(((Expression.Var) e).varName);
+            case VAL: return true;
+            case PLUS:
+            case MUL:
+            case EQ:
+            case NE:
+            case LT:
+            case GT: {
+                Expression.BinaryExpr expr = ((Expression.BinaryExpr) e);
+                return isLocallyPure(fun, expr.left, readsGlobals, calls, phase) && isLocallyPure(fun, expr.right, readsGlobals, calls, phase);
+            }
+            case CALL: {
+                Expression.Call call = ((Expression.Call) e);
+                calls.add(call.callName);
+                // Only the actuals matching formals are ever evaluated, but checking all of them is harmless
+                for (Expression actual : call.callActuals)
+                    if (!isLocallyPure(fun, actual, readsGlobals, calls, phase))
+                        return false;
+                return true;
+            }
+            // A handle depends on what else is in flight, and awaiting one uses it up
+            case ASYNC:
+            case AWAIT: return false;
+            default: return false;
+        }
+    }
+}
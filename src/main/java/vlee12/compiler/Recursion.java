@@ -0,0 +1,148 @@
+package vlee12.compiler;
+
+import vlee12.parser.Expression;
+import vlee12.parser.ExpressionType;
+import vlee12.parser.Fun;
+import vlee12.parser.Statement;
+import vlee12.parser.StatementType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the recursion that can run in constant stack (see Compiler.trampoline): strongly connected components of the
+ * call graph, funs that can each end up calling all the others, with at least one tail call inside, that is a
+ * return of a call straight to a fun in the same component.
+ */
+final class Recursion {
+
+    private Recursion() {}
+
+    /**
+     * The components among funs, leaving out those named in excluded, that have a tail call inside. A fun on its own
+     * counts if it tail calls itself. Each comes in the order its funs were declared.
+     */
+    static List<List<Fun>> tailRecursive(List<Fun> funs, Set<String> excluded) {
+        Map<String, Fun> byName = new LinkedHashMap<>();
+        for (Fun f : funs)
+            if (!excluded.contains(f.name))
+                byName.putIfAbsent(f.name, f);
+
+        Map<String, List<String>> callees = new HashMap<>();
+        for (Fun f : byName.values()) {
+            Set<String> calls = new HashSet<>();
+            ParallelLoops.calls(f.body, calls, new HashSet<>(), false);
+            calls.retainAll(byName.keySet());
+            callees.put(f.name, new ArrayList<>(calls));
+        }
+
+        List<List<Fun>> ret = new ArrayList<>();
+        for (Set<String> component : components(byName.keySet(), callees)) {
+            boolean tailCalls = false;
+            for (String name : component)
+                tailCalls |= hasTailCall(byName.get(name).body, component);
+            if (!tailCalls)
+                continue;
+
+            List<Fun> members = new ArrayList<>();
+            for (Fun f : byName.values())
+                if (component.contains(f.name))
+                    members.add(f);
+            ret.add(members);
+        }
+        return ret;
+    }
+
+    /**
+     * Whether s is return f(...) for one of the funs in members
+     */
+    static boolean isTailCall(Statement s, Set<String> members) {
+        if (s.kind != StatementType.RETURN)
+            return false;
+        Expression value = ((Statement.Return) s).returnValue;
+        return value.kind == ExpressionType.CALL && members.contains(((Expression.Call) value).callName);
+    }
+
+    private static boolean hasTailCall(Statement s, Set<String> members) {
+        switch (s.kind) {
+            case BLOCK: {
+                for (Statement sub : ((Statement.Block) s).block)
+                    if (hasTailCall(sub, members))
+                        return true;
+                return false;
+            }
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                return hasTailCall(ifStatement.ifThen, members) || (ifStatement.ifElse != null && hasTailCall(ifStatement.ifElse, members));
+            }
+            case WHILE: return hasTailCall(((Statement.While) s).whileBody, members);
+            default: return isTailCall(s, members); // parallel bodies can't return
+        }
+    }
+
+    /**
+     * Tarjan's algorithm, without recursion since programs can have long call chains. Components come out callees first.
+     */
+    private static List<Set<String>> components(Set<String> names, Map<String, List<String>> callees) {
+        Map<String, Integer> index = new HashMap<>();
+        Map<String, Integer> lowLink = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        Set<String> onStack = new HashSet<>();
+        List<Set<String>> ret = new ArrayList<>();
+
+        for (String root : names) {
+            if (index.containsKey(root))
+                continue;
+
+            // Each frame is a fun and how many of its callees have been looked at
+            Deque<Object[]> work = new ArrayDeque<>();
+            work.push(new Object[] { root, 0 });
+            while (!work.isEmpty()) {
+                Object[] frame = work.peek();
+                String name = (String) frame[0];
+                int next = (Integer) frame[1];
+                if (next == 0 && !index.containsKey(name)) {
+                    index.put(name, index.size());
+                    lowLink.put(name, index.get(name));
+                    stack.push(name);
+                    onStack.add(name);
+                }
+
+                List<String> calls = callees.get(name);
+                if (next < calls.size()) {
+                    frame[1] = next + 1;
+                    String callee = calls.get(next);
+                    if (!index.containsKey(callee))
+                        work.push(new Object[] { callee, 0 });
+                    else if (onStack.contains(callee))
+                        lowLink.put(name, Math.min(lowLink.get(name), index.get(callee)));
+                    continue;
+                }
+
+                work.pop();
+                if (!work.isEmpty()) {
+                    String caller = (String) work.peek()[0];
+                    lowLink.put(caller, Math.min(lowLink.get(caller), lowLink.get(name)));
+                }
+                if (lowLink.get(name).equals(index.get(name))) {
+                    Set<String> component = new HashSet<>();
+                    String member;
+                    do {
+                        member = stack.pop();
+                        onStack.remove(member);
+                        component.add(member);
+                    } while (!member.equals(name));
+                    ret.add(component);
+                }
+            }
+        }
+        return ret;
+    }
+}
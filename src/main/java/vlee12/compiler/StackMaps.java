@@ -0,0 +1,432 @@
+package vlee12.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static vlee12.compiler.Bytecode.isBranch;
+import static vlee12.compiler.Bytecode.length;
+import static vlee12.compiler.Bytecode.s2;
+import static vlee12.compiler.Bytecode.s4;
+import static vlee12.compiler.Bytecode.switchOperands;
+import static vlee12.compiler.Bytecode.u1;
+import static vlee12.compiler.Bytecode.u2;
+
+/**
+ * Works out the StackMapTable and max stack of a finished method by decoding its bytecode,
+ * so the class passes the type checking verifier (needed from class version 50 on, and by CDS archives).
+ *
+ * This is the same data flow pass the verifier does, only much less picky: every instruction the compiler emits
+ * is simulated over a list of types, and states are merged where branches meet, turning locals that disagree
+ * into top. Code right after a goto or return that nothing jumps to still needs a frame, and gets the state the
+ * code before it left off with, as if it had fallen through (locals set up at the top of a method stay set).
+ *
+ * Types are strings: "I", "J", "T" (top), "U" (uninitializedThis), "N" (null),
+ * or anything else as the internal name of a class or array.
+ * A long takes a single entry on the simulated stack, but two slots towards max stack.
+ */
+final class StackMaps {
+
+    /**
+     * What the constant pool being built knows about its entries
+     */
+    interface Pool {
+        // Descriptor of the field, method or invokedynamic at index, or the type of an ldc constant
+        String typeOf(int index);
+
+        short classConstant(String name);
+    }
+
+    private final byte[] code;
+    private final List<String> start;
+    private final Pool pool;
+
+    private final TreeSet<Integer> targets = new TreeSet<>(); // where frames go
+    private final Map<Integer, Frame> frames = new HashMap<>();
+    private final Deque<Integer> work = new ArrayDeque<>();
+    private final Map<Integer, Frame> leftOff = new HashMap<>(); // state after the goto or return before dead code
+    private int maxStack = 0;
+
+    private StackMaps(byte[] code, List<String> start, Pool pool) {
+        this.code = code;
+        this.start = start;
+        this.pool = pool;
+    }
+
+    private static final class Frame {
+        final String[] locals;
+        final List<String> stack;
+
+        Frame(String[] locals, List<String> stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+
+        Frame copy() {
+            return new Frame(locals.clone(), new ArrayList<>(stack));
+        }
+
+        // Widens this frame to also cover other, returns whether anything changed
+        boolean merge(Frame other) {
+            if (stack.size() != other.stack.size())
+                throw new CompileException("Stack heights differ where branches meet");
+            boolean changed = false;
+            for (int i = 0; i < locals.length; i++) {
+                if (!locals[i].equals(other.locals[i]) && !locals[i].equals("T")) {
+                    locals[i] = "T";
+                    changed = true;
+                }
+            }
+            for (int i = 0; i < stack.size(); i++)
+                if (!stack.get(i).equals(other.stack.get(i)))
+                    throw new CompileException("Stack types differ where branches meet");
+            return changed;
+        }
+    }
+
+    /**
+     * Analyzed code, ready to be wrapped up in a Code attribute
+     */
+    static final class Result {
+        final int maxStack;
+        final int frameCount;
+        final byte[] table; // StackMapTable entries, without the count in front
+
+        private Result(int maxStack, int frameCount, byte[] table) {
+            this.maxStack = maxStack;
+            this.frameCount = frameCount;
+            this.table = table;
+        }
+    }
+
+    /**
+     * @param params types of the locals on entry, the rest of the maxLocals are top
+     */
+    static Result analyze(byte[] code, List<String> params, int maxLocals, Pool pool) {
+        List<String> start = new ArrayList<>(params);
+        start.addAll(Collections.nCopies(Math.max(maxLocals - params.size(), 0), "T"));
+        StackMaps maps = new StackMaps(code, start, pool);
+        maps.findTargets();
+        maps.flow();
+        return new Result(maps.maxStack, maps.targets.size(), maps.encode());
+    }
+
+    private Frame startFrame() {
+        return new Frame(start.toArray(new String[0]), new ArrayList<>());
+    }
+
+    private static boolean endsFlow(int op) {
+        return op == 0xA7 || op == 0xC8 || op >= 0xAA && op <= 0xB1 || op == 0xBF;
+    }
+
+    // Every place an instruction can jump to, for switches too
+    private List<Integer> jumps(int pc) {
+        int op = u1(code, pc);
+        if (isBranch(op))
+            return Collections.singletonList(pc + s2(code, pc + 1));
+        if (op == 0xC8)
+            return Collections.singletonList(pc + s4(code, pc + 1));
+        if (op != 0xAA && op != 0xAB)
+            return Collections.emptyList();
+
+        List<Integer> ret = new ArrayList<>();
+        int p = switchOperands(pc);
+        ret.add(pc + s4(code, p));
+        if (op == 0xAA) { // tableswitch
+            int count = s4(code, p + 8) - s4(code, p + 4) + 1;
+            for (int i = 0; i < count; i++)
+                ret.add(pc + s4(code, p + 12 + 4 * i));
+        } else { // lookupswitch
+            int count = s4(code, p + 4);
+            for (int i = 0; i < count; i++)
+                ret.add(pc + s4(code, p + 12 + 8 * i));
+        }
+        return ret;
+    }
+
+    private void findTargets() {
+        int pc = 0;
+        while (pc < code.length) {
+            int op = u1(code, pc);
+            targets.addAll(jumps(pc));
+            pc += length(code, pc);
+            if (endsFlow(op) && pc < code.length)
+                targets.add(pc);
+        }
+    }
+
+    private void mergeInto(int pc, Frame state) {
+        Frame frame = frames.get(pc);
+        if (frame == null) {
+            frames.put(pc, state.copy());
+            work.add(pc);
+        } else if (frame.merge(state)) {
+            work.add(pc);
+        }
+    }
+
+    private void flow() {
+        mergeInto(0, startFrame());
+        while (true) {
+            while (!work.isEmpty())
+                run(work.poll());
+
+            // Whatever is left is dead code. Going in order means whatever comes before it has been through already
+            Integer dead = null;
+            for (int target : targets) {
+                if (!frames.containsKey(target)) {
+                    dead = target;
+                    break;
+                }
+            }
+            if (dead == null)
+                return;
+            mergeInto(dead, leftOff.containsKey(dead) ? leftOff.get(dead) : startFrame());
+        }
+    }
+
+    // Simulates from pc until the flow stops or runs into another frame
+    private void run(int pc) {
+        Frame state = frames.get(pc).copy();
+        while (true) {
+            int op = u1(code, pc);
+            step(pc, state);
+            for (int target : jumps(pc))
+                mergeInto(target, state);
+            pc += length(code, pc);
+            if (pc >= code.length)
+                return;
+            if (endsFlow(op)) {
+                leftOff.putIfAbsent(pc, state);
+                return;
+            }
+            if (targets.contains(pc)) {
+                mergeInto(pc, state);
+                return;
+            }
+        }
+    }
+
+    private void push(Frame state, String type) {
+        state.stack.add(type);
+        int slots = 0;
+        for (String t : state.stack)
+            slots += t.equals("J") ? 2 : 1;
+        maxStack = Math.max(maxStack, slots);
+    }
+
+    private String pop(Frame state) {
+        if (state.stack.isEmpty())
+            throw new CompileException("Stack underflow in generated code");
+        return state.stack.remove(state.stack.size() - 1);
+    }
+
+    private void pop(Frame state, int count) {
+        for (int i = 0; i < count; i++)
+            pop(state);
+    }
+
+    private void load(Frame state, int local) {
+        push(state, state.locals[local]);
+    }
+
+    private void store(Frame state, int local) {
+        String type = pop(state);
+        state.locals[local] = type;
+        if (type.equals("J"))
+            state.locals[local + 1] = "T";
+    }
+
+    // "Ljava/lang/String;" to "java/lang/String", arrays stay as they are
+    private static String internalName(String descriptor) {
+        return descriptor.startsWith("L") ? descriptor.substring(1, descriptor.length() - 1) : descriptor;
+    }
+
+    private static String fieldType(String descriptor) {
+        switch (descriptor.charAt(0)) {
+            case 'Z': case 'B': case 'C': case 'S': case 'I': return "I";
+            case 'J': return "J";
+            case 'F': case 'D': throw new CompileException("No floating point in generated code");
+            default: return internalName(descriptor);
+        }
+    }
+
+    // Pops the arguments of a method descriptor and pushes what it returns
+    private void invoke(Frame state, String descriptor) {
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            while (descriptor.charAt(i) == '[')
+                i++;
+            i = descriptor.charAt(i) == 'L' ? descriptor.indexOf(';', i) + 1 : i + 1;
+            pop(state);
+        }
+        String ret = descriptor.substring(i + 1);
+        if (!ret.equals("V"))
+            push(state, fieldType(ret));
+    }
+
+    private void step(int pc, Frame state) {
+        int op = u1(code, pc);
+        switch (op) {
+            case 0x00: break; // nop
+            case 0x01: push(state, "N"); break; // aconst_null
+            case 0x02: case 0x03: case 0x04: case 0x05: case 0x06: case 0x07: case 0x08: // iconst_m1 .. iconst_5
+            case 0x10: case 0x11: // bipush, sipush
+                push(state, "I");
+                break;
+            case 0x09: case 0x0A: case 0x14: push(state, "J"); break; // lconst_0, lconst_1, ldc2_w
+            case 0x12: push(state, fieldType(pool.typeOf(u1(code, pc + 1)))); break; // ldc
+            case 0x13: push(state, fieldType(pool.typeOf(u2(code, pc + 1)))); break; // ldc_w
+            case 0x15: case 0x16: case 0x19: load(state, u1(code, pc + 1)); break; // iload, lload, aload
+            case 0x1A: case 0x1B: case 0x1C: case 0x1D: load(state, op - 0x1A); break; // iload_n
+            case 0x2A: case 0x2B: case 0x2C: case 0x2D: load(state, op - 0x2A); break; // aload_n
+            case 0x2E: case 0x33: case 0x34: case 0x35: pop(state, 2); push(state, "I"); break; // iaload, baload, caload, saload
+            case 0x2F: pop(state, 2); push(state, "J"); break; // laload
+            case 0x32: { // aaload
+                pop(state);
+                String array = pop(state);
+                push(state, array.startsWith("[") ? internalName(array.substring(1)) : "java/lang/Object");
+                break;
+            }
+            case 0x36: case 0x37: case 0x3A: store(state, u1(code, pc + 1)); break; // istore, lstore, astore
+            case 0x3B: case 0x3C: case 0x3D: case 0x3E: store(state, op - 0x3B); break; // istore_n
+            case 0x4B: case 0x4C: case 0x4D: case 0x4E: store(state, op - 0x4B); break; // astore_n
+            case 0x4F: case 0x50: case 0x53: case 0x54: case 0x55: case 0x56: pop(state, 3); break; // xastore
+            case 0x57: pop(state); break; // pop
+            case 0x58: if (!pop(state).equals("J")) pop(state); break; // pop2
+            case 0x59: { // dup
+                String top = pop(state);
+                push(state, top);
+                push(state, top);
+                break;
+            }
+            case 0x5C: { // dup2
+                String top = pop(state);
+                if (top.equals("J")) {
+                    push(state, top);
+                    push(state, top);
+                } else {
+                    String under = pop(state);
+                    push(state, under);
+                    push(state, top);
+                    push(state, under);
+                    push(state, top);
+                }
+                break;
+            }
+            case 0x5F: { // swap
+                String top = pop(state);
+                String under = pop(state);
+                push(state, top);
+                push(state, under);
+                break;
+            }
+            case 0x60: case 0x64: case 0x68: case 0x6C: case 0x70: case 0x78: case 0x7A: case 0x7C: case 0x7E: case 0x80: case 0x82:
+                pop(state, 2); // int arithmetic
+                push(state, "I");
+                break;
+            case 0x61: case 0x65: case 0x69: case 0x7F: case 0x81: case 0x83: // long arithmetic
+                pop(state, 2);
+                push(state, "J");
+                break;
+            case 0x74: case 0x88: pop(state); push(state, "I"); break; // ineg, l2i
+            case 0x85: pop(state); push(state, "J"); break; // i2l
+            case 0x94: pop(state, 2); push(state, "I"); break; // lcmp
+            case 0x84: break; // iinc
+            case 0x99: case 0x9A: case 0x9B: case 0x9C: case 0x9D: case 0x9E: case 0xC6: case 0xC7: // if<cond>, ifnull, ifnonnull
+            case 0xAA: case 0xAB: // tableswitch, lookupswitch
+                pop(state);
+                break;
+            case 0x9F: case 0xA0: case 0xA1: case 0xA2: case 0xA3: case 0xA4: case 0xA5: case 0xA6: pop(state, 2); break; // if_icmp<cond>, if_acmp<cond>
+            case 0xA7: case 0xC8: break; // goto, goto_w
+            case 0xAC: case 0xAD: case 0xB0: case 0xBF: pop(state); break; // ireturn, lreturn, areturn, athrow
+            case 0xB1: break; // return
+            case 0xB2: push(state, fieldType(pool.typeOf(u2(code, pc + 1)))); break; // getstatic
+            case 0xB3: pop(state); break; // putstatic
+            case 0xB4: pop(state); push(state, fieldType(pool.typeOf(u2(code, pc + 1)))); break; // getfield
+            case 0xB5: pop(state, 2); break; // putfield
+            case 0xB6: case 0xB7: case 0xB9: // invokevirtual, invokespecial, invokeinterface
+                invoke(state, pool.typeOf(u2(code, pc + 1)));
+                pop(state); // receiver
+                break;
+            case 0xB8: case 0xBA: invoke(state, pool.typeOf(u2(code, pc + 1))); break; // invokestatic, invokedynamic
+            case 0xBC: { // newarray
+                pop(state);
+                String[] element = { "[Z", "[C", "[F", "[D", "[B", "[S", "[I", "[J" };
+                push(state, element[u1(code, pc + 1) - 4]);
+                break;
+            }
+            case 0xBE: pop(state); push(state, "I"); break; // arraylength
+            case 0xC4: { // wide
+                int local = u2(code, pc + 2);
+                switch (u1(code, pc + 1)) {
+                    case 0x15: case 0x16: case 0x19: load(state, local); break;
+                    case 0x36: case 0x37: case 0x3A: store(state, local); break;
+                    case 0x84: break;
+                    default: throw new CompileException("Can't compute stack map frames for wide " + Bytecode.name(u1(code, pc + 1)));
+                }
+                break;
+            }
+            default: throw new CompileException("Can't compute stack map frames for " + Bytecode.name(op));
+        }
+    }
+
+    private void putType(ByteArrayOutputStream out, String type) {
+        switch (type) {
+            case "T": out.write(0); break;
+            case "I": out.write(1); break;
+            case "J": out.write(4); break;
+            case "N": out.write(5); break;
+            case "U": out.write(6); break;
+            default: {
+                out.write(7);
+                short index = pool.classConstant(type);
+                out.write(index >>> 8 & 0xFF);
+                out.write(index & 0xFF);
+            }
+        }
+    }
+
+    private static void putShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8 & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    // Every frame is written out in full, the compact forms only save a few bytes per branch
+    private byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int previous = -1;
+        for (int target : targets) {
+            Frame frame = frames.get(target);
+
+            // Trailing tops are implied, and a long's second slot is never written
+            List<String> locals = new ArrayList<>(Arrays.asList(frame.locals));
+            while (!locals.isEmpty() && locals.get(locals.size() - 1).equals("T"))
+                locals.remove(locals.size() - 1);
+            List<String> written = new ArrayList<>();
+            for (int i = 0; i < locals.size(); i++) {
+                written.add(locals.get(i));
+                if (locals.get(i).equals("J"))
+                    i++;
+            }
+
+            out.write(255); // full_frame
+            putShort(out, previous == -1 ? target : target - previous - 1);
+            putShort(out, written.size());
+            for (String type : written)
+                putType(out, type);
+            putShort(out, frame.stack.size());
+            for (String type : frame.stack)
+                putType(out, type);
+            previous = target;
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,128 @@
+package vlee12.interpreter;
+
+import vlee12.parser.Expression;
+import vlee12.parser.Fun;
+import vlee12.parser.Program;
+import vlee12.parser.Statement;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How to run a program in-process.
+ */
+public enum ExecutionPolicy {
+    // Never generate a class, for programs that are over before a class could even be defined
+    INTERPRET,
+    // Compile the whole program up front, same as writing the .class and running it
+    COMPILE,
+    // Interpret, and compile funs once they turn out to be hot
+    TIERED,
+    // Pick one of the above from the shape of the program
+    AUTO;
+
+    // Past this many AST nodes, compiling everything once is cheaper than compiling hot spots piecemeal
+    private static final int LARGE_PROGRAM = 20000;
+
+    /**
+     * Straight-line programs (no loops, no recursion) can't run long, so interpreting them is always cheapest.
+     * Big programs get compiled outright, and so do parallel loops and async calls, since only compiled code runs
+     * them on other threads. Everything in between starts interpreted and promotes what gets hot.
+     */
+    public static ExecutionPolicy choose(Program program) {
+        Shape shape = new Shape();
+        for (Fun f : program.funs)
+            shape.visit(f);
+
+        if (shape.nodes > LARGE_PROGRAM || shape.parallel || shape.async)
+            return COMPILE;
+        if (!shape.loops && !recursive(program, shape.calls))
+            return INTERPRET;
+        return TIERED;
+    }
+
+    private static boolean recursive(Program program, Map<String, Set<String>> calls) {
+        for (Fun f : program.funs) {
+            Set<String> seen = new HashSet<>();
+            if (reaches(f.name, f.name, calls, seen))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean reaches(String from, String target, Map<String, Set<String>> calls, Set<String> seen) {
+        for (String callee : calls.getOrDefault(from, new HashSet<>())) {
+            if (callee.equals(target))
+                return true;
+            if (seen.add(callee) && reaches(callee, target, calls, seen))
+                return true;
+        }
+        return false;
+    }
+
+    private static class Shape {
+        int nodes = 0;
+        boolean loops = false;
+        boolean parallel = false;
+        boolean async = false;
+        final Map<String, Set<String>> calls = new HashMap<>();
+        String current;
+
+        void visit(Fun fun) {
+            current = fun.name;
+            visit(fun.body);
+        }
+
+        void visit(Statement s) {
+            nodes++;
+            switch (s.kind) {
+                case BLOCK: ((Statement.Block) s).block.forEach(this::visit); break;
+                case ASSIGNMENT: visit(((Statement.Assign) s).assignValue); break;
+                case PRINT: visit(((Statement.Print) s).printValue); break;
+                case RETURN: visit(((Statement.Return) s).returnValue); break;
+                case IF: {
+                    Statement.If ifStatement = ((Statement.If) s);
+                    visit(ifStatement.ifCondition);
+                    visit(ifStatement.ifThen);
+                    if (ifStatement.ifElse != null)
+                        visit(ifStatement.ifElse);
+                    break;
+                }
+                case WHILE: {
+                    loops = true;
+                    visit(((Statement.While) s).whileCondition);
+                    visit(((Statement.While) s).whileBody);
+                    break;
+                }
+                case PARALLEL: {
+                    Statement.Parallel loop = ((Statement.Parallel) s);
+                    loops = true;
+                    parallel = true;
+                    visit(loop.parallelFrom);
+                    visit(loop.parallelTo);
+                    visit(loop.parallelBody);
+                    break;
+                }
+            }
+        }
+
+        void visit(Expression e) {
+            nodes++;
+            if (e instanceof Expression.BinaryExpr) {
+                visit(((Expression.BinaryExpr) e).left);
+                visit(((Expression.BinaryExpr) e).right);
+            } else if (e instanceof Expression.Call) {
+                Expression.Call call = ((Expression.Call) e);
+                calls.computeIfAbsent(current, k -> new HashSet<>()).add(call.callName);
+                call.callActuals.forEach(this::visit);
+            } else if (e instanceof Expression.Async) {
+                async = true;
+                visit(((Expression.Async) e).asyncCall);
+            } else if (e instanceof Expression.Await) {
+                visit(((Expression.Await) e).awaitHandle);
+            }
+        }
+    }
+}
@@ -0,0 +1,845 @@
+package vlee12.interpreter;
+
+import vlee12.compiler.CompileException;
+import vlee12.compiler.Compiler;
+import vlee12.compiler.Options;
+import vlee12.compiler.ParallelLoops;
+import vlee12.parser.Expression;
+import vlee12.parser.ExpressionType;
+import vlee12.parser.Fun;
+import vlee12.parser.Program;
+import vlee12.parser.Statement;
+import vlee12.runtime.FunRuntime;
+import vlee12.runtime.ProgramLoader;
+import vlee12.runtime.Tasks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs a program straight from its AST, for when generating and loading a class costs more than the program.
+ *
+ * The AST is first resolved into a compact tree of nodes (locals become frame slots, globals become indices into
+ * one int[], calls point straight at their target) so evaluating it is just virtual calls and array accesses.
+ * In tiered mode every fun counts its invocations and loop back-edges, and once it's hot it gets compiled through
+ * Compiler, along with every fun it can reach, and all later calls go to the compiled code. Compiled code keeps its
+ * globals in the same int[] (see Options.globalSlots) and prints through FunRuntime, so the two tiers can't tell
+ * each other apart. There's no on-stack replacement: a fun already running keeps interpreting until it returns.
+ * Parallel loops run their iterations in order while interpreted, it's only compiled code that spreads them out.
+ * Async calls likewise run on the spot, their handles come from a Tasks table the tiers share.
+ * Compiler also uses it to run whole programs ahead of time (see evaluate).
+ */
+public class Interpreter {
+
+    // Promote a fun after this many calls, or this many loop iterations inside it
+    public static final int CALL_THRESHOLD = 1000;
+    public static final int BACKEDGE_THRESHOLD = 20000;
+
+    private final Program program;
+    private final String className;
+    private final boolean tiered;
+    private final Options options;
+    private final ClassLoader parent;
+    private int callThreshold = CALL_THRESHOLD;
+    private int backEdgeThreshold = BACKEDGE_THRESHOLD;
+    private final Map<String, FunInfo> funs = new HashMap<>();
+    private final Map<String, Integer> globalSlots = new LinkedHashMap<>();
+    private final int[] globals;
+    private final Tasks tasks = Tasks.create();
+    private ProgramLoader loader;
+    private int tierCount = 0;
+
+    // Where a Return leaves its value for the call that's unwinding
+    private int result;
+
+    // Only for evaluate: calls and loop iterations left before giving up, and where prints go instead of FunRuntime
+    private long stepsLeft = Long.MAX_VALUE;
+    private StringBuilder captured = null;
+    private int maxCaptured;
+
+    /**
+     * @param parent where imported classes are found, and the parent of loaders for promoted code
+     */
+    public Interpreter(Program program, String className, boolean tiered, Options options, ClassLoader parent) {
+        this.program = program;
+        this.className = className;
+        this.tiered = tiered;
+        this.options = options;
+        this.parent = parent;
+
+        // The same rules as compiling it, the loop may well end up compiled
+        ParallelLoops.check(program.funs, options.stats);
+
+        for (Fun f : program.funs) {
+            funs.putIfAbsent(f.name, new FunInfo(f));
+            collectGlobals(f, f.body);
+        }
+        this.globals = new int[globalSlots.size()];
+
+        for (FunInfo info : new ArrayList<>(funs.values()))
+            info.body = resolve(info.fun, info.fun.body);
+    }
+
+    /**
+     * Runs the program from the top, using whichever policy fits
+     */
+    public static void run(Program program, String className, ExecutionPolicy policy, Options options, ClassLoader parent) throws ReflectiveOperationException {
+        if (policy == ExecutionPolicy.AUTO)
+            policy = ExecutionPolicy.choose(program);
+        if (options.report != null)
+            options.report.printf("running %s with policy %s%n", className, policy);
+
+        if (policy == ExecutionPolicy.COMPILE) {
+            Class<?> main = new ProgramLoader(parent).define(className, Compiler.compile(program, className, options));
+            main.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        } else {
+            Interpreter interpreter = new Interpreter(program, className, policy == ExecutionPolicy.TIERED, options, parent);
+            if (options.mainStackMegabytes > 0)
+                FunRuntime.onStack(options.mainStackMegabytes, interpreter::runMain); // compiled main does this itself
+            else
+                interpreter.runMain();
+        }
+    }
+
+    /**
+     * Runs main at compile time, for Options.precomputeSteps. Fun programs read no input, so one that gets to the
+     * end within steps calls and loop iterations, printing at most maxOutput characters, prints the same every run.
+     * Returns what it printed, one line per print, or null if it didn't get that far, after telling the report
+     * which funs did finish calls, since those are the parts a smarter evaluator could fold in.
+     */
+    public static String evaluate(Program program, String className, long steps, int maxOutput, Options options) {
+        Interpreter interpreter;
+        try {
+            interpreter = new Interpreter(program, className, false, options, Interpreter.class.getClassLoader());
+        } catch (CompileException ex) {
+            return null; // Compiling it reports the same thing properly
+        }
+        interpreter.stepsLeft = steps;
+        interpreter.captured = new StringBuilder();
+        interpreter.maxCaptured = maxOutput;
+
+        String failure;
+        try {
+            interpreter.runMain();
+            if (options.report != null)
+                options.report.printf("precomputed %s in %d steps, %d characters of output%n",
+                        className, steps - interpreter.stepsLeft, interpreter.captured.length());
+            return interpreter.captured.toString();
+        } catch (Unfinished ex) {
+            failure = ex.getMessage();
+        } catch (StackOverflowError ex) {
+            failure = "recursed too deep";
+        } catch (RuntimeException ex) {
+            failure = "failed with " + ex; // It'll fail the same way when run
+        }
+
+        if (options.report != null) {
+            List<String> finished = new ArrayList<>();
+            for (FunInfo info : interpreter.funs.values())
+                if (info.returns > 0)
+                    finished.add(info.name + " (" + info.returns + ")");
+            Collections.sort(finished);
+            options.report.printf("not precomputing %s, it %s; calls that finished: %s%n",
+                    className, failure, finished.isEmpty() ? "none" : String.join(", ", finished));
+        }
+        return null;
+    }
+
+    /**
+     * Changes when funs get promoted, mostly so tests can force promotion on tiny programs
+     */
+    public void setThresholds(int calls, int backEdges) {
+        this.callThreshold = calls;
+        this.backEdgeThreshold = backEdges;
+    }
+
+    /**
+     * Calls main with zeroes for its formals, like the real entry point does
+     */
+    public void runMain() {
+        FunInfo main = funs.get("main");
+        if (main == null)
+            throw new CompileException("No main fun found");
+        main.invoke(new int[main.arity]);
+    }
+
+    public int call(String name, int... args) {
+        FunInfo info = funs.get(name);
+        if (info == null)
+            throw new CompileException("Calling something nonexistent");
+        return info.invoke(Arrays.copyOf(args, info.arity));
+    }
+
+    public int global(String name) {
+        Integer slot = globalSlots.get(name);
+        return slot == null ? 0 : globals[slot];
+    }
+
+    public boolean isCompiled(String name) {
+        FunInfo info = funs.get(name);
+        return info != null && info.compiled != null;
+    }
+
+    private final class FunInfo {
+        final String name;
+        final int arity;
+        final Fun fun; // null for imported funs, which are always compiled
+        Stmt body;
+        int invocations = 0;
+        int backEdges = 0;
+        int returns = 0; // interpreted calls that finished, only counted by evaluate
+        boolean uncompilable = false;
+
+        // Takes the frame as an int[], whatever the arity
+        MethodHandle compiled;
+
+        FunInfo(Fun fun) {
+            this(fun.name, fun.formals.size(), fun);
+        }
+
+        FunInfo(String name, int arity, Fun fun) {
+            this.name = name;
+            this.arity = arity;
+            this.fun = fun;
+        }
+
+        int invoke(int[] frame) {
+            if (--stepsLeft < 0)
+                throw new Unfinished("ran out of steps");
+            if (compiled == null && tiered && ++invocations >= callThreshold)
+                promote(this);
+
+            if (compiled != null) {
+                try {
+                    return (int) compiled.invokeExact(frame);
+                } catch (RuntimeException | Error ex) {
+                    throw ex;
+                } catch (Throwable t) {
+                    throw new IllegalStateException(t);
+                }
+            }
+
+            if (captured == null)
+                return body.exec(frame) ? result : 0; // Implicit return 0 at end
+
+            int ret = body.exec(frame) ? result : 0;
+            returns++;
+            return ret;
+        }
+
+        void backEdge() {
+            if (--stepsLeft < 0)
+                throw new Unfinished("ran out of steps");
+            if (compiled == null && tiered && ++backEdges >= backEdgeThreshold)
+                promote(this);
+        }
+    }
+
+    /* -- Promotion -- */
+
+    private void promote(FunInfo hot) {
+        if (hot.uncompilable || hot.compiled != null)
+            return;
+
+        // Compile everything it can reach, so compiled code only ever calls compiled code
+        Set<String> closure = new HashSet<>();
+        reach(hot.name, closure);
+        List<Fun> subset = new ArrayList<>();
+        for (Fun f : program.funs)
+            if (closure.contains(f.name) && funs.get(f.name).fun == f)
+                subset.add(f);
+
+        Options tierOptions = options.copy();
+        tierOptions.library = true;
+        tierOptions.selfContained = false; // prints have to go where the interpreter's go
+        tierOptions.globalSlots = globalSlots;
+        tierOptions.sharedTasks = true;
+
+        String tierName = className + "$tier" + (++tierCount);
+        try {
+            if (loader == null)
+                loader = new ProgramLoader(parent);
+            Class<?> tier = loader.define(tierName, Compiler.compile(new Program(program.imports, subset), tierName, tierOptions));
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            lookup.findStaticSetter(tier, Compiler.GLOBALS_FIELD, int[].class).invoke(globals);
+            if (usesTasks(tier))
+                lookup.findStaticSetter(tier, Compiler.TASKS_FIELD, Tasks.class).invoke(tasks);
+
+            for (Fun f : subset) {
+                FunInfo info = funs.get(f.name);
+                if (info.compiled == null) {
+                    MethodType type = MethodType.methodType(int.class, Collections.nCopies(f.formals.size(), int.class));
+                    info.compiled = lookup.findStatic(tier, Compiler.methodName(f.name), type).asSpreader(int[].class, f.formals.size());
+                }
+            }
+
+            if (options.report != null)
+                options.report.printf("promoted %s (%d calls, %d back-edges) with %d funs into %s%n",
+                        hot.name, hot.invocations, hot.backEdges, subset.size(), tierName);
+        } catch (CompileException | ReflectiveOperationException ex) {
+            // Keep interpreting it rather than failing the program
+            hot.uncompilable = true;
+            if (options.report != null)
+                options.report.printf("couldn't promote %s: %s%n", hot.name, ex);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // Only classes that use async or await have the field
+    private static boolean usesTasks(Class<?> tier) {
+        for (Field field : tier.getFields())
+            if (field.getName().equals(Compiler.TASKS_FIELD))
+                return true;
+        return false;
+    }
+
+    private void reach(String name, Set<String> seen) {
+        FunInfo info = funs.get(name);
+        if (info == null || info.fun == null || !seen.add(name))
+            return;
+        for (String callee : calleesOf(info.fun.body, new HashSet<>()))
+            reach(callee, seen);
+    }
+
+    private Set<String> calleesOf(Statement s, Set<String> ret) {
+        switch (s.kind) {
+            case BLOCK: ((Statement.Block) s).block.forEach(sub -> calleesOf(sub, ret)); break;
+            case ASSIGNMENT: calleesOf(((Statement.Assign) s).assignValue, ret); break;
+            case PRINT: calleesOf(((Statement.Print) s).printValue, ret); break;
+            case RETURN: calleesOf(((Statement.Return) s).returnValue, ret); break;
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                calleesOf(ifStatement.ifCondition, ret);
+                calleesOf(ifStatement.ifThen, ret);
+                if (ifStatement.ifElse != null)
+                    calleesOf(ifStatement.ifElse, ret);
+                break;
+            }
+            case WHILE: {
+                calleesOf(((Statement.While) s).whileCondition, ret);
+                calleesOf(((Statement.While) s).whileBody, ret);
+                break;
+            }
+            case PARALLEL: {
+                Statement.Parallel loop = ((Statement.Parallel) s);
+                calleesOf(loop.parallelFrom, ret);
+                calleesOf(loop.parallelTo, ret);
+                calleesOf(loop.parallelBody, ret);
+                break;
+            }
+        }
+        return ret;
+    }
+
+    private void calleesOf(Expression e, Set<String> ret) {
+        if (e instanceof Expression.BinaryExpr) {
+            calleesOf(((Expression.BinaryExpr) e).left, ret);
+            calleesOf(((Expression.BinaryExpr) e).right, ret);
+        } else if (e instanceof Expression.Call) {
+            ret.add(((Expression.Call) e).callName);
+            ((Expression.Call) e).callActuals.forEach(a -> calleesOf(a, ret));
+        } else if (e instanceof Expression.Async) {
+            calleesOf(((Expression.Async) e).asyncCall, ret);
+        } else if (e instanceof Expression.Await) {
+            calleesOf(((Expression.Await) e).awaitHandle, ret);
+        }
+    }
+
+    /* -- Resolution from AST to nodes -- */
+
+    private void collectGlobals(Fun fun, Statement s) {
+        switch (s.kind) {
+            case BLOCK: ((Statement.Block) s).block.forEach(sub -> collectGlobals(fun, sub)); break;
+            case ASSIGNMENT: {
+                Statement.Assign assign = ((Statement.Assign) s);
+                if (!fun.formals.contains(assign.assignName))
+                    globalSlots.putIfAbsent(assign.assignName, globalSlots.size());
+                collectGlobals(fun, assign.assignValue);
+                break;
+            }
+            case PRINT: collectGlobals(fun, ((Statement.Print) s).printValue); break;
+            case RETURN: collectGlobals(fun, ((Statement.Return) s).returnValue); break;
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                collectGlobals(fun, ifStatement.ifCondition);
+                collectGlobals(fun, ifStatement.ifThen);
+                if (ifStatement.ifElse != null)
+                    collectGlobals(fun, ifStatement.ifElse);
+                break;
+            }
+            case WHILE: {
+                collectGlobals(fun, ((Statement.While) s).whileCondition);
+                collectGlobals(fun, ((Statement.While) s).whileBody);
+                break;
+            }
+            case PARALLEL: {
+                Statement.Parallel loop = ((Statement.Parallel) s);
+                collectGlobals(fun, loop.parallelFrom);
+                collectGlobals(fun, loop.parallelTo);
+                collectGlobals(new Fun(fun.name, ParallelLoops.scope(fun.formals, loop), null), loop.parallelBody);
+                for (String name : loop.parallelReductions)
+                    if (!fun.formals.contains(name))
+                        globalSlots.putIfAbsent(name, globalSlots.size());
+                break;
+            }
+        }
+    }
+
+    private void collectGlobals(Fun fun, Expression e) {
+        if (e instanceof Expression.Var) {
+            String name = ((Expression.Var) e).varName;
+            if (!fun.formals.contains(name))
+                globalSlots.putIfAbsent(name, globalSlots.size());
+        } else if (e instanceof Expression.BinaryExpr) {
+            collectGlobals(fun, ((Expression.BinaryExpr) e).left);
+            collectGlobals(fun, ((Expression.BinaryExpr) e).right);
+        } else if (e instanceof Expression.Call) {
+            ((Expression.Call) e).callActuals.forEach(a -> collectGlobals(fun, a));
+        } else if (e instanceof Expression.Async) {
+            collectGlobals(fun, ((Expression.Async) e).asyncCall);
+        } else if (e instanceof Expression.Await) {
+            collectGlobals(fun, ((Expression.Await) e).awaitHandle);
+        }
+    }
+
+    private Stmt resolve(Fun fun, Statement s) {
+        switch (s.kind) {
+            case BLOCK: {
+                List<Statement> block = ((Statement.Block) s).block;
+                Stmt[] stmts = new Stmt[block.size()];
+                for (int i = 0; i < stmts.length; i++)
+                    stmts[i] = resolve(fun, block.get(i));
+                return new Block(stmts);
+            }
+            case ASSIGNMENT: {
+                Statement.Assign assign = ((Statement.Assign) s);
+                Expr value = resolve(fun, assign.assignValue);
+                int local = fun.formals.indexOf(assign.assignName);
+                return local != -1 ? new AssignLocal(local, value) : new AssignGlobal(globalSlots.get(assign.assignName), value);
+            }
+            case PRINT: return new Print(resolve(fun, ((Statement.Print) s).printValue));
+            case RETURN: return new Return(resolve(fun, ((Statement.Return) s).returnValue));
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                return new If(resolve(fun, ifStatement.ifCondition), resolve(fun, ifStatement.ifThen),
+                        ifStatement.ifElse == null ? null : resolve(fun, ifStatement.ifElse));
+            }
+            case WHILE: {
+                Statement.While whileStatement = ((Statement.While) s);
+                return new While(funs.get(fun.name), resolve(fun, whileStatement.whileCondition), resolve(fun, whileStatement.whileBody));
+            }
+            case PARALLEL: {
+                Statement.Parallel loop = ((Statement.Parallel) s);
+                Fun body = new Fun(fun.name, ParallelLoops.scope(fun.formals, loop), loop.parallelBody);
+
+                // Each reduction goes into a local or a global once the loop is done
+                int count = loop.parallelReductions.size();
+                int[] locals = new int[count];
+                int[] globalTargets = new int[count];
+                for (int i = 0; i < count; i++) {
+                    String name = loop.parallelReductions.get(i);
+                    locals[i] = fun.formals.indexOf(name);
+                    globalTargets[i] = locals[i] == -1 ? globalSlots.get(name) : -1;
+                }
+
+                return new Parallel(funs.get(fun.name), resolve(fun, loop.parallelFrom), resolve(fun, loop.parallelTo),
+                        resolve(body, loop.parallelBody), fun.formals.size(), body.formals.size(), loop.parallelLocals.size(),
+                        loop.parallelOps.toArray(new ExpressionType[0]), locals, globalTargets);
+            }
+            default: throw new CompileException("Unknown statement type: " + s);
+        }
+    }
+
+    private Expr resolve(Fun fun, Expression e) {
+        switch (e.kind) {
+            case VAR: {
+                String name = ((Expression.Var) e).varName;
+                int local = fun.formals.indexOf(name);
+                return local != -1 ? new Local(local) : new Global(globalSlots.get(name));
+            }
+            case VAL: return new Const(((Expression.Val) e).value_unsigned);
+            case PLUS:
+            case MUL:
+            case EQ:
+            case NE:
+            case LT:
+            case GT: {
+                Expression.BinaryExpr expr = ((Expression.BinaryExpr) e);
+                return new Binary(e.kind, resolve(fun, expr.left), resolve(fun, expr.right));
+            }
+            case CALL: {
+                Expression.Call call = ((Expression.Call) e);
+                FunInfo target = funs.get(call.callName);
+                if (target == null)
+                    target = importedFun(call);
+                if (call.callActuals.size() < target.arity)
+                    throw new CompileException("Not enough arguments");
+
+                // Extra actuals are never evaluated, same as compiled code
+                Expr[] actuals = new Expr[target.arity];
+                for (int i = 0; i < actuals.length; i++)
+                    actuals[i] = resolve(fun, call.callActuals.get(i));
+                return new Call(target, actuals);
+            }
+            case ASYNC: {
+                // Compiled code can only start funs of its own file, so the same goes here
+                Expression.Call call = ((Expression.Async) e).asyncCall;
+                FunInfo target = funs.get(call.callName);
+                if (target == null || target.fun == null)
+                    throw new CompileException(program.imports.isEmpty() ? "Calling something nonexistent" : "async can only call funs in the same file");
+                return new Async((Call) resolve(fun, call));
+            }
+            case AWAIT: return new Await(resolve(fun, ((Expression.Await) e).awaitHandle));
+            default: throw new CompileException("Unknown expression type: " + e);
+        }
+    }
+
+    /**
+     * A fun from another compiled .fun file, found the same way Linker would find it
+     */
+    private FunInfo importedFun(Expression.Call call) {
+        MethodType type = MethodType.methodType(int.class, Collections.nCopies(call.callActuals.size(), int.class));
+        for (String module : program.imports) {
+            try {
+                Class<?> target = Class.forName(module, true, parent);
+                MethodHandle handle = MethodHandles.publicLookup().findStatic(target, Compiler.methodName(call.callName), type);
+
+                FunInfo info = new FunInfo(call.callName, type.parameterCount(), null);
+                info.compiled = handle.asSpreader(int[].class, type.parameterCount());
+                funs.put(call.callName, info);
+                return info;
+            } catch (ReflectiveOperationException ex) {
+                // Try the next import
+            }
+        }
+        throw new CompileException("Calling something nonexistent");
+    }
+
+    /* -- Nodes -- */
+
+    private abstract static class Expr {
+        abstract int eval(int[] frame);
+    }
+
+    // Returns true once a return statement has run, with the value left in result
+    private abstract static class Stmt {
+        abstract boolean exec(int[] frame);
+    }
+
+    private static final class Local extends Expr {
+        final int slot;
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        int eval(int[] frame) {
+            return frame[slot];
+        }
+    }
+
+    private final class Global extends Expr {
+        final int slot;
+
+        Global(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        int eval(int[] frame) {
+            return globals[slot];
+        }
+    }
+
+    private static final class Const extends Expr {
+        final int value;
+
+        Const(int value) {
+            this.value = value;
+        }
+
+        @Override
+        int eval(int[] frame) {
+            return value;
+        }
+    }
+
+    private static final class Binary extends Expr {
+        final ExpressionType kind;
+        final Expr left;
+        final Expr right;
+
+        Binary(ExpressionType kind, Expr left, Expr right) {
+            this.kind = kind;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int eval(int[] frame) {
+            int l = left.eval(frame);
+            int r = right.eval(frame);
+            switch (kind) {
+                case PLUS: return l + r;
+                case MUL: return l * r;
+                case EQ: return FunRuntime.isEq(l, r);
+                case NE: return FunRuntime.isEq(l, r) ^ 1;
+                case LT: return FunRuntime.isLt(l, r);
+                case GT: return FunRuntime.isGt(l, r);
+                default: throw new IllegalStateException(kind.toString());
+            }
+        }
+    }
+
+    private static final class Call extends Expr {
+        final FunInfo target;
+        final Expr[] actuals;
+
+        Call(FunInfo target, Expr[] actuals) {
+            this.target = target;
+            this.actuals = actuals;
+        }
+
+        @Override
+        int eval(int[] frame) {
+            int[] callee = new int[actuals.length];
+            for (int i = 0; i < actuals.length; i++)
+                callee[i] = actuals[i].eval(frame);
+            return target.invoke(callee);
+        }
+    }
+
+    // The call runs to completion right here, as if it finished before anyone got around to awaiting it
+    private final class Async extends Expr {
+        final Call call;
+
+        Async(Call call) {
+            this.call = call;
+        }
+
+        @Override
+        int eval(int[] frame) {
+            return tasks.done(call.eval(frame));
+        }
+    }
+
+    private final class Await extends Expr {
+        final Expr handle;
+
+        Await(Expr handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        int eval(int[] frame) {
+            return tasks.await(handle.eval(frame));
+        }
+    }
+
+    private static final class Block extends Stmt {
+        final Stmt[] stmts;
+
+        Block(Stmt[] stmts) {
+            this.stmts = stmts;
+        }
+
+        @Override
+        boolean exec(int[] frame) {
+            for (Stmt s : stmts)
+                if (s.exec(frame))
+                    return true;
+            return false;
+        }
+    }
+
+    private static final class AssignLocal extends Stmt {
+        final int slot;
+        final Expr value;
+
+        AssignLocal(int slot, Expr value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        boolean exec(int[] frame) {
+            frame[slot] = value.eval(frame);
+            return false;
+        }
+    }
+
+    private final class AssignGlobal extends Stmt {
+        final int slot;
+        final Expr value;
+
+        AssignGlobal(int slot, Expr value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        boolean exec(int[] frame) {
+            globals[slot] = value.eval(frame);
+            return false;
+        }
+    }
+
+    private final class Print extends Stmt {
+        final Expr value;
+
+        Print(Expr value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean exec(int[] frame) {
+            int v = value.eval(frame);
+            if (captured == null) {
+                FunRuntime.print(v);
+            } else {
+                captured.append(Integer.toUnsignedString(v)).append('\n');
+                if (captured.length() > maxCaptured)
+                    throw new Unfinished("printed more than " + maxCaptured + " characters");
+            }
+            return false;
+        }
+    }
+
+    private final class Return extends Stmt {
+        final Expr value;
+
+        Return(Expr value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean exec(int[] frame) {
+            result = value.eval(frame);
+            return true;
+        }
+    }
+
+    private static final class If extends Stmt {
+        final Expr condition;
+        final Stmt then;
+        final Stmt otherwise;
+
+        If(Expr condition, Stmt then, Stmt otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        boolean exec(int[] frame) {
+            if (condition.eval(frame) != 0)
+                return then.exec(frame);
+            return otherwise != null && otherwise.exec(frame);
+        }
+    }
+
+    /**
+     * Runs the iterations one after the other, which is one of the orders they could have run in anyway.
+     * The body has a frame of its own, laid out like ParallelLoops.scope: a copy of the frame around it,
+     * the loop variable, the body's locals and the reductions.
+     */
+    private final class Parallel extends Stmt {
+        final FunInfo owner;
+        final Expr from;
+        final Expr to;
+        final Stmt body;
+        final int captured;
+        final int frameSize;
+        final int locals;
+        final ExpressionType[] ops;
+        final int[] localTargets; // slot in the outer frame, or -1 if it's a global
+        final int[] globalTargets;
+
+        Parallel(FunInfo owner, Expr from, Expr to, Stmt body, int captured, int frameSize, int locals,
+                 ExpressionType[] ops, int[] localTargets, int[] globalTargets) {
+            this.owner = owner;
+            this.from = from;
+            this.to = to;
+            this.body = body;
+            this.captured = captured;
+            this.frameSize = frameSize;
+            this.locals = locals;
+            this.ops = ops;
+            this.localTargets = localTargets;
+            this.globalTargets = globalTargets;
+        }
+
+        @Override
+        boolean exec(int[] frame) {
+            int lo = from.eval(frame);
+            int hi = to.eval(frame);
+
+            int var = captured;
+            int reductions = var + 1 + locals;
+            int[] inner = Arrays.copyOf(frame, frameSize);
+            for (int i = 0; i < ops.length; i++)
+                inner[reductions + i] = ops[i] == ExpressionType.MUL ? 1 : 0;
+
+            for (int i = lo; Integer.compareUnsigned(i, hi) < 0; i++) {
+                inner[var] = i;
+                Arrays.fill(inner, var + 1, reductions, 0);
+                body.exec(inner); // Never returns, the parser sees to that
+                owner.backEdge();
+            }
+
+            for (int i = 0; i < ops.length; i++) {
+                int partial = inner[reductions + i];
+                int slot = localTargets[i];
+                if (slot != -1)
+                    frame[slot] = ops[i] == ExpressionType.MUL ? frame[slot] * partial : frame[slot] + partial;
+                else
+                    globals[globalTargets[i]] = ops[i] == ExpressionType.MUL ? globals[globalTargets[i]] * partial : globals[globalTargets[i]] + partial;
+            }
+            return false;
+        }
+    }
+
+    private static final class While extends Stmt {
+        final FunInfo owner;
+        final Expr condition;
+        final Stmt body;
+
+        While(FunInfo owner, Expr condition, Stmt body) {
+            this.owner = owner;
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        boolean exec(int[] frame) {
+            while (condition.eval(frame) != 0) {
+                if (body.exec(frame))
+                    return true;
+                owner.backEdge();
+            }
+            return false;
+        }
+    }
+
+    // Thrown through the whole interpreted stack when evaluate gives up
+    private static final class Unfinished extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unfinished(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
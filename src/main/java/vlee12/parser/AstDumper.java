@@ -0,0 +1,199 @@
+package vlee12.parser;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Writes funs out as s-expressions, e.g. (defn fib [n] (if (< n 2) (ret n) ...)), for --dump-ast.
+ * Everything goes straight to the writer as the tree is walked, so the dump of a huge program never
+ * exists as one string. The toString of every node is this too.
+ */
+public final class AstDumper {
+    private final Writer out;
+    private long nodes = 0; // statements and expressions written so far
+
+    public AstDumper(Writer out) {
+        this.out = out;
+    }
+
+    public long nodes() {
+        return nodes;
+    }
+
+    public void dump(Program program) throws IOException {
+        for (String lib : program.imports) {
+            out.write("(import ");
+            out.write(lib);
+            out.write(")\n");
+        }
+        for (Fun fun : program.funs) {
+            dump(fun);
+            out.write('\n');
+        }
+    }
+
+    public void dump(Fun fun) throws IOException {
+        out.write("(defn ");
+        out.write(fun.name);
+        out.write(" [");
+        out.write(String.join(" ", fun.formals));
+        out.write("] ");
+        dump(fun.body);
+        out.write(')');
+    }
+
+    public void dump(Statement s) throws IOException {
+        if (s == null) {
+            out.write("null"); // if without an else
+            return;
+        }
+
+        nodes++;
+        switch (s.kind) {
+            case BLOCK: {
+                boolean first = true;
+                for (Statement sub : ((Statement.Block) s).block) {
+                    if (!first)
+                        out.write(' ');
+                    dump(sub);
+                    first = false;
+                }
+                break;
+            }
+            case ASSIGNMENT: {
+                Statement.Assign assign = ((Statement.Assign) s);
+                out.write("(let ");
+                out.write(assign.assignName);
+                out.write(' ');
+                dump(assign.assignValue);
+                out.write(')');
+                break;
+            }
+            case PRINT: {
+                out.write("(print ");
+                dump(((Statement.Print) s).printValue);
+                out.write(')');
+                break;
+            }
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                out.write("(if ");
+                dump(ifStatement.ifCondition);
+                out.write(' ');
+                dump(ifStatement.ifThen);
+                out.write(' ');
+                dump(ifStatement.ifElse);
+                out.write(')');
+                break;
+            }
+            case WHILE: {
+                Statement.While whileStatement = ((Statement.While) s);
+                out.write("(while ");
+                dump(whileStatement.whileCondition);
+                out.write(' ');
+                dump(whileStatement.whileBody);
+                out.write(')');
+                break;
+            }
+            case RETURN: {
+                out.write("(ret ");
+                dump(((Statement.Return) s).returnValue);
+                out.write(')');
+                break;
+            }
+            case PARALLEL: {
+                Statement.Parallel loop = ((Statement.Parallel) s);
+                out.write("(parallel ");
+                out.write(loop.parallelVar);
+                out.write(' ');
+                dump(loop.parallelFrom);
+                out.write(' ');
+                dump(loop.parallelTo);
+                out.write(" [");
+                out.write(String.join(" ", loop.parallelReductions));
+                out.write("] ");
+                dump(loop.parallelBody);
+                out.write(')');
+                break;
+            }
+            default: out.write("?");
+        }
+    }
+
+    public void dump(Expression e) throws IOException {
+        nodes++;
+        switch (e.kind) {
+            case VAR: out.write(((Expression.Var) e).varName); break;
+            case VAL: out.write(Integer.toUnsignedString(((Expression.Val) e).value_unsigned)); break;
+            case PLUS:
+            case MUL:
+            case EQ:
+            case NE:
+            case LT:
+            case GT: {
+                Expression.BinaryExpr expr = ((Expression.BinaryExpr) e);
+                out.write('(');
+                out.write(operator(e.kind));
+                out.write(' ');
+                dump(expr.left);
+                out.write(' ');
+                dump(expr.right);
+                out.write(')');
+                break;
+            }
+            case CALL: {
+                Expression.Call call = ((Expression.Call) e);
+                out.write('(');
+                out.write(call.callName);
+                for (Expression actual : call.callActuals) {
+                    out.write(' ');
+                    dump(actual);
+                }
+                out.write(')');
+                break;
+            }
+            case ASYNC: {
+                out.write("(async ");
+                dump(((Expression.Async) e).asyncCall);
+                out.write(')');
+                break;
+            }
+            case AWAIT: {
+                out.write("(await ");
+                dump(((Expression.Await) e).awaitHandle);
+                out.write(')');
+                break;
+            }
+            default: out.write("?");
+        }
+    }
+
+    private static String operator(ExpressionType kind) {
+        switch (kind) {
+            case PLUS: return "+";
+            case MUL: return "*";
+            case EQ: return "=";
+            case LT: return "<";
+            case GT: return ">";
+            case NE: return "!=";
+            default: return "?";
+        }
+    }
+
+    interface Dump {
+        void to(AstDumper dumper) throws IOException;
+    }
+
+    // For toString, where there's nowhere to stream to
+    static String toString(Dump dump) {
+        StringWriter out = new StringWriter();
+        try {
+            dump.to(new AstDumper(out));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex); // Impossible
+        }
+        return out.toString();
+    }
+}
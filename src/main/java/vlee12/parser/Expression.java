@@ -9,6 +9,12 @@ public class Expression {
         this.kind = kind;
     }
 
+    // Builds the whole string, use AstDumper to stream big trees instead
+    @Override
+    public String toString() {
+        return AstDumper.toString(dumper -> dumper.dump(this));
+    }
+
     public static class Var extends Expression {
         public final String varName;
 
@@ -16,11 +22,6 @@ public class Expression {
             super(ExpressionType.VAR);
             this.varName = name;
         }
-
-        @Override
-        public String toString() {
-            return varName;
-        }
     }
 
     public static class Val extends Expression {
@@ -30,11 +31,6 @@ public class Expression {
             super(ExpressionType.VAL);
             this.value_unsigned = val;
         }
-
-        @Override
-        public String toString() {
-            return Integer.toUnsignedString(value_unsigned);
-        }
     }
 
     public static class BinaryExpr extends Expression {
@@ -46,23 +42,6 @@ public class Expression {
             this.left = left;
             this.right = right;
         }
-
-        @Override
-        public String toString() {
-            return "(" + getOp() + " " + left + " " + right + ")";
-        }
-
-        private String getOp() {
-            switch (kind) {
-                case PLUS: return "+";
-                case MUL: return "*";
-                case EQ: return "=";
-                case LT: return "<";
-                case GT: return ">";
-                case NE: return "!=";
-                default: return "?";
-            }
-        }
     }
 
     public static class Call extends Expression {
@@ -74,14 +53,24 @@ public class Expression {
             this.callName = name;
             this.callActuals = actuals;
         }
+    }
+
+    // Starts the call on another thread, what it evaluates to is a handle for awaiting the result
+    public static class Async extends Expression {
+        public final Call asyncCall;
+
+        Async(Call call) {
+            super(ExpressionType.ASYNC);
+            this.asyncCall = call;
+        }
+    }
+
+    public static class Await extends Expression {
+        public final Expression awaitHandle;
 
-        @Override
-        public String toString() {
-            StringBuilder builder = new StringBuilder("(").append(callName);
-            for (Expression e : callActuals)
-                builder.append(" ").append(e);
-            builder.append(")");
-            return builder.toString();
+        Await(Expression handle) {
+            super(ExpressionType.AWAIT);
+            this.awaitHandle = handle;
         }
     }
 }
@@ -9,5 +9,7 @@ public enum ExpressionType {
     NE,
     LT,
     GT,
-    CALL
+    CALL,
+    ASYNC,
+    AWAIT
 }
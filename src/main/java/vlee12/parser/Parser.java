@@ -1,9 +1,14 @@
 package vlee12.parser;
 
+import vlee12.compiler.CompileStats;
+import vlee12.compiler.Phase;
+
 import java.io.BufferedReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static vlee12.parser.Parser.TokenType.*;
@@ -34,11 +39,42 @@ public class Parser {
         PRINT,
         FUN,
         COMMA,
-        RETURN
+        RETURN,
+        IMPORT,
+        PARALLEL,
+        ASYNC,
+        AWAIT
     }
 
     public static List<Fun> parse(BufferedReader program) {
-        return new Parser(program.lines().collect(Collectors.joining("\n")).toCharArray()).funs();
+        return parseProgram(program).funs;
+    }
+
+    public static Program parseProgram(BufferedReader program) {
+        return parseProgram(program, null);
+    }
+
+    /**
+     * @param stats where to record how long parsing took, may be null
+     */
+    public static Program parseProgram(BufferedReader program, CompileStats stats) {
+        List<Fun> funs = new ArrayList<>();
+        Program ret = parseProgram(program, stats, funs::add);
+        return new Program(ret.imports, funs);
+    }
+
+    /**
+     * Hands each fun to sink as soon as it's parsed instead of collecting them, so something can work on the first
+     * funs while the rest are still being read (see Compiler.compile). What comes back only has the imports.
+     */
+    public static Program parseProgram(BufferedReader program, CompileStats stats, Consumer<Fun> sink) {
+        try (Phase phase = Phase.start(stats, "parse", null)) {
+            Parser parser = new Parser(program.lines().collect(Collectors.joining("\n")).toCharArray());
+            Program ret = parser.program(sink);
+            phase.bytes(parser.buf.length);
+            phase.visited(parser.nodes);
+            return ret;
+        }
     }
     
     private TokenType curToken = TokenType.NONE;
@@ -48,12 +84,18 @@ public class Parser {
     private int line = 0;
     private int pos = -1;
     private String curIdentifier = "";
+    private int nodes = 0; // statements and expressions built so far
     private int curValue_unsigned = 0;
 
     private Parser(char[] program) {
         this.buf = program;
     }
 
+    private <T> T node(T node) {
+        nodes++;
+        return node;
+    }
+
     private void error() {
         System.err.printf("===> error at %d:%d <===%n", line, pos);
         throw new RuntimeException();
@@ -103,6 +145,10 @@ public class Parser {
                     case "print": curToken = PRINT; break;
                     case "fun": curToken = FUN; break;
                     case "return": curToken = RETURN; break;
+                    case "import": curToken = IMPORT; break;
+                    case "parallel": curToken = PARALLEL; break;
+                    case "async": curToken = ASYNC; break;
+                    case "await": curToken = AWAIT; break;
                     default: curToken = ID; break;
                 }
             } else if (c >= '0' && c <= '9') {
@@ -157,13 +203,27 @@ public class Parser {
         }
     }
 
-    private List<Fun> funs() {
+    private Program program(Consumer<Fun> sink) {
         advanceToken(); // Get the first token
-        List<Fun> ret = new ArrayList<>();
+        List<String> imports = new ArrayList<>();
         while (curToken != END) {
-            ret.add(fun());
+            if (curToken == IMPORT)
+                imports.add(importDecl());
+            else
+                sink.accept(fun());
         }
-        return ret;
+        return new Program(imports, Collections.emptyList());
+    }
+
+    private String importDecl() {
+        advanceToken();
+        if (curToken != ID)
+            error();
+        String name = curIdentifier;
+        advanceToken();
+        if (curToken == SEMI)
+            advanceToken();
+        return name;
     }
 
     private Fun fun() {
@@ -196,6 +256,14 @@ public class Parser {
     }
 
     private Statement statement() {
+        int start = line + 1; // of the token it starts with, which has been read already
+        Statement ret = bareStatement();
+        if (ret != null)
+            ret.line = start;
+        return ret;
+    }
+
+    private Statement bareStatement() {
         switch (curToken) {
             case ID: {
                 String assignName = curIdentifier;
@@ -206,11 +274,11 @@ public class Parser {
                 Expression assignValue = expression();
                 if (curToken == SEMI)
                     advanceToken();
-                return new Statement.Assign(assignName, assignValue);
+                return node(new Statement.Assign(assignName, assignValue));
             }
             case RETURN: {
                 advanceToken();
-                return new Statement.Return(expression());
+                return node(new Statement.Return(expression()));
             }
             case LBRACE: {
                 advanceToken();
@@ -218,12 +286,12 @@ public class Parser {
                 if (curToken != RBRACE)
                     error();
                 advanceToken();
-                return new Statement.Block(ret);
+                return node(new Statement.Block(ret));
             }
             case PRINT: {
                 advanceToken();
                 Expression val = expression();
-                return new Statement.Print(val);
+                return node(new Statement.Print(val));
             }
             case IF: {
                 advanceToken();
@@ -234,14 +302,207 @@ public class Parser {
                     advanceToken();
                     other = statement();
                 }
-                return new Statement.If(cond, truth, other);
+                return node(new Statement.If(cond, truth, other));
             }
-            case WHILE: advanceToken(); return new Statement.While(expression(), statement());
-            case SEMI: advanceToken(); return new Statement.Block(Collections.emptyList());
+            case WHILE: advanceToken(); return node(new Statement.While(expression(), statement()));
+            case PARALLEL: return node(parallel());
+            case SEMI: advanceToken(); return node(new Statement.Block(Collections.emptyList()));
             default: return null;
         }
     }
 
+    /**
+     * parallel i from a to b reduce s, t statement
+     * from, to and reduce are only special here, so they can still be used as names
+     */
+    private Statement parallel() {
+        advanceToken();
+        if (curToken != ID)
+            error();
+        String var = curIdentifier;
+        advanceToken();
+
+        word("from");
+        Expression from = expression();
+        word("to");
+        Expression to = expression();
+
+        List<String> reductions = new ArrayList<>();
+        if (curToken == ID && curIdentifier.equals("reduce")) {
+            do {
+                advanceToken();
+                if (curToken != ID || curIdentifier.equals(var) || reductions.contains(curIdentifier))
+                    error();
+                reductions.add(curIdentifier);
+                advanceToken();
+            } while (curToken == COMMA);
+        }
+
+        Statement body = statement();
+        if (body == null)
+            error();
+
+        ExpressionType[] ops = new ExpressionType[reductions.size()];
+        List<String> locals = new ArrayList<>();
+        checkParallel(body, var, reductions, ops, locals);
+        for (int i = 0; i < ops.length; i++)
+            if (ops[i] == null)
+                parallelError("%s is reduced but never updated", reductions.get(i));
+
+        return new Statement.Parallel(var, from, to, reductions, Arrays.asList(ops), locals, body);
+    }
+
+    private void word(String word) {
+        if (curToken != ID || !curIdentifier.equals(word))
+            error();
+        advanceToken();
+    }
+
+    private void parallelError(String format, Object... args) {
+        System.err.printf(format + " in a parallel loop%n", args);
+        error();
+    }
+
+    /**
+     * Makes sure iterations of a parallel loop can't see each other: no printing or returning, nothing written
+     * but the body's own locals, and reductions only folded into. Collects the locals and the reduction operators.
+     */
+    private void checkParallel(Statement s, String var, List<String> reductions, ExpressionType[] ops, List<String> locals) {
+        switch (s.kind) {
+            case BLOCK: {
+                for (Statement sub : ((Statement.Block) s).block)
+                    checkParallel(sub, var, reductions, ops, locals);
+                break;
+            }
+            case ASSIGNMENT: {
+                Statement.Assign assign = ((Statement.Assign) s);
+                String name = assign.assignName;
+                if (name.equals(var))
+                    parallelError("%s can't be assigned", var);
+
+                int reduction = reductions.indexOf(name);
+                if (reduction == -1) {
+                    checkReads(assign.assignValue, reductions);
+                    if (!locals.contains(name))
+                        locals.add(name);
+                    break;
+                }
+
+                // s = s + e, s = e + s, and the same with *, where e doesn't use any reduction
+                Expression value = assign.assignValue;
+                Expression rest = null;
+                if (value.kind == ExpressionType.PLUS || value.kind == ExpressionType.MUL) {
+                    Expression.BinaryExpr expr = ((Expression.BinaryExpr) value);
+                    if (isVar(expr.left, name))
+                        rest = expr.right;
+                    else if (isVar(expr.right, name))
+                        rest = expr.left;
+                }
+                if (rest == null)
+                    parallelError("%s can only be updated as %s = %s + ... or %s = %s * ...", name, name, name, name, name);
+                if (ops[reduction] != null && ops[reduction] != value.kind)
+                    parallelError("%s is reduced with both + and *", name);
+                ops[reduction] = value.kind;
+                checkReads(rest, reductions);
+                break;
+            }
+            case PRINT: parallelError("print can't be used"); break;
+            case RETURN: parallelError("return can't be used"); break;
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                checkReads(ifStatement.ifCondition, reductions);
+                checkParallel(ifStatement.ifThen, var, reductions, ops, locals);
+                if (ifStatement.ifElse != null)
+                    checkParallel(ifStatement.ifElse, var, reductions, ops, locals);
+                break;
+            }
+            case WHILE: {
+                Statement.While whileStatement = ((Statement.While) s);
+                checkReads(whileStatement.whileCondition, reductions);
+                checkParallel(whileStatement.whileBody, var, reductions, ops, locals);
+                break;
+            }
+            case PARALLEL: {
+                // Already checked on its own, and whatever it reduces into is one of our locals
+                Statement.Parallel inner = ((Statement.Parallel) s);
+                checkReads(inner.parallelFrom, reductions);
+                checkReads(inner.parallelTo, reductions);
+                checkReads(inner.parallelBody, reductions);
+                for (String name : inner.parallelReductions) {
+                    if (name.equals(var) || reductions.contains(name))
+                        parallelError("%s can't be reduced into by a nested loop", name);
+                    if (!locals.contains(name))
+                        locals.add(name);
+                }
+                break;
+            }
+        }
+    }
+
+    private static boolean isVar(Expression e, String name) {
+        return e.kind == ExpressionType.VAR && ((Expression.Var) e).varName.equals(name);
+    }
+
+    // A reduction only holds part of the result while the loop runs, so nothing else may look at it
+    private void checkReads(Expression e, List<String> reductions) {
+        switch (e.kind) {
+            case VAR: {
+                String name = ((Expression.Var) e).varName;
+                if (reductions.contains(name))
+                    parallelError("%s is a reduction and can only be read in its own update", name);
+                break;
+            }
+            case CALL: {
+                for (Expression actual : ((Expression.Call) e).callActuals)
+                    checkReads(actual, reductions);
+                break;
+            }
+            case VAL: break;
+            case ASYNC:
+            case AWAIT: parallelError("async and await can't be used"); break;
+            default: {
+                Expression.BinaryExpr expr = ((Expression.BinaryExpr) e);
+                checkReads(expr.left, reductions);
+                checkReads(expr.right, reductions);
+                break;
+            }
+        }
+    }
+
+    private void checkReads(Statement s, List<String> reductions) {
+        switch (s.kind) {
+            case BLOCK: ((Statement.Block) s).block.forEach(sub -> checkReads(sub, reductions)); break;
+            case ASSIGNMENT: {
+                Statement.Assign assign = ((Statement.Assign) s);
+                if (reductions.contains(assign.assignName))
+                    parallelError("%s is a reduction and can't be assigned by a nested loop", assign.assignName);
+                checkReads(assign.assignValue, reductions);
+                break;
+            }
+            case IF: {
+                Statement.If ifStatement = ((Statement.If) s);
+                checkReads(ifStatement.ifCondition, reductions);
+                checkReads(ifStatement.ifThen, reductions);
+                if (ifStatement.ifElse != null)
+                    checkReads(ifStatement.ifElse, reductions);
+                break;
+            }
+            case WHILE: {
+                checkReads(((Statement.While) s).whileCondition, reductions);
+                checkReads(((Statement.While) s).whileBody, reductions);
+                break;
+            }
+            case PARALLEL: {
+                Statement.Parallel inner = ((Statement.Parallel) s);
+                checkReads(inner.parallelFrom, reductions);
+                checkReads(inner.parallelTo, reductions);
+                checkReads(inner.parallelBody, reductions);
+                break;
+            }
+            default: break; // print and return were already ruled out
+        }
+    }
+
     private List<Statement> block() {
         List<Statement> p = new ArrayList<>();
 
@@ -261,10 +522,10 @@ public class Parser {
     private Expression e4() {
         Expression left = e3();
         switch (curToken) {
-            case LT: advanceToken(); return new Expression.BinaryExpr(ExpressionType.LT, left, e4());
-            case GT: advanceToken(); return new Expression.BinaryExpr(ExpressionType.GT, left, e4());
-            case NE: advanceToken(); return new Expression.BinaryExpr(ExpressionType.NE, left, e4());
-            case DEQUALS: advanceToken(); return new Expression.BinaryExpr(ExpressionType.EQ, left, e4());
+            case LT: advanceToken(); return node(new Expression.BinaryExpr(ExpressionType.LT, left, e4()));
+            case GT: advanceToken(); return node(new Expression.BinaryExpr(ExpressionType.GT, left, e4()));
+            case NE: advanceToken(); return node(new Expression.BinaryExpr(ExpressionType.NE, left, e4()));
+            case DEQUALS: advanceToken(); return node(new Expression.BinaryExpr(ExpressionType.EQ, left, e4()));
             default: return left;
         }
     }
@@ -272,7 +533,7 @@ public class Parser {
     private Expression e3() {
         Expression left = e2();
         switch (curToken) {
-            case PLUS: advanceToken(); return new Expression.BinaryExpr(ExpressionType.PLUS, left, e3());
+            case PLUS: advanceToken(); return node(new Expression.BinaryExpr(ExpressionType.PLUS, left, e3()));
             default: return left;
         }
     }
@@ -280,7 +541,7 @@ public class Parser {
     private Expression e2() {
         Expression left = e1();
         switch (curToken) {
-            case MUL: advanceToken(); return new Expression.BinaryExpr(ExpressionType.MUL, left, e2());
+            case MUL: advanceToken(); return node(new Expression.BinaryExpr(ExpressionType.MUL, left, e2()));
             default: return left;
         }
     }
@@ -294,7 +555,7 @@ public class Parser {
             advanceToken();
             return e;
         } else if (curToken == INT) {
-            Expression ret = new Expression.Val(curValue_unsigned);
+            Expression ret = node(new Expression.Val(curValue_unsigned));
             advanceToken();
             return ret;
         } else if (curToken == ID) {
@@ -303,7 +564,7 @@ public class Parser {
             if (curToken == LPAREN) {
                 advanceToken();
 
-                Expression e = new Expression.Call(id, actuals());
+                Expression e = node(new Expression.Call(id, actuals()));
 
                 if (curToken != RPAREN)
                     error();
@@ -311,8 +572,17 @@ public class Parser {
 
                 return e;
             } else {
-                return new Expression.Var(id);
+                return node(new Expression.Var(id));
             }
+        } else if (curToken == ASYNC) {
+            advanceToken();
+            Expression call = e1();
+            if (call.kind != ExpressionType.CALL)
+                error();
+            return node(new Expression.Async((Expression.Call) call));
+        } else if (curToken == AWAIT) {
+            advanceToken();
+            return node(new Expression.Await(e1()));
         } else {
             error();
             return null;
@@ -0,0 +1,19 @@
+package vlee12.parser;
+
+import java.util.List;
+
+public class Program {
+    // Classes compiled from other .fun files whose funs can be called from this one
+    public final List<String> imports;
+    public final List<Fun> funs;
+
+    public Program(List<String> imports, List<Fun> funs) {
+        this.imports = imports;
+        this.funs = funs;
+    }
+
+    @Override
+    public String toString() {
+        return AstDumper.toString(dumper -> dumper.dump(this));
+    }
+}
@@ -1,15 +1,23 @@
 package vlee12.parser;
 
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class Statement {
     public final StatementType kind;
 
+    // Where it starts in its .fun, counting from 1, or 0 if the compiler made it up. Set by the parser
+    public int line = 0;
+
     private Statement(StatementType kind) {
         this.kind = kind;
     }
 
+    // Builds the whole string, use AstDumper to stream big trees instead
+    @Override
+    public String toString() {
+        return AstDumper.toString(dumper -> dumper.dump(this));
+    }
+
     public static class Assign extends Statement {
         public final String assignName;
         public final Expression assignValue;
@@ -19,11 +27,6 @@ public class Statement {
             this.assignName = name;
             this.assignValue = val;
         }
-
-        @Override
-        public String toString() {
-            return "(let " + assignName + " " + assignValue + ")";
-        }
     }
 
     public static class Print extends Statement {
@@ -33,11 +36,6 @@ public class Statement {
             super(StatementType.PRINT);
             this.printValue = val;
         }
-
-        @Override
-        public String toString() {
-            return "(print " + printValue + ")";
-        }
     }
 
     public static class If extends Statement {
@@ -51,11 +49,6 @@ public class Statement {
             this.ifThen = truth;
             this.ifElse = other;
         }
-
-        @Override
-        public String toString() {
-            return "(if " + ifCondition + " " + ifThen + " " + ifElse + ")";
-        }
     }
 
     public static class While extends Statement {
@@ -67,10 +60,33 @@ public class Statement {
             this.whileCondition = cond;
             this.whileBody = body;
         }
+    }
 
-        @Override
-        public String toString() {
-            return "(while " + whileCondition + " " + whileBody + ")";
+    /**
+     * parallel i from a to b reduce s, t { ... }
+     * Every iteration may run at once with any other, so apart from reading, the body only has its own locals
+     * (everything it assigns, reset to 0 each iteration) and its reductions, which the parser has made sure are
+     * only ever updated as s = s + ... or s = s * ...
+     */
+    public static class Parallel extends Statement {
+        public final String parallelVar;
+        public final Expression parallelFrom;
+        public final Expression parallelTo;
+        public final List<String> parallelReductions;
+        public final List<ExpressionType> parallelOps; // PLUS or MUL, one per reduction
+        public final List<String> parallelLocals;
+        public final Statement parallelBody;
+
+        public Parallel(String var, Expression from, Expression to, List<String> reductions, List<ExpressionType> ops,
+                        List<String> locals, Statement body) {
+            super(StatementType.PARALLEL);
+            this.parallelVar = var;
+            this.parallelFrom = from;
+            this.parallelTo = to;
+            this.parallelReductions = reductions;
+            this.parallelOps = ops;
+            this.parallelLocals = locals;
+            this.parallelBody = body;
         }
     }
 
@@ -81,11 +97,6 @@ public class Statement {
             super(StatementType.BLOCK);
             this.block = block;
         }
-
-        @Override
-        public String toString() {
-            return block.stream().map(Object::toString).collect(Collectors.joining(" "));
-        }
     }
 
     public static class Return extends Statement {
@@ -95,10 +106,5 @@ public class Statement {
             super(StatementType.RETURN);
             this.returnValue = val;
         }
-
-        @Override
-        public String toString() {
-            return "(ret " + returnValue + ")";
-        }
     }
 }
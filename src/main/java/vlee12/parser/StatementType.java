@@ -6,5 +6,6 @@ public enum StatementType {
     IF,
     WHILE,
     BLOCK,
-    RETURN
+    RETURN,
+    PARALLEL
 }
@@ -0,0 +1,243 @@
+package vlee12.runtime;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Support code that compiled fun programs call into.
+ * Before this every generated class carried its own copy of these helpers, so a JVM with thousands of fun
+ * programs loaded would interpret, profile and JIT the exact same few methods thousands of times over.
+ * Shared, they get compiled once and inlined into every caller.
+ *
+ * Everything here is part of the contract with generated code (see Compiler), so don't rename or change descriptors.
+ * Classes compiled with --self-contained don't need this class at all.
+ */
+public final class FunRuntime {
+
+    private static final InheritableThreadLocal<PrintStream> output = new InheritableThreadLocal<>();
+    private static final InheritableThreadLocal<List<Profile>> profileSink = new InheritableThreadLocal<>();
+    private static final List<Profile> profiles = new ArrayList<>(); // reported at exit, guarded by itself
+
+    private FunRuntime() {}
+
+    // Fun integers are unsigned and comparisons yield 1 or 0, see REPORT.txt
+
+    public static int isLt(int a, int b) {
+        return Integer.compareUnsigned(a, b) < 0 ? 1 : 0;
+    }
+
+    public static int isGt(int a, int b) {
+        return Integer.compareUnsigned(a, b) > 0 ? 1 : 0;
+    }
+
+    public static int isEq(int a, int b) {
+        return a == b ? 1 : 0;
+    }
+
+    public static void print(int value) {
+        PrintStream out = output.get();
+        (out == null ? System.out : out).println(Integer.toUnsignedString(value));
+    }
+
+    /**
+     * Prints a whole program's output, worked out when it was compiled, in one go. The lines end in \n.
+     */
+    public static void write(String text) {
+        PrintStream out = output.get();
+        PrintStream target = out == null ? System.out : out;
+        if (!"\n".equals(System.lineSeparator()))
+            text = text.replace("\n", System.lineSeparator());
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        target.write(bytes, 0, bytes.length);
+        target.flush();
+    }
+
+    /**
+     * Sends prints from the current thread, and threads it goes on to start, to out instead of System.out.
+     * Lets many programs run at once in one JVM (e.g. the test suite) without their output mixing. Null undoes it.
+     */
+    public static void setOutput(PrintStream out) {
+        if (out == null)
+            output.remove();
+        else
+            output.set(out);
+    }
+
+    // Where prints from the current thread go, null for System.out
+    static PrintStream currentOutput() {
+        return output.get();
+    }
+
+    /**
+     * Runs a program's main on a thread of its own with stackMegabytes of stack, for recursion deeper than the usual
+     * thread's allows (see Options.mainStackMegabytes). main is $main, which gets zeros for any formals. Returns once
+     * it has, or throws what it threw.
+     */
+    public static void runMain(MethodHandle main, int stackMegabytes) {
+        Object[] zeros = new Object[main.type().parameterCount()];
+        Arrays.fill(zeros, 0);
+        onStack(stackMegabytes, () -> {
+            try {
+                main.invokeWithArguments(zeros);
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        });
+    }
+
+    /**
+     * Runs body on a new thread with stackMegabytes of stack and waits for it, for runMain and the interpreter.
+     * Prints go where this thread's would.
+     */
+    public static void onStack(int stackMegabytes, Runnable body) {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "fun-main", (long) stackMegabytes << 20);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for main", ex);
+        }
+
+        if (failure[0] instanceof RuntimeException)
+            throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error)
+            throw (Error) failure[0];
+    }
+
+    /**
+     * Runs a parallel loop over from until to (unsigned), the body compiled into chunk, which takes
+     * (captures, lo, hi, partials) and runs iterations lo until hi, folding its reductions into partials.
+     * The range is split in halves, down to a few slices per core, which run on the common ForkJoinPool and
+     * this thread. Reductions are one per character of ops, '+' or '*', and come back combined over the whole range.
+     * Both wrap around like everything else, so the result doesn't depend on how the range was split.
+     */
+    public static int[] parallel(MethodHandle chunk, int[] captures, int from, int to, String ops) {
+        long count = Integer.toUnsignedLong(to) - Integer.toUnsignedLong(from);
+        if (count <= 0)
+            return Slice.identities(ops);
+
+        long grain = Math.max(1, count / (8L * ForkJoinPool.getCommonPoolParallelism()));
+        return new Slice(chunk, captures, Integer.toUnsignedLong(from), Integer.toUnsignedLong(to), grain, ops).invoke();
+    }
+
+    private static final class Slice extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final MethodHandle chunk;
+        private final int[] captures;
+        private final long lo;
+        private final long hi;
+        private final long grain;
+        private final String ops;
+
+        Slice(MethodHandle chunk, int[] captures, long lo, long hi, long grain, String ops) {
+            this.chunk = chunk;
+            this.captures = captures;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+            this.ops = ops;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (hi - lo <= grain) {
+                int[] partials = identities(ops);
+                try {
+                    chunk.invokeExact(captures, (int) lo, (int) hi, partials);
+                } catch (RuntimeException | Error ex) {
+                    throw ex;
+                } catch (Throwable t) {
+                    throw new IllegalStateException(t);
+                }
+                return partials;
+            }
+
+            long mid = lo + (hi - lo) / 2;
+            Slice right = new Slice(chunk, captures, mid, hi, grain, ops);
+            right.fork();
+            int[] ret = new Slice(chunk, captures, lo, mid, grain, ops).compute();
+            int[] other = right.join();
+            for (int i = 0; i < ret.length; i++)
+                ret[i] = ops.charAt(i) == '*' ? ret[i] * other[i] : ret[i] + other[i];
+            return ret;
+        }
+
+        static int[] identities(String ops) {
+            int[] ret = new int[ops.length()];
+            for (int i = 0; i < ret.length; i++)
+                ret[i] = ops.charAt(i) == '*' ? 1 : 0;
+            return ret;
+        }
+    }
+
+    /**
+     * Called once from the static initializer of each class compiled with --profile.
+     * Unless the thread is collecting profiles (see collectProfiles), the counters get reported when the JVM exits:
+     * to the file named by the fun.profile system property if there is one (for --use-profile), otherwise stderr.
+     */
+    public static void profile(long[] counters, String labels) {
+        Profile profile = new Profile(counters, labels);
+
+        List<Profile> sink = profileSink.get();
+        if (sink != null) {
+            synchronized (sink) {
+                sink.add(profile);
+            }
+            return;
+        }
+
+        synchronized (profiles) {
+            if (profiles.isEmpty())
+                Runtime.getRuntime().addShutdownHook(new Thread(FunRuntime::reportProfiles, "fun-profile-report"));
+            profiles.add(profile);
+        }
+    }
+
+    /**
+     * Hands profiles of classes initialized on the current thread, and threads it goes on to start, to sink
+     * instead of reporting them at exit. Null undoes it.
+     */
+    public static void collectProfiles(List<Profile> sink) {
+        if (sink == null)
+            profileSink.remove();
+        else
+            profileSink.set(sink);
+    }
+
+    private static void reportProfiles() {
+        String file = System.getProperty("fun.profile");
+        synchronized (profiles) {
+            if (file == null) {
+                for (Profile profile : profiles)
+                    profile.report(System.err);
+                return;
+            }
+
+            try (PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8")) {
+                for (Profile profile : profiles)
+                    profile.report(out);
+            } catch (IOException ex) {
+                System.err.println("Couldn't write profile to " + file + ": " + ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package vlee12.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Links calls to funs that live in another compiled .fun file.
+ * The compiler emits those calls as invokedynamic with this as the bootstrap, so nothing is looked up
+ * until the call actually runs. The first execution finds the fun in one of the imported classes and
+ * binds it into a ConstantCallSite, after which the JIT treats the call like a plain invokestatic.
+ */
+public final class Linker {
+
+    private Linker() {}
+
+    /**
+     * @param imports comma separated class names from the caller's import declarations, searched in order
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String funName, MethodType type, String imports) throws ReflectiveOperationException {
+        ClassLoader loader = caller.lookupClass().getClassLoader();
+
+        for (String module : imports.split(",")) {
+            Class<?> target;
+            try {
+                target = Class.forName(module, true, loader);
+            } catch (ClassNotFoundException ex) {
+                continue;
+            }
+
+            try {
+                return new ConstantCallSite(caller.findStatic(target, funName, type));
+            } catch (NoSuchMethodException ex) {
+                // Try the next import
+            }
+        }
+
+        throw new NoSuchMethodException("No import of " + caller.lookupClass().getName() + " (" + imports + ") has a fun "
+                + funName + " taking " + type.parameterCount() + " arguments");
+    }
+}
@@ -0,0 +1,41 @@
+package vlee12.runtime;
+
+import java.io.PrintStream;
+
+/**
+ * The counters of one class compiled with --profile, along with what each of them counts.
+ * The class bumps the counters itself, without synchronization, so numbers from programs running
+ * on several threads at once are approximate.
+ */
+public final class Profile {
+    public final String className;
+    private final String[] labels;
+    private final long[] counters;
+
+    /**
+     * @param labels the class name, then one line per counter
+     */
+    Profile(long[] counters, String labels) {
+        String[] lines = labels.split("\n", -1);
+        this.className = lines[0];
+        this.labels = new String[lines.length - 1];
+        System.arraycopy(lines, 1, this.labels, 0, this.labels.length);
+        this.counters = counters;
+    }
+
+    /**
+     * @return how often the labelled thing happened, e.g. count("fib calls") or count("main while #1 iterations")
+     */
+    public long count(String label) {
+        for (int i = 0; i < labels.length; i++)
+            if (labels[i].equals(label))
+                return counters[i];
+        throw new IllegalArgumentException("No counter " + label + " in " + className);
+    }
+
+    public void report(PrintStream out) {
+        out.printf("profile of %s:%n", className);
+        for (int i = 0; i < labels.length; i++)
+            out.printf("%16d  %s%n", counters[i], labels[i]);
+    }
+}
@@ -0,0 +1,41 @@
+package vlee12.runtime;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Defines compiled fun classes straight from bytes, without writing them to disk.
+ * Each loader is its own namespace, so the same program can be loaded many times side by side,
+ * and everything else (like FunRuntime) comes from the parent.
+ */
+public class ProgramLoader extends ClassLoader {
+
+    public ProgramLoader() {
+        this(ProgramLoader.class.getClassLoader());
+    }
+
+    public ProgramLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    private final Map<String, byte[]> pending = new HashMap<>();
+
+    public Class<?> define(String className, byte[] bytes) {
+        return defineClass(className.replace('/', '.'), bytes, 0, bytes.length);
+    }
+
+    /**
+     * Makes a class available to be loaded by name later, e.g. a library that Linker looks up on first call
+     */
+    public synchronized void add(String className, byte[] bytes) {
+        pending.put(className.replace('/', '.'), bytes);
+    }
+
+    @Override
+    protected synchronized Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = pending.remove(name);
+        if (bytes == null)
+            throw new ClassNotFoundException(name);
+        return define(name, bytes);
+    }
+}
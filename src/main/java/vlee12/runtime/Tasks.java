@@ -0,0 +1,162 @@
+package vlee12.runtime;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The calls started by async and not awaited yet, for one compiled class (or one interpreted program and the tiers
+ * it compiles). Fun only has ints, so a handle is one: the low bits are a slot in here, the high bits count how many
+ * times that slot has been handed out, so a handle that was already awaited doesn't quietly find somebody else's
+ * call. Awaiting frees the slot, which keeps the table as small as the number of calls in flight.
+ *
+ * Each call gets a virtual thread of its own on Java 21 and up, and a thread from a pool that grows as needed
+ * before that, so a call that awaits another never waits for a thread to free up.
+ * Whatever the caller did before async is visible to the call, and whatever the call did is visible to whoever
+ * awaits it, the same as starting and joining a thread. Globals written by both sides in between race: every read
+ * sees one of the values written, and which one is down to timing. Calls nobody awaits may not get to finish
+ * before the program exits.
+ *
+ * Part of the contract with generated code, like FunRuntime.
+ */
+public final class Tasks {
+
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int USE_MASK = (1 << (32 - SLOT_BITS)) - 1;
+
+    private static final ExecutorService executor = executor();
+
+    // Guarded by this
+    private Call[] calls = new Call[16];
+    private int[] uses = new int[16]; // times each slot was handed out, the high bits of its handle
+    private int[] free = new int[16]; // stack of slots below size with no call in them
+    private int freeCount = 0;
+    private int size = 0;
+
+    private Tasks() {}
+
+    public static Tasks create() {
+        return new Tasks();
+    }
+
+    /**
+     * Starts target on its own thread with args spread over its formals, the handle awaits the int it returns
+     */
+    public int async(MethodHandle target, int[] args) {
+        Call call = new Call(target.asSpreader(int[].class, args.length), args, FunRuntime.currentOutput());
+        int handle = add(call);
+        executor.execute(call);
+        return handle;
+    }
+
+    /**
+     * A handle for a call that already returned value, for the interpreter, which makes its calls on the spot
+     */
+    public int done(int value) {
+        Call call = new Call(null, null, null);
+        call.result = value;
+        call.finished.countDown();
+        return add(call);
+    }
+
+    /**
+     * Waits for the call behind handle and returns its result, or throws what it threw.
+     * Each handle can only be awaited once.
+     */
+    public int await(int handle) {
+        Call call = take(handle);
+        try {
+            call.finished.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted awaiting " + Integer.toUnsignedString(handle), ex);
+        }
+
+        if (call.failure instanceof RuntimeException)
+            throw (RuntimeException) call.failure;
+        if (call.failure instanceof Error)
+            throw (Error) call.failure;
+        if (call.failure != null)
+            throw new IllegalStateException(call.failure);
+        return call.result;
+    }
+
+    private synchronized int add(Call call) {
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            if (size == SLOT_MASK)
+                throw new IllegalStateException("Too many async calls in flight");
+            slot = size++;
+            if (slot == calls.length) {
+                calls = Arrays.copyOf(calls, slot * 2);
+                uses = Arrays.copyOf(uses, slot * 2);
+                free = Arrays.copyOf(free, slot * 2);
+            }
+        }
+
+        calls[slot] = call;
+        uses[slot] = (uses[slot] + 1) & USE_MASK;
+        return uses[slot] << SLOT_BITS | (slot + 1); // never 0, so a global nobody set isn't a handle
+    }
+
+    private synchronized Call take(int handle) {
+        int slot = (handle & SLOT_MASK) - 1;
+        if (slot < 0 || slot >= size || calls[slot] == null || uses[slot] != handle >>> SLOT_BITS)
+            throw new IllegalArgumentException(Integer.toUnsignedString(handle) + " isn't an async call waiting to be awaited");
+
+        Call ret = calls[slot];
+        calls[slot] = null;
+        free[freeCount++] = slot;
+        return ret;
+    }
+
+    private static ExecutorService executor() {
+        try {
+            // Java 21 on, found reflectively since the runtime itself is built for Java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread ret = new Thread(task, "fun-async");
+                ret.setDaemon(true);
+                return ret;
+            });
+        }
+    }
+
+    private static final class Call implements Runnable {
+        private final MethodHandle target; // takes the args as one int[]
+        private final int[] args;
+        private final PrintStream output;
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        // Written before finished counts down, read after it has
+        private int result;
+        private Throwable failure;
+
+        Call(MethodHandle target, int[] args, PrintStream output) {
+            this.target = target;
+            this.args = args;
+            this.output = output;
+        }
+
+        @Override
+        public void run() {
+            // Pooled threads outlive whoever started them, so prints go where the caller's would have
+            FunRuntime.setOutput(output);
+            try {
+                result = (int) target.invokeExact(args);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                FunRuntime.setOutput(null);
+                finished.countDown();
+            }
+        }
+    }
+}
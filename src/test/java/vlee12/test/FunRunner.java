@@ -0,0 +1,150 @@
+package vlee12.test;
+
+import vlee12.compiler.Compiler;
+import vlee12.compiler.Options;
+import vlee12.compiler.ProfileData;
+import vlee12.interpreter.ExecutionPolicy;
+import vlee12.interpreter.Interpreter;
+import vlee12.parser.Parser;
+import vlee12.parser.Program;
+import vlee12.runtime.FunRuntime;
+import vlee12.runtime.Profile;
+import vlee12.runtime.ProgramLoader;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Compiles (or interprets) and runs .fun programs entirely in memory, many at a time.
+ * Each program gets a fresh ProgramLoader, so every run has its own globals, and its prints go to its own
+ * buffer through FunRuntime.setOutput. Nothing touches the disk and no JVMs get started.
+ */
+class FunRunner {
+
+    // Deep fun recursion needs more than the default thread stack
+    private static final long STACK_SIZE = 64L * 1024 * 1024;
+
+    private final ExecutorService pool;
+
+    FunRunner(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(null, r, "fun-test-" + count.incrementAndGet(), STACK_SIZE);
+            t.setDaemon(true); // A program stuck in a loop shouldn't keep the build alive
+            return t;
+        });
+    }
+
+    // Low enough that tiered runs of the small test programs mix interpreted and compiled funs
+    private static final int TEST_CALL_THRESHOLD = 3;
+    private static final int TEST_BACKEDGE_THRESHOLD = 10;
+
+    /**
+     * Starts compiling and running the program, the future holds its non-blank output lines
+     */
+    Future<List<String>> submit(Path funFile, MainSuite.Mode mode) {
+        return pool.submit((Callable<List<String>>) () -> run(funFile, mode));
+    }
+
+    static List<String> run(Path funFile, MainSuite.Mode mode) throws IOException, ReflectiveOperationException {
+        Options options = mode.options;
+        if (mode.trained) {
+            // What --profile and then --use-profile do, but in memory
+            Options profiling = options.copy();
+            profiling.profile = true;
+            List<Profile> profiles = new ArrayList<>();
+            run(funFile, profiling, ExecutionPolicy.COMPILE, profiles);
+
+            options = options.copy();
+            options.pgo = ProfileData.of(profiles);
+        }
+
+        // Profiles are only kept for training, otherwise this just checks that counting doesn't change the output
+        return run(funFile, options, mode.policy, new ArrayList<>());
+    }
+
+    private static List<String> run(Path funFile, Options options, ExecutionPolicy policy, List<Profile> profiles) throws IOException, ReflectiveOperationException {
+        Program program = parse(funFile);
+        String name = className(funFile);
+        ProgramLoader loader = new ProgramLoader();
+
+        // Libraries sit next to the program and are loaded when the first call into them links
+        for (String lib : program.imports) {
+            Options libOptions = options.copy();
+            libOptions.library = true;
+            loader.add(lib, Compiler.compile(parse(funFile.resolveSibling(lib + ".fun")), lib, libOptions));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        FunRuntime.setOutput(out);
+        FunRuntime.collectProfiles(profiles);
+        try {
+            if (policy == ExecutionPolicy.COMPILE) {
+                Class<?> main = loader.define(name, options.pipeline ? compile(funFile, options) : Compiler.compile(program, name, options));
+                main.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+            } else {
+                Interpreter interpreter = new Interpreter(program, name, policy == ExecutionPolicy.TIERED, options, loader);
+                interpreter.setThresholds(TEST_CALL_THRESHOLD, TEST_BACKEDGE_THRESHOLD);
+                interpreter.runMain();
+            }
+        } finally {
+            FunRuntime.setOutput(null);
+            FunRuntime.collectProfiles(null);
+        }
+
+        return nonBlankLines(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Names of the methods funFile compiles to with options, sorted
+     */
+    static List<String> methods(Path funFile, Options options) throws IOException {
+        String name = className(funFile);
+        Class<?> compiled = new ProgramLoader().define(name, Compiler.compile(parse(funFile), name, options));
+        return Arrays.stream(compiled.getDeclaredMethods()).map(Method::getName).sorted().collect(Collectors.toList());
+    }
+
+    static List<String> nonBlankLines(String text) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new StringReader(text))) {
+            return reader.lines()
+                    .filter(s -> !s.trim().isEmpty()) // Ignore whitespace lines
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Straight from the file, the way Main does with --pipeline
+    private static byte[] compile(Path funFile, Options options) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(funFile)) {
+            return Compiler.compile(reader, className(funFile), options, ByteBuffer::allocate).array();
+        }
+    }
+
+    private static Program parse(Path funFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(funFile)) {
+            return Parser.parseProgram(reader);
+        }
+    }
+
+    private static String className(Path funFile) {
+        String name = funFile.getFileName().toString();
+        return name.substring(0, name.lastIndexOf(".fun"));
+    }
+}
@@ -2,54 +2,47 @@ package vlee12.test;
 
 import junit.framework.TestCase;
 import org.junit.Assert;
-import vlee12.Main;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class FunTest extends TestCase {
 
-    public FunTest(String testName) {
+    // Long enough for anything sane, short enough that a runaway loop doesn't hang the build
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final Path okFile;
+    private final Future<List<String>> output;
+
+    /**
+     * @param output the program's output, already being computed by FunRunner alongside every other test
+     */
+    public FunTest(String testName, Path okFile, Future<List<String>> output) {
         super(testName);
         setName(testName);
+        this.okFile = okFile;
+        this.output = output;
     }
 
     @Override
-    protected void setUp() {
-        // Generate class file for the fun
-        Main.main(getName() + ".fun");
-    }
-
-    @Override
-    public void runTest() throws IOException, InterruptedException {
-        Process p = Runtime.getRuntime().exec("java -noverify " + getName() + " 2>&1");
-        p.waitFor();
-
+    public void runTest() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        List<String> expected = FunRunner.nonBlankLines(new String(Files.readAllBytes(okFile), StandardCharsets.UTF_8));
         List<String> procOutput;
-        List<String> expected;
 
-        try (BufferedReader pout = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-            procOutput = pout.lines()
-                    .filter(s -> !s.trim().isEmpty()) // Ignore whitespace lines
-                    .collect(Collectors.toList());
+        try {
+            procOutput = output.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            output.cancel(true);
+            throw ex;
         }
 
-        expected = Files
-                .lines(Paths.get(getName() + ".ok"))
-                .filter(s -> !s.trim().isEmpty()) // Ignore whitespace lines
-                .collect(Collectors.toList());
-
         Assert.assertEquals(expected, procOutput);
     }
-
-    @Override
-    protected void tearDown() throws IOException {
-        // Delete generated class file
-        Paths.get(getName() + ".class").toFile().delete();
-    }
 }
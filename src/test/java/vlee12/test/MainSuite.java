@@ -1,44 +1,176 @@
 package vlee12.test;
 
+import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.junit.Assert;
 import org.junit.runner.RunWith;
 import org.junit.runners.AllTests;
+import vlee12.compiler.CompileException;
+import vlee12.compiler.Options;
+import vlee12.interpreter.ExecutionPolicy;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 @RunWith(AllTests.class)
 public class MainSuite {
 
+    static final class Mode {
+        final Options options;
+        final ExecutionPolicy policy;
+        final boolean trained; // run once with --profile first, then for real with --use-profile
+
+        Mode(Options options, ExecutionPolicy policy) {
+            this(options, policy, false);
+        }
+
+        Mode(Options options, ExecutionPolicy policy, boolean trained) {
+            this.options = options;
+            this.policy = policy;
+            this.trained = trained;
+        }
+    }
+
+    /**
+     * Every program is run once per mode here, since optimizations must never change what a program prints
+     */
+    static Map<String, Mode> modes() {
+        Map<String, Mode> ret = new LinkedHashMap<>();
+        ret.put("default", new Mode(new Options(), ExecutionPolicy.COMPILE));
+
+        Options memoize = new Options();
+        memoize.memoize = true;
+        ret.put("memoize", new Mode(memoize, ExecutionPolicy.COMPILE));
+
+        Options profile = new Options();
+        profile.profile = true;
+        ret.put("profile", new Mode(profile, ExecutionPolicy.COMPILE));
+
+        ret.put("pgo", new Mode(new Options(), ExecutionPolicy.COMPILE, true));
+
+        Options packed = new Options();
+        packed.packGlobalsAbove = 0;
+        ret.put("packed", new Mode(packed, ExecutionPolicy.COMPILE));
+
+        // Odd, so loops usually have iterations left over
+        Options unroll = new Options();
+        unroll.unroll = 3;
+        ret.put("unroll", new Mode(unroll, ExecutionPolicy.COMPILE));
+
+        // Small stack, the test programs don't recurse far
+        Options trampoline = new Options();
+        trampoline.trampoline = true;
+        trampoline.mainStackMegabytes = 8;
+        ret.put("trampoline", new Mode(trampoline, ExecutionPolicy.COMPILE));
+
+        Options pipeline = new Options();
+        pipeline.pipeline = true;
+        ret.put("pipeline", new Mode(pipeline, ExecutionPolicy.COMPILE));
+
+        Options vars = new Options();
+        vars.localNames = true;
+        ret.put("vars", new Mode(vars, ExecutionPolicy.COMPILE));
+
+        // Small enough that the longer programs fall back to compiling main
+        Options precompute = new Options();
+        precompute.precomputeSteps = 1_000_000;
+        ret.put("precompute", new Mode(precompute, ExecutionPolicy.COMPILE));
+
+        ret.put("interpret", new Mode(new Options(), ExecutionPolicy.INTERPRET));
+        ret.put("tiered", new Mode(new Options(), ExecutionPolicy.TIERED));
+
+        return ret;
+    }
+
     public static TestSuite suite() {
         TestSuite ret = new TestSuite("Root suite");
-        File testDir = new File(".");
-
-        // Gather all .fun and .ok
-        File[] funs = testDir.listFiles((dir, name) -> name.endsWith(".fun"));
-        File[] oks = testDir.listFiles((dir, name) -> name.endsWith(".ok"));
-        Set<String> toTest = new HashSet<>();
-
-        if (funs != null && oks != null) {
-            List<File> funsList = Arrays.asList(funs);
-            List<String> oksNames = Arrays.stream(oks).map(File::getName).collect(Collectors.toList());
-
-            for (File f : funsList) {
-                String testName = f.getName().substring(0, f.getName().lastIndexOf(".fun"));
-                if (oksNames.contains(testName + ".ok")) {
-                    // For all funs, if .fun has a .ok, add to test list
-                    toTest.add(testName);
-                } else {
-                    System.out.printf("%s has no .ok file, skipping ...%n", testName);
+
+        // Extra directories of .fun/.ok pairs (e.g. generated corpora) can be given with -Dfun.tests=dir1,dir2
+        String dirs = System.getProperty("fun.tests", ".");
+        FunRunner runner = new FunRunner(Runtime.getRuntime().availableProcessors());
+
+        for (String dir : dirs.split(",")) {
+            File testDir = new File(dir);
+
+            // Gather all .fun and .ok
+            File[] funs = testDir.listFiles((d, name) -> name.endsWith(".fun"));
+            File[] oks = testDir.listFiles((d, name) -> name.endsWith(".ok"));
+            Set<String> toTest = new TreeSet<>();
+
+            if (funs != null && oks != null) {
+                Set<String> oksNames = Arrays.stream(oks).map(File::getName).collect(Collectors.toSet());
+
+                for (File f : funs) {
+                    String testName = f.getName().substring(0, f.getName().lastIndexOf(".fun"));
+                    if (oksNames.contains(testName + ".ok")) {
+                        // For all funs, if .fun has a .ok, add to test list
+                        toTest.add(testName);
+                    } else {
+                        System.out.printf("%s has no .ok file, skipping ...%n", testName);
+                    }
                 }
             }
+
+            // Everything starts running now, each test just waits for its own result
+            for (String s : toTest) {
+                Path fun = testDir.toPath().resolve(s + ".fun");
+                Path ok = testDir.toPath().resolve(s + ".ok");
+                for (Map.Entry<String, Mode> mode : modes().entrySet()) {
+                    String name = dir.equals(".") ? s : dir + "/" + s;
+                    ret.addTest(new FunTest(name + " [" + mode.getKey() + "]", ok, runner.submit(fun, mode.getValue())));
+                }
+            }
+        }
+
+        // A loop unroll turns down for size still only gets its body generated once, so its parallel loop becomes
+        // one method, not one per attempt
+        Path unrolled = Paths.get("tv.fun");
+        ret.addTest(new TestCase("tv [unroll methods]") {
+            @Override
+            public void runTest() throws IOException {
+                Assert.assertEquals(FunRunner.methods(unrolled, new Options()), FunRunner.methods(unrolled, modes().get("unroll").options));
+            }
+        });
+
+        // A parallel loop's locals can't take the name of a global, whether its own fun or another one uses it
+        for (Map.Entry<String, Mode> mode : modes().entrySet()) {
+            ret.addTest(new TestCase("parallelglobal [" + mode.getKey() + "]") {
+                @Override
+                public void runTest() throws Exception {
+                    Path dir = Files.createTempDirectory("parallelglobal");
+                    Path fun = dir.resolve("parallelglobal.fun");
+                    Files.write(fun, Arrays.asList(
+                            "fun main() {",
+                            "    g = 5",
+                            "    s = 0",
+                            "    parallel i from 0 to 4 reduce s {",
+                            "        g = g + i",
+                            "        s = s + g",
+                            "    }",
+                            "    print s",
+                            "}"));
+                    try {
+                        FunRunner.run(fun, mode.getValue());
+                        Assert.fail("compiled a parallel loop assigning the global g");
+                    } catch (CompileException expected) {
+                        Assert.assertTrue(expected.getMessage(), expected.getMessage().startsWith("g in main can't be assigned"));
+                    } finally {
+                        Files.delete(fun);
+                        Files.delete(dir);
+                    }
+                }
+            });
         }
 
-        toTest.forEach(s -> ret.addTest(new FunTest(s)));
         return ret;
     }
 